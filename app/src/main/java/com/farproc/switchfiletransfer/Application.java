@@ -1,12 +1,61 @@
 package com.farproc.switchfiletransfer;
 
+import android.content.Context;
+import android.graphics.Bitmap;
 import android.os.Handler;
+import android.os.Message;
 
+import androidx.annotation.NonNull;
+
+import java.io.File;
 import java.util.Objects;
+import java.util.concurrent.Executors;
 
 public class Application extends android.app.Application {
     // The global UI thread handler in this application.
     // Application instance is created by main UI thread,
     // so this handler is guaranteed to be in UI thread.
-    public final static Handler handler = new Handler();
+    // Every dispatch is a trace section named by the class of the callback, e.g. the lambda posted.
+    public final static Handler handler = new Handler() {
+        @Override
+        public void dispatchMessage(@NonNull final Message msg) {
+            if (!Tracing.isEnabled()) {
+                super.dispatchMessage(msg);
+                return;
+            }
+            Tracing.begin(msg.getCallback() != null ? msg.getCallback().getClass().getName() : "message " + msg.what);
+            try {
+                super.dispatchMessage(msg);
+            } finally {
+                Tracing.end();
+            }
+        }
+    };
+
+    // Max total size of the decoded thumbnails, 1/8 of the heap. 3/4 of it are cached, 1/4 pooled for reuse.
+    private static final int THUMBNAIL_MEMORY_FRACTION = 8;
+    // Max total size of the thumbnails saved on disk.
+    private static final long THUMBNAIL_DISK_CACHE_BYTES = 32 * 1024 * 1024;
+
+    private static ThumbnailCodec thumbnailCodec;
+    private static ThumbnailLoader<Bitmap> thumbnailLoader;
+
+    // The thumbnails shared by the download list and the service, which adds the thumbnails
+    // created while downloading. Call on main thread.
+    static ThumbnailLoader<Bitmap> getThumbnailLoader(final Context context) {
+        if (thumbnailLoader == null) {
+            final long memoryBytes = Runtime.getRuntime().maxMemory() / THUMBNAIL_MEMORY_FRACTION;
+            thumbnailCodec = new ThumbnailCodec(context, new BitmapPool<>(memoryBytes / 4, Bitmap::getAllocationByteCount));
+            thumbnailLoader = new ThumbnailLoader<>(Executors.newFixedThreadPool(2), handler::post,
+                    new DiskCache(new File(context.getCacheDir(), "thumbnails"), THUMBNAIL_DISK_CACHE_BYTES),
+                    thumbnailCodec, memoryBytes - memoryBytes / 4);
+        }
+        return thumbnailLoader;
+    }
+
+    // The codec of getThumbnailLoader(). Call on main thread.
+    static ThumbnailCodec getThumbnailCodec(final Context context) {
+        getThumbnailLoader(context);
+        return thumbnailCodec;
+    }
 }
@@ -0,0 +1,75 @@
+package com.farproc.switchfiletransfer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bounded pool of bitmaps whose memory can be reused to decode other images, e.g. with
+ * {@code BitmapFactory.Options.inBitmap}.
+ * <p>
+ * A bitmap can be reused for an image that needs no more bytes than the bitmap has,
+ * so the pool hands out the smallest bitmap large enough, but not more than twice as large
+ * to not waste memory. Like {@link BufferPool}, released bitmaps are kept only while the
+ * total size does not exceed the limit given to the constructor.
+ * <p>
+ * The type of the bitmaps is a parameter, so the pool can be tested without Android.
+ * <p>
+ * This class is thread safe.
+ */
+class BitmapPool<B> {
+    interface Sizer<B> {
+        /**
+         * Number of bytes of memory of {@code bitmap}.
+         */
+        int sizeOf(B bitmap);
+    }
+
+    private final long maxPooledBytes;
+    private final Sizer<B> sizer;
+    private final List<B> bitmaps = new ArrayList<>();
+    private long pooledBytes;
+
+    BitmapPool(final long maxPooledBytes, final Sizer<B> sizer) {
+        this.maxPooledBytes = maxPooledBytes;
+        this.sizer = sizer;
+    }
+
+    /**
+     * Take a bitmap of at least {@code minBytes} bytes out of the pool.
+     *
+     * @return Null if there is none.
+     */
+    synchronized B acquire(final int minBytes) {
+        int best = -1;
+        int bestSize = Integer.MAX_VALUE;
+        for (int i = 0; i < bitmaps.size(); i++) {
+            final int size = sizer.sizeOf(bitmaps.get(i));
+            if (size >= minBytes && size / 2 <= minBytes && size < bestSize) {
+                best = i;
+                bestSize = size;
+            }
+        }
+        if (best == -1) {
+            return null;
+        }
+        pooledBytes -= bestSize;
+        return bitmaps.remove(best);
+    }
+
+    /**
+     * Put a bitmap which is not used anymore into the pool.
+     * The bitmap is dropped if the pool is full.
+     */
+    synchronized void release(final B bitmap) {
+        final int size = sizer.sizeOf(bitmap);
+        if (pooledBytes + size > maxPooledBytes) {
+            return;
+        }
+        pooledBytes += size;
+        bitmaps.add(bitmap);
+    }
+
+    synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+}
@@ -0,0 +1,79 @@
+package com.farproc.switchfiletransfer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A bounded pool of reusable {@link ByteBuffer}s.
+ * <p>
+ * Buffers are pooled by capacity and kind(heap or direct). Released buffers are kept only while
+ * the total capacity of pooled buffers does not exceed the limit given to the constructor,
+ * so the memory retained by the pool is bounded no matter how many transfers run at the same time.
+ * <p>
+ * This class is thread safe.
+ */
+public class BufferPool {
+    private final int maxPooledBytes;
+    private int pooledBytes;
+
+    private final Map<Integer, ArrayDeque<ByteBuffer>> heapBuffers = new HashMap<>();
+    private final Map<Integer, ArrayDeque<ByteBuffer>> directBuffers = new HashMap<>();
+
+    /**
+     * @param maxPooledBytes Max total capacity of the buffers kept in this pool.
+     */
+    public BufferPool(final int maxPooledBytes) {
+        if (maxPooledBytes < 0) {
+            throw new IllegalArgumentException("maxPooledBytes < 0");
+        }
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * Get a cleared buffer of exactly {@code capacity} bytes, reuse a pooled one if possible.
+     *
+     * @param capacity Capacity of the buffer.
+     * @param direct   Whether a direct buffer is wanted.
+     */
+    public ByteBuffer acquire(final int capacity, final boolean direct) {
+        synchronized (this) {
+            final ArrayDeque<ByteBuffer> buffers = (direct ? directBuffers : heapBuffers).get(capacity);
+            if (buffers != null && !buffers.isEmpty()) {
+                pooledBytes -= capacity;
+                final ByteBuffer buffer = buffers.pop();
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Return a buffer acquired by {@link #acquire(int, boolean)} to this pool.
+     * The buffer is dropped if the pool is full.
+     * The buffer must not be used after release.
+     */
+    public synchronized void release(final ByteBuffer buffer) {
+        final int capacity = buffer.capacity();
+        if (pooledBytes + capacity > maxPooledBytes) {
+            return;
+        }
+        final Map<Integer, ArrayDeque<ByteBuffer>> map = buffer.isDirect() ? directBuffers : heapBuffers;
+        ArrayDeque<ByteBuffer> buffers = map.get(capacity);
+        if (buffers == null) {
+            buffers = new ArrayDeque<>();
+            map.put(capacity, buffers);
+        }
+        buffers.push(buffer);
+        pooledBytes += capacity;
+    }
+
+    /**
+     * Total capacity of the buffers currently kept in this pool.
+     */
+    public synchronized int getPooledBytes() {
+        return pooledBytes;
+    }
+}
@@ -0,0 +1,93 @@
+package com.farproc.switchfiletransfer;
+
+import java.util.Arrays;
+
+/**
+ * Collects the positions of changed items on any thread, and hands them over in one batch,
+ * e.g. once per display frame, instead of one callback per change.
+ * <p>
+ * A flush is scheduled by the first change after the previous flush, later changes join the same batch.
+ * The positions of a batch are sorted and unique.
+ */
+class ChangeBatcher {
+    /**
+     * Schedules a flush, e.g. on the next frame on main thread. Called on the thread of the change.
+     */
+    interface Scheduler {
+        void schedule(Runnable flush);
+    }
+
+    /**
+     * Receives the batches on the thread the flush is run.
+     */
+    interface Callback {
+        /**
+         * @param positions Sorted unique positions, the first {@code count} are valid. Only valid during the call.
+         */
+        void onChanged(int[] positions, int count);
+    }
+
+    private final Scheduler scheduler;
+    private final Callback callback;
+
+    // Guarded by this.
+    private int[] pending = new int[16];
+    private int pendingCount;
+    private boolean scheduled;
+
+    // Accessed by the flush only.
+    private int[] flushing = new int[16];
+
+    ChangeBatcher(final Scheduler scheduler, final Callback callback) {
+        this.scheduler = scheduler;
+        this.callback = callback;
+    }
+
+    /**
+     * The item at {@code pos} has changed.
+     */
+    void onChanged(final int pos) {
+        final boolean schedule;
+        synchronized (this) {
+            if (pendingCount == pending.length) {
+                pending = Arrays.copyOf(pending, pendingCount * 2);
+            }
+            pending[pendingCount++] = pos;
+            schedule = !scheduled;
+            scheduled = true;
+        }
+        if (schedule) {
+            scheduler.schedule(this::flush);
+        }
+    }
+
+    private void flush() {
+        final int[] positions;
+        int count;
+        synchronized (this) {
+            // Swap the buffers, so changes can be added while the batch is handled.
+            positions = pending;
+            count = pendingCount;
+            pending = flushing;
+            pendingCount = 0;
+            scheduled = false;
+        }
+        flushing = positions;
+        Arrays.sort(positions, 0, count);
+        count = unique(positions, count);
+        if (count > 0) {
+            callback.onChanged(positions, count);
+        }
+    }
+
+    // Remove the duplicates of sorted values, return the number of unique values.
+    static int unique(final int[] values, final int count) {
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (n == 0 || values[n - 1] != values[i]) {
+                values[n++] = values[i];
+            }
+        }
+        return n;
+    }
+}
@@ -15,12 +15,14 @@ import android.net.NetworkCapabilities;
 import android.net.NetworkInfo;
 import android.net.NetworkRequest;
 import android.net.Uri;
+import android.net.wifi.SupplicantState;
 import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiNetworkSpecifier;
 import android.os.Build;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.util.Size;
@@ -66,13 +68,22 @@ public abstract class Compat {
     }
 
     public interface Impl {
-        void connect(final Context context, final String ssid, final String password, final Listener listener);
+        /**
+         * @param hidden Whether the network does not broadcast its SSID.
+         */
+        void connect(final Context context, final String ssid, final String password, final boolean hidden,
+                     final Listener listener);
 
         void disconnect(final Context context, final Listener listener);
 
         Uri createDownloadFile(final Context context, final String fileName, final boolean isVideo);
 
         Bitmap createThumbnail(final Context context, final Uri file) throws IOException;
+
+        /**
+         * Time taken by every step of the last connection, null if never connected.
+         */
+        ConnectPlanner.Timings getConnectTimings();
     }
 
 
@@ -80,49 +91,96 @@ public abstract class Compat {
 
         @SuppressLint("MissingPermission")
         @Override
-        public void connect(final Context context, final String ssid, final String password, final Listener listener) {
+        public void connect(final Context context, final String ssid, final String password, final boolean hidden,
+                            final Listener listener) {
             if (ssidConnected != null) { // already connected.
                 return;
             }
+            connectTimings = new ConnectPlanner.Timings(SystemClock::elapsedRealtime);
 
             final WifiManager wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
 
             final String quotedSSID = String.format("\"%s\"", ssid);
 
+            int networkId = -1;
             final List<WifiConfiguration> wifiConfigurations = wifiManager.getConfiguredNetworks();
             for (final WifiConfiguration c : wifiConfigurations) {
                 if (quotedSSID.equals(c.SSID)) {
-                    if (!wifiManager.removeNetwork(c.networkId)) {
-                        Log.e("Connect", "Remove network failed.");
-                        listener.onRemoveWifiNetworkError(ssid);
-                        return;
-                    }
+                    networkId = c.networkId;
                     break;
                 }
             }
-
-            final WifiConfiguration wifiConfig = new WifiConfiguration();
-            wifiConfig.SSID = quotedSSID;
-            wifiConfig.preSharedKey = String.format("\"%s\"", password);
-            final int networkId = wifiManager.addNetwork(wifiConfig);
-            if (networkId == -1) {
-                Log.e("Connect", "Add network failed.");
-                listener.onAddWifiNetworkError();
-                return;
-            }
-            if (!wifiManager.disconnect()) {
-                listener.onDisconnectWifiError();
-                return;
+            final WifiInfo wifiInfo = wifiManager.getConnectionInfo();
+            final String associatedSsid = wifiInfo != null && wifiInfo.getSupplicantState() == SupplicantState.COMPLETED
+                    ? unquote(wifiInfo.getSSID()) : null;
+            final List<ConnectPlanner.Step> steps = ConnectPlanner.plan(ssid, password, networkId, addedNetwork, associatedSsid);
+            connectTimings.mark("plan");
+            Log.i("Connect", "plan " + steps);
+
+            for (final ConnectPlanner.Step step : steps) {
+                switch (step) {
+                    case REMOVE_NETWORK:
+                        if (!wifiManager.removeNetwork(networkId)) {
+                            Log.e("Connect", "Remove network failed.");
+                            listener.onRemoveWifiNetworkError(ssid);
+                            return;
+                        }
+                        addedNetwork = null;
+                        connectTimings.mark("remove");
+                        break;
+                    case ADD_NETWORK:
+                        final WifiConfiguration wifiConfig = new WifiConfiguration();
+                        wifiConfig.SSID = quotedSSID;
+                        wifiConfig.preSharedKey = String.format("\"%s\"", password);
+                        wifiConfig.hiddenSSID = hidden;
+                        networkId = wifiManager.addNetwork(wifiConfig);
+                        if (networkId == -1) {
+                            Log.e("Connect", "Add network failed.");
+                            listener.onAddWifiNetworkError();
+                            return;
+                        }
+                        addedNetwork = new ConnectPlanner.Credentials(ssid, password, networkId);
+                        connectTimings.mark("add");
+                        break;
+                    case DISCONNECT:
+                        if (!wifiManager.disconnect()) {
+                            listener.onDisconnectWifiError();
+                            return;
+                        }
+                        connectTimings.mark("disconnect");
+                        break;
+                    case ENABLE_NETWORK:
+                        registerNetworkStateChangedReceiver(context, ssid, listener);
+                        if (!wifiManager.enableNetwork(networkId, true)) {
+                            listener.onEnableWifiNetworkError();
+                            return;
+                        }
+                        connectTimings.mark("enable");
+                        break;
+                }
             }
+            // If already associated, the sticky broadcast of the connected state comes at once.
+            registerNetworkStateChangedReceiver(context, ssid, listener);
+        }
 
+        private void registerNetworkStateChangedReceiver(final Context context, final String ssid, final Listener listener) {
             if (networkStateChangedReceiver == null) {
                 networkStateChangedReceiver = new NetworkStateChangedReceiver(ssid, listener);
                 context.registerReceiver(networkStateChangedReceiver, new IntentFilter(WifiManager.NETWORK_STATE_CHANGED_ACTION));
             }
+        }
 
-            if (!wifiManager.enableNetwork(networkId, true)) {
-                listener.onEnableWifiNetworkError();
+        // "\"ssid\"" to "ssid", null if the SSID is unknown.
+        private static String unquote(final String quotedSsid) {
+            if (quotedSsid == null || quotedSsid.length() < 2 || !quotedSsid.startsWith("\"") || !quotedSsid.endsWith("\"")) {
+                return null;
             }
+            return quotedSsid.substring(1, quotedSsid.length() - 1);
+        }
+
+        @Override
+        public ConnectPlanner.Timings getConnectTimings() {
+            return connectTimings;
         }
 
         private void connectionCleanup(final Context context) {
@@ -141,6 +199,9 @@ public abstract class Compat {
         private String ssidConnected;
         private NetworkCallback networkCallback;
         private NetworkStateChangedReceiver networkStateChangedReceiver;
+        // The network configuration added by the last connection.
+        private ConnectPlanner.Credentials addedNetwork;
+        ConnectPlanner.Timings connectTimings;
 
         private class NetworkStateChangedReceiver extends BroadcastReceiver {
             private final Listener listener;
@@ -175,6 +236,7 @@ public abstract class Compat {
                             break;
                         }
                         if (networkCallback == null) {
+                            connectTimings.mark("associate");
                             networkCallback = new NetworkCallback(context, ssid, listener);
                             connManager.requestNetwork(
                                     new NetworkRequest.Builder()
@@ -215,6 +277,8 @@ public abstract class Compat {
 
                     if (wifiInfo != null && ("\"" + ssid + "\"").equals(wifiInfo.getSSID())) {
                         ssidConnected = ssid;
+                        connectTimings.mark("available");
+                        Log.i("Connect", connectTimings.toString());
                         listener.onNetworkAvailable(network);
                     }
                 });
@@ -243,6 +307,7 @@ public abstract class Compat {
                             listener.onRemoveWifiNetworkError(ssidConnected);
                             return;
                         } else {
+                            addedNetwork = null;
                             wifiManager.reconnect();
                         }
                         break;
@@ -287,8 +352,12 @@ public abstract class Compat {
         @Override
         public Bitmap createThumbnail(final Context context, final Uri file) throws IOException {
             final MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
-            mediaMetadataRetriever.setDataSource(context, file);
-            return mediaMetadataRetriever.getFrameAtTime();
+            try {
+                mediaMetadataRetriever.setDataSource(context, file);
+                return mediaMetadataRetriever.getFrameAtTime();
+            } finally {
+                mediaMetadataRetriever.release();
+            }
         }
     }
 
@@ -296,21 +365,47 @@ public abstract class Compat {
     static class CompatImpl_Q extends CompatImpl {
 
         @Override
-        public void connect(final Context context, final String ssid, final String password, final Listener listener) {
+        public void connect(final Context context, final String ssid, final String password, final boolean hidden,
+                            final Listener listener) {
+            final ConnectivityManager cm = (ConnectivityManager) context.getSystemService(CONNECTIVITY_SERVICE);
             if (networkCallback != null) {
-                return; // Already connected.
+                if (ConnectPlanner.canReuseRequest(requested, ssid, password)) {
+                    // Already requested, deliver the network if it is available, or wait for it.
+                    // The request may be left by a destroyed service, its events go to this listener from now on.
+                    connectTimings = new ConnectPlanner.Timings(SystemClock::elapsedRealtime);
+                    networkCallback.setListener(wrap(listener));
+                    final Network network = networkCallback.getNetwork();
+                    if (network != null) {
+                        connectTimings.mark("reuse");
+                        Application.handler.post(() -> listener.onNetworkAvailable(network));
+                    }
+                    return;
+                }
+                // Another console.
+                cm.unregisterNetworkCallback(networkCallback);
+                networkCallback = null;
+                requested = null;
             }
+            connectTimings = new ConnectPlanner.Timings(SystemClock::elapsedRealtime);
             final NetworkRequest request = new NetworkRequest.Builder()
                     .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
                     .setNetworkSpecifier(
                             new WifiNetworkSpecifier.Builder()
                                     .setSsid(ssid)
                                     .setWpa2Passphrase(password)
+                                    .setIsHiddenSsid(hidden)
                                     .build()
                     )
                     .build();
-            final ConnectivityManager cm = (ConnectivityManager) context.getSystemService(CONNECTIVITY_SERVICE);
-            networkCallback = new NetworkCallback(context, new Listener() {
+            networkCallback = new NetworkCallback(context, this, wrap(listener));
+            cm.requestNetwork(request, networkCallback);
+            requested = new ConnectPlanner.Credentials(ssid, password, -1);
+            connectTimings.mark("request");
+        }
+
+        // Forgets the request when the network is gone, then calls listener.
+        private Listener wrap(final Listener listener) {
+            return new Listener() {
                 @Override
                 public void onRemoveWifiNetworkError(String ssid) {
                     listener.onRemoveWifiNetworkError(ssid);
@@ -339,16 +434,17 @@ public abstract class Compat {
                 @Override
                 public void onNetworkUnavailable() {
                     networkCallback = null;
+                    requested = null;
                     listener.onNetworkUnavailable();
                 }
 
                 @Override
                 public void onNetworkLost() {
                     networkCallback = null;
+                    requested = null;
                     listener.onNetworkLost();
                 }
-            });
-            cm.requestNetwork(request, networkCallback);
+            };
         }
 
         @Override
@@ -361,18 +457,26 @@ public abstract class Compat {
                     listener.onNetworkUnavailable();
                 }
                 networkCallback = null;
+                requested = null;
             }
         }
 
         private NetworkCallback networkCallback;
+        // The credentials networkCallback is requested with.
+        private ConnectPlanner.Credentials requested;
 
         private static class NetworkCallback extends ConnectivityManager.NetworkCallback {
             private final Context context;
-            private final Listener listener;
+            private final CompatImpl impl;
+            // Replaced when the request is reused, accessed on main thread.
+            private Listener listener;
             private boolean networkAvailable;
+            // The available network, accessed on main thread.
+            private Network network;
 
-            public NetworkCallback(final Context context, final Listener listener) {
+            public NetworkCallback(final Context context, final CompatImpl impl, final Listener listener) {
                 this.context = context;
+                this.impl = impl;
                 this.listener = listener;
             }
 
@@ -385,6 +489,9 @@ public abstract class Compat {
                         return;
                     }
                     networkAvailable = true;
+                    this.network = network;
+                    impl.connectTimings.mark("available");
+                    Log.i("Connect", impl.connectTimings.toString());
                     listener.onNetworkAvailable(network);
                 });
             }
@@ -393,19 +500,35 @@ public abstract class Compat {
             public void onUnavailable() {
                 super.onUnavailable();
                 networkAvailable = false;
-                Application.handler.post(listener::onNetworkUnavailable);
+                Application.handler.post(() -> {
+                    network = null;
+                    listener.onNetworkUnavailable();
+                });
             }
 
             @Override
             public void onLost(@NonNull Network network) {
                 super.onLost(network);
                 networkAvailable = false;
-                Application.handler.post(listener::onNetworkLost);
+                Application.handler.post(() -> {
+                    this.network = null;
+                    listener.onNetworkLost();
+                });
+            }
+
+            // Call on main thread.
+            public void setListener(final Listener listener) {
+                this.listener = listener;
             }
 
             public boolean isNetworkAvailable() {
                 return networkAvailable;
             }
+
+            // Call on main thread.
+            public Network getNetwork() {
+                return network;
+            }
         }
 
         @Override
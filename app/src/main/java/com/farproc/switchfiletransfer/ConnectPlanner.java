@@ -0,0 +1,148 @@
+package com.farproc.switchfiletransfer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides which Wi-Fi operations a connection to the console needs, so the work already done is not redone.
+ * <p>
+ * Removing, adding and enabling a network configuration makes the phone re-associate, which takes
+ * most of the time from scanning the QR code to the first byte. A configuration added before with the same
+ * credentials is reused, nothing is done if the phone is already associated with the console,
+ * and the phone is disconnected only from another network.
+ */
+class ConnectPlanner {
+    /**
+     * The operations of a connection before Q, in the order to run.
+     */
+    enum Step {
+        REMOVE_NETWORK,
+        ADD_NETWORK,
+        DISCONNECT,
+        ENABLE_NETWORK,
+    }
+
+    /**
+     * The credentials a network was added or requested with.
+     */
+    static class Credentials {
+        final String ssid;
+        final String password;
+        // Id of the network configuration, -1 if there is none.
+        final int networkId;
+
+        Credentials(final String ssid, final String password, final int networkId) {
+            this.ssid = ssid;
+            this.password = password;
+            this.networkId = networkId;
+        }
+
+        boolean matches(final String ssid, final String password) {
+            return this.ssid.equals(ssid) && this.password.equals(password);
+        }
+    }
+
+    private ConnectPlanner() {
+    }
+
+    /**
+     * Plan a connection with a network configuration, before Q.
+     *
+     * @param configuredNetworkId Id of the configured network of {@code ssid}, -1 if there is none.
+     * @param added               The network added by the last connection, null if none.
+     *                            A configuration added by others can't be reused, its password can't be read.
+     * @param associatedSsid      SSID of the network the phone is associated with, null if none.
+     */
+    static List<Step> plan(final String ssid, final String password, final int configuredNetworkId,
+                           final Credentials added, final String associatedSsid) {
+        final List<Step> steps = new ArrayList<>(4);
+        if (ssid.equals(associatedSsid) && configuredNetworkId != -1) {
+            // The console generates the SSID, being associated proves the configuration works.
+            return steps;
+        }
+        final boolean reuse = configuredNetworkId != -1 && added != null
+                && added.networkId == configuredNetworkId && added.matches(ssid, password);
+        if (!reuse) {
+            if (configuredNetworkId != -1) {
+                steps.add(Step.REMOVE_NETWORK);
+            }
+            steps.add(Step.ADD_NETWORK);
+        }
+        if (associatedSsid != null && !ssid.equals(associatedSsid)) {
+            steps.add(Step.DISCONNECT);
+        }
+        steps.add(Step.ENABLE_NETWORK);
+        return steps;
+    }
+
+    /**
+     * Whether the network requested with {@code requested} can be used for a connection with
+     * {@code ssid} and {@code password}, instead of a new request, from Q.
+     *
+     * @param requested The credentials of the active request, null if none.
+     */
+    static boolean canReuseRequest(final Credentials requested, final String ssid, final String password) {
+        return requested != null && requested.matches(ssid, password);
+    }
+
+    /**
+     * Time taken by every step of a connection.
+     * <p>
+     * This class is not thread safe.
+     */
+    static class Timings {
+        private final LongSupplier clock;
+        private final long start;
+        private long last;
+        private final List<String> steps = new ArrayList<>();
+        private final List<Long> durations = new ArrayList<>();
+
+        /**
+         * @param clock Current time in milliseconds.
+         */
+        Timings(final LongSupplier clock) {
+            this.clock = clock;
+            start = last = clock.getAsLong();
+        }
+
+        /**
+         * Record that {@code step} is done, it took the time since the previous step.
+         */
+        void mark(final String step) {
+            final long now = clock.getAsLong();
+            steps.add(step);
+            durations.add(now - last);
+            last = now;
+        }
+
+        /**
+         * Time since the start.
+         */
+        long getTotalMs() {
+            return last - start;
+        }
+
+        int getStepCount() {
+            return steps.size();
+        }
+
+        String getStep(final int i) {
+            return steps.get(i);
+        }
+
+        long getDurationMs(final int i) {
+            return durations.get(i);
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder s = new StringBuilder();
+            for (int i = 0; i < steps.size(); i++) {
+                s.append(steps.get(i)).append(' ').append(durations.get(i)).append("ms, ");
+            }
+            return s.append(String.format(Locale.US, "total %dms", getTotalMs())).toString();
+        }
+    }
+}
@@ -0,0 +1,571 @@
+package com.farproc.switchfiletransfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.SocketFactory;
+
+/**
+ * A minimal HTTP/1.1 client to talk to the console.
+ * <p>
+ * Connections are kept alive and reused by later requests, so the TCP handshake and slow start
+ * are paid once per connection instead of once per file. Up to {@code maxIdleConnections} idle
+ * connections are kept. HEAD requests can be pipelined on one connection once the server is known
+ * to keep connections alive, see {@link #pipeline(List)}.
+ * <p>
+ * This class is thread safe.
+ */
+class ConsoleHttpClient implements Closeable {
+    static final int CONNECT_TIMEOUT = 5000;
+    static final int READ_TIMEOUT = 10000;
+    // Idle connections older than this are not reused, the server may have closed them.
+    static final long KEEP_ALIVE_MS = 15000;
+    // Max number of requests in flight on a pipelined connection.
+    static final int PIPELINE_DEPTH = 16;
+
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+
+    /**
+     * A request to the console.
+     */
+    static class Request {
+        final String method;
+        // Path and query, e.g. "/img/a.jpg".
+        final String target;
+        final Map<String, String> headers = new LinkedHashMap<>();
+
+        private Request(final String method, final String target) {
+            this.method = method;
+            this.target = target;
+        }
+
+        static Request get(final String target) {
+            return new Request("GET", target);
+        }
+
+        static Request head(final String target) {
+            return new Request("HEAD", target);
+        }
+
+        Request header(final String name, final String value) {
+            headers.put(name, value);
+            return this;
+        }
+    }
+
+    /**
+     * A response from the console.
+     * Closing the response returns the connection to the pool if the body is read to the end,
+     * or closes the connection otherwise.
+     */
+    static class Response implements Closeable {
+        final int code;
+        // Keys are lower case.
+        private final Map<String, String> headers;
+        private final InputStream body;
+        private Connection connection;
+        private final boolean keepAlive;
+        private final ConsoleHttpClient client;
+
+        private Response(final ConsoleHttpClient client, final Connection connection, final int code,
+                         final Map<String, String> headers, final boolean keepAlive, final boolean hasBody) {
+            this.client = client;
+            this.connection = connection;
+            this.code = code;
+            this.headers = headers;
+            this.keepAlive = keepAlive;
+            if (!hasBody) {
+                body = new BodyStream(new ByteArrayInputStream(new byte[0]), 0);
+            } else if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+                body = new ChunkedStream(connection.in);
+            } else {
+                body = new BodyStream(connection.in, getContentLength());
+            }
+        }
+
+        /**
+         * @return Value of header {@code name}(case insensitive), or null.
+         */
+        String header(final String name) {
+            return headers.get(name.toLowerCase(Locale.US));
+        }
+
+        /**
+         * @return Content-Length, or -1 if unknown.
+         */
+        long getContentLength() {
+            final String value = headers.get("content-length");
+            if (value == null) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * The body. Closing it closes this response.
+         */
+        InputStream body() {
+            return body;
+        }
+
+        // Forget the connection, so closing this response does not touch it.
+        private synchronized void detach() {
+            connection = null;
+        }
+
+        @Override
+        public void close() {
+            final Connection conn;
+            synchronized (this) {
+                conn = connection;
+                connection = null;
+            }
+            if (conn == null) {
+                return;
+            }
+            if (keepAlive && ((Completable) body).isCompleted()) {
+                client.release(conn);
+            } else {
+                conn.close();
+            }
+        }
+
+        private interface Completable {
+            // Whether the body is read to the end.
+            boolean isCompleted();
+        }
+
+        // Body with a known length, or until the connection is closed if the length is -1.
+        private class BodyStream extends InputStream implements Completable {
+            private final InputStream in;
+            private long remaining;
+
+            BodyStream(final InputStream in, final long length) {
+                this.in = in;
+                this.remaining = length;
+            }
+
+            @Override
+            public int read() throws IOException {
+                final byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                if (remaining == 0) {
+                    return -1;
+                }
+                final int n = in.read(b, off, remaining < 0 ? len : (int) Math.min(len, remaining));
+                if (n == -1) {
+                    if (remaining > 0) {
+                        throw new EOFException("connection closed with " + remaining + " bytes remaining");
+                    }
+                    remaining = 0;
+                    return -1;
+                }
+                if (remaining > 0) {
+                    remaining -= n;
+                }
+                return n;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return remaining < 0 ? in.available() : (int) Math.min(in.available(), remaining);
+            }
+
+            @Override
+            public boolean isCompleted() {
+                return remaining == 0;
+            }
+
+            @Override
+            public void close() {
+                Response.this.close();
+            }
+        }
+
+        private class ChunkedStream extends InputStream implements Completable {
+            private final InputStream in;
+            // Bytes remaining in the current chunk, -1 before the first chunk.
+            private long remaining = -1;
+            private boolean completed;
+
+            ChunkedStream(final InputStream in) {
+                this.in = in;
+            }
+
+            @Override
+            public int read() throws IOException {
+                final byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                if (completed) {
+                    return -1;
+                }
+                if (remaining <= 0) {
+                    if (remaining == 0) {
+                        readLine(in); // CRLF after the chunk.
+                    }
+                    final String line = readLine(in);
+                    final int semicolon = line.indexOf(';');
+                    try {
+                        remaining = Long.parseLong((semicolon == -1 ? line : line.substring(0, semicolon)).trim(), 16);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("bad chunk size: " + line);
+                    }
+                    if (remaining == 0) {
+                        // Skip trailers.
+                        //noinspection StatementWithEmptyBody
+                        while (!readLine(in).isEmpty()) {
+                        }
+                        completed = true;
+                        return -1;
+                    }
+                }
+                final int n = in.read(b, off, (int) Math.min(len, remaining));
+                if (n == -1) {
+                    throw new EOFException("connection closed in chunk");
+                }
+                remaining -= n;
+                return n;
+            }
+
+            @Override
+            public boolean isCompleted() {
+                return completed;
+            }
+
+            @Override
+            public void close() {
+                Response.this.close();
+            }
+        }
+    }
+
+    private static class Connection {
+        final Socket socket;
+        final BufferedInputStream in;
+        final OutputStream out;
+        long idleSince;
+
+        Connection(final Socket socket) throws IOException {
+            this.socket = socket;
+            in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+            out = new BufferedOutputStream(socket.getOutputStream(), 4 * 1024);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final SocketFactory socketFactory;
+    private final int receiveBufferSize;
+    private final int maxIdleConnections;
+
+    private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+    private boolean closed;
+    // Whether the server is known to keep connections alive. Pipelining is used only then.
+    private volatile boolean keepAliveSeen;
+    private volatile boolean pipeliningBroken;
+
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong connectionsReused = new AtomicLong();
+    private final AtomicLong pipelinedRequests = new AtomicLong();
+
+    ConsoleHttpClient(final String host, final int port, final SocketFactory socketFactory, final int maxIdleConnections) {
+        this(host, port, socketFactory, 0, maxIdleConnections);
+    }
+
+    /**
+     * @param socketFactory     Creates the sockets, e.g. bound to the network of the console.
+     * @param receiveBufferSize SO_RCVBUF of the sockets, 0 for the system default. It is set before connecting,
+     *                          so the TCP window scale is chosen for it.
+     */
+    ConsoleHttpClient(final String host, final int port, final SocketFactory socketFactory, final int receiveBufferSize,
+                      final int maxIdleConnections) {
+        this.host = host;
+        this.port = port;
+        this.socketFactory = socketFactory;
+        this.receiveBufferSize = receiveBufferSize;
+        this.maxIdleConnections = maxIdleConnections;
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    /**
+     * Number of new connections made.
+     */
+    long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    /**
+     * Number of requests sent on reused connections.
+     */
+    long getConnectionsReused() {
+        return connectionsReused.get();
+    }
+
+    /**
+     * Number of requests sent in pipelines.
+     */
+    long getPipelinedRequests() {
+        return pipelinedRequests.get();
+    }
+
+    /**
+     * Send {@code request} and read the response head. The caller must close the response.
+     */
+    Response execute(final Request request) throws IOException {
+        Connection conn = acquireIdle();
+        if (conn != null) {
+            try {
+                return send(conn, request);
+            } catch (IOException e) {
+                // The server may have closed the idle connection, try once on a new one.
+                conn.close();
+            }
+        }
+        conn = connect();
+        try {
+            return send(conn, request);
+        } catch (IOException e) {
+            conn.close();
+            throw e;
+        }
+    }
+
+    private Response send(final Connection conn, final Request request) throws IOException {
+        writeRequest(conn.out, request);
+        conn.out.flush();
+        return readResponse(conn, request);
+    }
+
+    /**
+     * Send HEAD {@code requests} pipelined on one connection if the server keeps connections alive,
+     * or one by one otherwise.
+     * The responses have no body and need not be closed.
+     *
+     * @return Responses in the order of requests.
+     */
+    List<Response> pipeline(final List<Request> requests) throws IOException {
+        for (final Request request : requests) {
+            if (!"HEAD".equals(request.method)) {
+                throw new IllegalArgumentException("only HEAD requests can be pipelined");
+            }
+        }
+        final List<Response> responses = new ArrayList<>(requests.size());
+        while (responses.size() < requests.size()) {
+            if (!keepAliveSeen || pipeliningBroken) {
+                try (Response response = execute(requests.get(responses.size()))) {
+                    responses.add(response);
+                }
+                continue;
+            }
+            final List<Request> batch = requests.subList(responses.size(),
+                    Math.min(requests.size(), responses.size() + PIPELINE_DEPTH));
+            Connection conn = acquireIdle();
+            final boolean reused = conn != null;
+            if (conn == null) {
+                conn = connect();
+            }
+            final int answered = responses.size();
+            try {
+                for (final Request request : batch) {
+                    writeRequest(conn.out, request);
+                }
+                conn.out.flush();
+                pipelinedRequests.addAndGet(batch.size());
+                Response last = null;
+                for (int i = 0; i < batch.size(); i++) {
+                    if (last != null) {
+                        last.detach();
+                    }
+                    last = readResponse(conn, batch.get(i));
+                    responses.add(last);
+                    if (!last.keepAlive) {
+                        // The rest are dropped by the server.
+                        break;
+                    }
+                }
+                // Release or close the connection.
+                last.close();
+            } catch (IOException e) {
+                conn.close();
+                if (responses.size() > answered) {
+                    // Failed after a response of the batch, the server can't pipeline. Go on one by one.
+                    pipeliningBroken = true;
+                } else if (!reused) {
+                    throw e;
+                }
+                // The server may have closed the idle connection, the batch is sent again on another.
+            }
+        }
+        return responses;
+    }
+
+    private void writeRequest(final OutputStream out, final Request request) throws IOException {
+        final StringBuilder sb = new StringBuilder(128);
+        sb.append(request.method).append(' ').append(request.target).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(host);
+        if (port != 80) {
+            sb.append(':').append(port);
+        }
+        sb.append("\r\n");
+        for (final Map.Entry<String, String> header : request.headers.entrySet()) {
+            sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        sb.append("\r\n");
+        out.write(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private Response readResponse(final Connection conn, final Request request) throws IOException {
+        final String statusLine = readLine(conn.in);
+        // HTTP/1.1 200 OK
+        final String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("bad status line: " + statusLine);
+        }
+        final int code;
+        try {
+            code = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("bad status line: " + statusLine);
+        }
+        final Map<String, String> headers = new HashMap<>();
+        String line;
+        while (!(line = readLine(conn.in)).isEmpty()) {
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+            }
+        }
+        final String connection = headers.get("connection");
+        final boolean keepAlive = "HTTP/1.1".equals(parts[0])
+                ? !"close".equalsIgnoreCase(connection)
+                : "keep-alive".equalsIgnoreCase(connection);
+        final boolean hasBody = !"HEAD".equals(request.method) && code != 204 && code != 304 && code / 100 != 1;
+        // A body without length and not chunked ends when the connection is closed.
+        final boolean reusable = keepAlive && (!hasBody || headers.containsKey("content-length")
+                || "chunked".equalsIgnoreCase(headers.get("transfer-encoding")));
+        if (reusable) {
+            keepAliveSeen = true;
+        }
+        return new Response(this, conn, code, headers, reusable, hasBody);
+    }
+
+    // Read a line ended with CRLF(or LF), without the line end.
+    private static String readLine(final InputStream in) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                final int length = sb.length();
+                if (length > 0 && sb.charAt(length - 1) == '\r') {
+                    sb.setLength(length - 1);
+                }
+                return sb.toString();
+            }
+            if (sb.length() >= MAX_LINE_LENGTH) {
+                throw new IOException("line too long");
+            }
+            sb.append((char) c);
+        }
+        throw new EOFException("connection closed");
+    }
+
+    private Connection connect() throws IOException {
+        final Socket socket = socketFactory.createSocket();
+        try {
+            socket.setTcpNoDelay(true);
+            if (receiveBufferSize > 0) {
+                socket.setReceiveBufferSize(receiveBufferSize);
+            }
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            socket.setSoTimeout(READ_TIMEOUT);
+            final Connection conn = new Connection(socket);
+            connectionsOpened.incrementAndGet();
+            return conn;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private synchronized Connection acquireIdle() {
+        final long now = System.currentTimeMillis();
+        Connection conn;
+        while ((conn = idle.pollLast()) != null) {
+            if (now - conn.idleSince < KEEP_ALIVE_MS) {
+                connectionsReused.incrementAndGet();
+                return conn;
+            }
+            conn.close();
+        }
+        return null;
+    }
+
+    private void release(final Connection conn) {
+        synchronized (this) {
+            if (!closed && idle.size() < maxIdleConnections) {
+                conn.idleSince = System.currentTimeMillis();
+                idle.addLast(conn);
+                return;
+            }
+        }
+        conn.close();
+    }
+
+    /**
+     * Close all idle connections. Connections in use are closed when their responses are closed.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            for (final Connection conn : idle) {
+                conn.close();
+            }
+            idle.clear();
+        }
+    }
+}
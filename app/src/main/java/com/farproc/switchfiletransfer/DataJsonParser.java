@@ -0,0 +1,261 @@
+package com.farproc.switchfiletransfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A streaming parser of data.json from the console:
+ * <pre>
+ * {"ConsoleName": "...", "FileNames": ["a.jpg", "b.mp4", ...]}
+ * </pre>
+ * Values are handed to a {@link Handler} as soon as they are parsed, no document is built in memory,
+ * so the consumer can start working on the first files before the rest arrive.
+ * Other members of the object are skipped.
+ */
+class DataJsonParser {
+    /**
+     * Receives parsed values on the parsing thread.
+     */
+    interface Handler {
+        void onConsoleName(String consoleName);
+
+        void onFileName(String fileName);
+    }
+
+    /**
+     * Thrown if data.json is not valid JSON or does not match the schema.
+     */
+    static class SyntaxException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        SyntaxException(final String message) {
+            super(message);
+        }
+    }
+
+    private final Reader reader;
+    private final Handler handler;
+    private final char[] buffer = new char[8 * 1024];
+    private int pos;
+    private int limit;
+    // Reused to build every string.
+    private final StringBuilder sb = new StringBuilder();
+
+    private DataJsonParser(final InputStream in, final Handler handler) {
+        this.reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+        this.handler = handler;
+    }
+
+    /**
+     * Parse data.json from {@code in}. {@code in} is not closed.
+     */
+    static void parse(final InputStream in, final Handler handler) throws IOException {
+        new DataJsonParser(in, handler).parseDocument();
+    }
+
+    private void parseDocument() throws IOException {
+        expect('{');
+        if (nextNonWhitespace() == '}') {
+            return;
+        }
+        pos--;
+        while (true) {
+            expect('"');
+            final String key = readString();
+            expect(':');
+            if ("ConsoleName".equals(key)) {
+                final int c = nextNonWhitespace();
+                if (c == '"') {
+                    handler.onConsoleName(readString());
+                } else {
+                    pos--;
+                    skipValue();
+                }
+            } else if ("FileNames".equals(key)) {
+                parseFileNames();
+            } else {
+                skipValue();
+            }
+            final int c = nextNonWhitespace();
+            if (c == '}') {
+                return;
+            }
+            if (c != ',') {
+                throw syntaxError("expect , or }");
+            }
+        }
+    }
+
+    private void parseFileNames() throws IOException {
+        expect('[');
+        if (nextNonWhitespace() == ']') {
+            return;
+        }
+        pos--;
+        while (true) {
+            expect('"');
+            handler.onFileName(readString());
+            final int c = nextNonWhitespace();
+            if (c == ']') {
+                return;
+            }
+            if (c != ',') {
+                throw syntaxError("expect , or ]");
+            }
+        }
+    }
+
+    // Read the rest of a string after the opening quote.
+    private String readString() throws IOException {
+        sb.setLength(0);
+        while (true) {
+            if (pos == limit && !fill()) {
+                throw syntaxError("unterminated string");
+            }
+            // Copy the run of plain characters at once.
+            final int start = pos;
+            while (pos < limit) {
+                final char c = buffer[pos];
+                if (c == '"' || c == '\\') {
+                    break;
+                }
+                pos++;
+            }
+            sb.append(buffer, start, pos - start);
+            if (pos == limit) {
+                continue;
+            }
+            if (buffer[pos++] == '"') {
+                return sb.toString();
+            }
+            sb.append(readEscaped());
+        }
+    }
+
+    // Read an escape sequence after the backslash.
+    private char readEscaped() throws IOException {
+        final int c = read();
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                return (char) c;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    final int digit = Character.digit(read(), 16);
+                    if (digit == -1) {
+                        throw syntaxError("bad \\u escape");
+                    }
+                    value = (value << 4) | digit;
+                }
+                return (char) value;
+            default:
+                throw syntaxError("bad escape");
+        }
+    }
+
+    // Skip any JSON value.
+    private void skipValue() throws IOException {
+        final int c = nextNonWhitespace();
+        switch (c) {
+            case '"':
+                skipString();
+                return;
+            case '{':
+            case '[':
+                int depth = 1;
+                while (depth > 0) {
+                    final int d = read();
+                    if (d == '"') {
+                        skipString();
+                    } else if (d == '{' || d == '[') {
+                        depth++;
+                    } else if (d == '}' || d == ']') {
+                        depth--;
+                    }
+                }
+                return;
+            default:
+                // Number, true, false or null.
+                if (c == ',' || c == '}' || c == ']' || c == ':') {
+                    throw syntaxError("expect value");
+                }
+                while (true) {
+                    if (pos == limit && !fill()) {
+                        return;
+                    }
+                    final char d = buffer[pos];
+                    if (d == ',' || d == '}' || d == ']' || isWhitespace(d)) {
+                        return;
+                    }
+                    pos++;
+                }
+        }
+    }
+
+    private void skipString() throws IOException {
+        while (true) {
+            final int c = read();
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                read();
+            }
+        }
+    }
+
+    private void expect(final char expected) throws IOException {
+        if (nextNonWhitespace() != expected) {
+            throw syntaxError("expect " + expected);
+        }
+    }
+
+    private static boolean isWhitespace(final int c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (isWhitespace(c));
+        return c;
+    }
+
+    // Read a char, throw at EOF.
+    private int read() throws IOException {
+        if (pos == limit && !fill()) {
+            throw syntaxError("unexpected end");
+        }
+        return buffer[pos++];
+    }
+
+    private boolean fill() throws IOException {
+        final int n = reader.read(buffer, 0, buffer.length);
+        if (n <= 0) {
+            return false;
+        }
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    private SyntaxException syntaxError(final String message) {
+        return new SyntaxException("data.json: " + message);
+    }
+}
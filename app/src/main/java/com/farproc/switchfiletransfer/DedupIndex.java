@@ -0,0 +1,214 @@
+package com.farproc.switchfiletransfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the files downloaded in all sessions, so a file shared again is not downloaded again.
+ * <p>
+ * A file is identified by the console name, the file name and the size.
+ * The content hash computed while the file was downloaded is kept with the entry, if there is one.
+ * <p>
+ * The index is kept in memory and appended to a file, one record per entry, in
+ * the same way as {@link TransferJournal}. It is loaded on the first use, so call it off main thread.
+ * The file is rewritten when most of its records are stale.
+ * <p>
+ * This class is thread safe.
+ */
+class DedupIndex {
+    private static final int MAGIC = 0x4e534931; // "NSI1"
+    // The first byte of every record, to tell the end of file from a torn record.
+    private static final int RECORD = 1;
+
+    /**
+     * A downloaded file.
+     */
+    static class Entry {
+        final String consoleName;
+        final String fileName;
+        final long size;
+        // Content hash, empty if unknown.
+        final byte[] hash;
+        // Where the file is saved.
+        final String fileUri;
+
+        Entry(final String consoleName, final String fileName, final long size, final byte[] hash, final String fileUri) {
+            this.consoleName = consoleName;
+            this.fileName = fileName;
+            this.size = size;
+            this.hash = hash;
+            this.fileUri = fileUri;
+        }
+    }
+
+    private final File file;
+    private Map<String, Entry> entries;
+    private DataOutputStream out;
+    // Number of records in the file, including the stale ones.
+    private int records;
+
+    DedupIndex(final File file) {
+        this.file = file;
+    }
+
+    private static String key(final String consoleName, final String fileName) {
+        return consoleName + '/' + fileName;
+    }
+
+    /**
+     * Find the file downloaded from {@code consoleName} with the same name and size.
+     *
+     * @return Null if not found.
+     */
+    synchronized Entry find(final String consoleName, final String fileName, final long size) {
+        load();
+        final Entry entry = entries.get(key(consoleName, fileName));
+        return entry != null && entry.size == size ? entry : null;
+    }
+
+    /**
+     * Split {@code fileNames} into the files downloaded from {@code consoleName} before, whatever their sizes,
+     * and the new ones. One lookup per name.
+     *
+     * @param uris  Receives the saved Uri of every file downloaded before, null for new files.
+     * @param sizes Receives the size of every file downloaded before, -1 for new files.
+     * @return Number of new files.
+     */
+    synchronized int diff(final String consoleName, final List<String> fileNames, final String[] uris, final long[] sizes) {
+        load();
+        int newFiles = 0;
+        for (int i = 0; i < fileNames.size(); i++) {
+            final Entry entry = entries.get(key(consoleName, fileNames.get(i)));
+            if (entry == null) {
+                uris[i] = null;
+                sizes[i] = -1;
+                newFiles++;
+            } else {
+                uris[i] = entry.fileUri;
+                sizes[i] = entry.size;
+            }
+        }
+        return newFiles;
+    }
+
+    /**
+     * Add a downloaded file, replacing the entry of the same name.
+     */
+    synchronized void put(final Entry entry) throws IOException {
+        load();
+        entries.put(key(entry.consoleName, entry.fileName), entry);
+        append(entry);
+    }
+
+    /**
+     * Remove the entry of a file which is not there anymore.
+     */
+    synchronized void remove(final Entry entry) throws IOException {
+        load();
+        final String key = key(entry.consoleName, entry.fileName);
+        if (entries.get(key) != entry) {
+            return;
+        }
+        entries.remove(key);
+        // A removed entry is written as an entry of size -1.
+        append(new Entry(entry.consoleName, entry.fileName, -1, new byte[0], ""));
+    }
+
+    synchronized int size() {
+        load();
+        return entries.size();
+    }
+
+    private void append(final Entry entry) throws IOException {
+        if (out == null) {
+            if (records > 2 * entries.size() + 64) {
+                rewrite();
+            } else {
+                final boolean exists = file.length() > 0;
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+                if (!exists) {
+                    out.writeInt(MAGIC);
+                }
+            }
+        }
+        write(out, entry);
+        out.flush();
+        records++;
+    }
+
+    private static void write(final DataOutputStream out, final Entry entry) throws IOException {
+        out.writeByte(RECORD);
+        out.writeUTF(entry.consoleName);
+        out.writeUTF(entry.fileName);
+        out.writeLong(entry.size);
+        out.writeByte(entry.hash.length);
+        out.write(entry.hash);
+        out.writeUTF(entry.fileUri);
+    }
+
+    // Write the live entries aside and rename, and keep appending to the new file.
+    private void rewrite() throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            stream.writeInt(MAGIC);
+            for (final Entry entry : entries.values()) {
+                write(stream, entry);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("can't rename " + tmp);
+        }
+        records = entries.size();
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    private void load() {
+        if (entries != null) {
+            return;
+        }
+        entries = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                records = Integer.MAX_VALUE / 2;
+                return;
+            }
+            while (in.read() == RECORD) {
+                final Entry entry;
+                try {
+                    final String consoleName = in.readUTF();
+                    final String fileName = in.readUTF();
+                    final long size = in.readLong();
+                    final byte[] hash = new byte[in.readUnsignedByte()];
+                    in.readFully(hash);
+                    entry = new Entry(consoleName, fileName, size, hash, in.readUTF());
+                } catch (EOFException e) {
+                    // Torn record at the end, rewrite the file before appending to it.
+                    records = Integer.MAX_VALUE / 2;
+                    break;
+                }
+                records++;
+                if (entry.size < 0) {
+                    entries.remove(key(entry.consoleName, entry.fileName));
+                } else {
+                    entries.put(key(entry.consoleName, entry.fileName), entry);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // No file downloaded yet.
+        } catch (IOException e) {
+            // Keep the entries read so far, the file is rewritten on the next change.
+            records = Integer.MAX_VALUE / 2;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.farproc.switchfiletransfer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Files kept in a directory up to a total size, the least recently used ones are deleted first.
+ * <p>
+ * Every key is saved in a file named by the hash of the key. The use order is kept in memory,
+ * it is loaded from the last modified times of the files on the first use, so call it off main thread.
+ * <p>
+ * This class is thread safe.
+ */
+class DiskCache {
+    private static final String TMP_SUFFIX = ".tmp";
+
+    interface Writer {
+        void write(OutputStream out) throws IOException;
+    }
+
+    private final File dir;
+    private final long maxBytes;
+    // File name -> length, in use order.
+    private LinkedHashMap<String, Long> files;
+    private long bytes;
+
+    DiskCache(final File dir, final long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return The file saved for {@code key}, or null if there is none.
+     * The file may be deleted by a later {@link #put}, so be prepared for failing to read it.
+     */
+    synchronized File get(final String key) {
+        load();
+        final String name = fileName(key);
+        if (files.get(name) == null) {
+            return null;
+        }
+        final File file = new File(dir, name);
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Save a file for {@code key} with {@code writer}, replacing the old one.
+     * The file is written aside and renamed, so {@link #get} never returns a partly written file.
+     */
+    void put(final String key, final Writer writer) throws IOException {
+        synchronized (this) {
+            load();
+        }
+        final String name = fileName(key);
+        final File tmp = File.createTempFile(name, TMP_SUFFIX, dir);
+        try {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+                writer.write(out);
+            }
+            final long length = tmp.length();
+            synchronized (this) {
+                if (!tmp.renameTo(new File(dir, name))) {
+                    throw new IOException("can't rename " + tmp);
+                }
+                final Long old = files.put(name, length);
+                bytes += length - (old == null ? 0 : old);
+                trim();
+            }
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Total length of the files.
+     */
+    synchronized long size() {
+        load();
+        return bytes;
+    }
+
+    private void trim() {
+        final Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            final Map.Entry<String, Long> entry = it.next();
+            //noinspection ResultOfMethodCallIgnored
+            new File(dir, entry.getKey()).delete();
+            bytes -= entry.getValue();
+            it.remove();
+        }
+    }
+
+    private void load() {
+        if (files != null) {
+            return;
+        }
+        files = new LinkedHashMap<>(16, 0.75f, true);
+        //noinspection ResultOfMethodCallIgnored
+        dir.mkdirs();
+        final File[] list = dir.listFiles();
+        if (list == null) {
+            return;
+        }
+        Arrays.sort(list, Comparator.comparingLong(File::lastModified));
+        for (final File file : list) {
+            if (file.getName().endsWith(TMP_SUFFIX)) {
+                // Left by a crash while writing.
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                continue;
+            }
+            files.put(file.getName(), file.length());
+            bytes += file.length();
+        }
+        trim();
+    }
+
+    private static String fileName(final String key) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final StringBuilder name = new StringBuilder(40);
+        for (final byte b : digest.digest(key.getBytes(StandardCharsets.UTF_8))) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return name.toString();
+    }
+}
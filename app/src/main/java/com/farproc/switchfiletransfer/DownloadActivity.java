@@ -4,14 +4,18 @@ import android.app.NotificationManager;
 import android.content.ActivityNotFoundException;
 import android.content.ComponentName;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.util.Log;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
+import android.widget.ProgressBar;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
@@ -21,11 +25,19 @@ import androidx.recyclerview.widget.DividerItemDecoration;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
-import java.io.IOException;
+import java.util.List;
 import java.util.Objects;
 
 public class DownloadActivity extends AppCompatActivity {
 
+    // Thumbnails of this number of screens ahead of the scroll direction are prefetched.
+    private static final int PREFETCH_SCREENS = 1;
+    // Max prefetches running at the same time, while downloading and not.
+    private static final int PREFETCH_LIMIT_DOWNLOADING = 1;
+    private static final int PREFETCH_LIMIT_IDLE = 2;
+
+    private ThumbnailLoader<Bitmap> thumbnailLoader;
+
     private RecyclerView list;
     private TransferService.DownloadState downloadState;
 
@@ -34,6 +46,8 @@ public class DownloadActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         Objects.requireNonNull(getSupportActionBar()).setDisplayHomeAsUpEnabled(true);
 
+        thumbnailLoader = Application.getThumbnailLoader(this);
+
         setContentView(R.layout.activity_download);
         list = findViewById(R.id.list);
         list.setHasFixedSize(true);
@@ -42,9 +56,71 @@ public class DownloadActivity extends AppCompatActivity {
         final DividerItemDecoration itemDecoration = new DividerItemDecoration(this, DividerItemDecoration.VERTICAL);
         list.addItemDecoration(itemDecoration);
         list.setDescendantFocusability(ViewGroup.FOCUS_AFTER_DESCENDANTS);
+        list.addOnScrollListener(new PrefetchScrollListener());
         setContentView(list);
     }
 
+    @Override
+    protected void onDestroy() {
+        Log.i("thumbnail", thumbnailLoader.getStats().toString());
+        thumbnailLoader.cancelPrefetches();
+        // Recycle all rows, which cancels their thumbnail requests.
+        list.setAdapter(null);
+        super.onDestroy();
+    }
+
+    // Prefetch the thumbnails of the next screenful in the scroll direction.
+    private class PrefetchScrollListener extends RecyclerView.OnScrollListener {
+        // 1 scrolling down, -1 up, 0 not scrolled yet.
+        private int direction;
+        // The farthest position prefetched in the direction.
+        private int prefetchedTo = RecyclerView.NO_POSITION;
+
+        @Override
+        public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+            if (dy == 0 || downloadState == null) {
+                return;
+            }
+            final int newDirection = dy > 0 ? 1 : -1;
+            if (newDirection != direction) {
+                // The queued prefetches are behind now.
+                thumbnailLoader.cancelPrefetches();
+                direction = newDirection;
+                prefetchedTo = RecyclerView.NO_POSITION;
+            }
+            final LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+            final int first = layoutManager.findFirstVisibleItemPosition();
+            final int last = layoutManager.findLastVisibleItemPosition();
+            if (first == RecyclerView.NO_POSITION) {
+                return;
+            }
+            final int distance = (last - first + 1) * PREFETCH_SCREENS;
+            final int count = downloadState.items.size();
+            if (direction > 0) {
+                final int from = Math.max(last + 1, prefetchedTo + 1);
+                final int to = Math.min(count - 1, last + distance);
+                for (int pos = from; pos <= to; pos++) {
+                    prefetch(pos);
+                }
+                prefetchedTo = Math.max(prefetchedTo, to);
+            } else {
+                final int from = prefetchedTo == RecyclerView.NO_POSITION ? first - 1 : Math.min(first - 1, prefetchedTo - 1);
+                final int to = Math.max(0, first - distance);
+                for (int pos = from; pos >= to; pos--) {
+                    prefetch(pos);
+                }
+                prefetchedTo = prefetchedTo == RecyclerView.NO_POSITION ? to : Math.min(prefetchedTo, to);
+            }
+        }
+
+        private void prefetch(int position) {
+            final TransferService.DownloadItem item = downloadState.items.get(position);
+            if (item.state == TransferService.DownloadItem.STATE_COMPLETED) {
+                thumbnailLoader.prefetch(item.fileUri);
+            }
+        }
+    }
+
     private TransferService.Binder serviceBinder;
 
     private class ServiceConnection implements android.content.ServiceConnection {
@@ -131,9 +207,35 @@ public class DownloadActivity extends AppCompatActivity {
         }
 
         @Override
-        public void onDownloadItemStateChanged(int pos) {
-            Log.i("DownloadActivity", String.format("onDownloadItemStateChanged %d", pos));
-            list.getAdapter().notifyItemChanged(pos);
+        public void onDownloadItemsAdded(int start, int count) {
+            Log.i("DownloadActivity", String.format("onDownloadItemsAdded %d %d", start, count));
+            list.getAdapter().notifyItemRangeInserted(start, count);
+        }
+
+        @Override
+        public void onDownloadItemsChanged(int[] positions, int count) {
+            Log.i("DownloadActivity", String.format("onDownloadItemsChanged %d", count));
+            // Notify each run of consecutive positions as a range.
+            for (int i = 0; i < count; ) {
+                int j = i + 1;
+                while (j < count && positions[j] == positions[j - 1] + 1) {
+                    j++;
+                }
+                list.getAdapter().notifyItemRangeChanged(positions[i], j - i);
+                i = j;
+            }
+        }
+
+        @Override
+        public void onDownloadProgress(int[] positions, int count) {
+            for (int i = 0; i < count; i++) {
+                list.getAdapter().notifyItemChanged(positions[i], PAYLOAD_PROGRESS);
+            }
+        }
+
+        @Override
+        public void onVerifyCompleted(int checked, int damaged) {
+            Toast.makeText(getApplicationContext(), getString(R.string.fmt_verify_result, checked, damaged), Toast.LENGTH_LONG).show();
         }
 
         @Override
@@ -145,6 +247,8 @@ public class DownloadActivity extends AppCompatActivity {
         @Override
         public void onStateChanged(TransferService.State state) {
             Log.i("DownloadActivity", "onStateChanged " + state);
+            // Leave the CPU and the storage to the downloads.
+            thumbnailLoader.setPrefetchLimit(state == TransferService.State.Downloading ? PREFETCH_LIMIT_DOWNLOADING : PREFETCH_LIMIT_IDLE);
             if (state == TransferService.State.Downloading) {
                 if (serviceBinder != null) {
                     downloadState = serviceBinder.getDownloadState();
@@ -178,13 +282,30 @@ public class DownloadActivity extends AppCompatActivity {
         super.onPause();
     }
 
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.download, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(@NonNull MenuItem item) {
+        if (item.getItemId() == R.id.verify) {
+            if (serviceBinder != null) {
+                serviceBinder.verifySavedFiles();
+            }
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
     @Override
     public boolean onSupportNavigateUp() {
         finish();
         return true;
     }
 
-    private static class ListViewHolder extends RecyclerView.ViewHolder {
+    private static class ListViewHolder extends RecyclerView.ViewHolder implements ThumbnailLoader.Target<Bitmap> {
 
         final View view;
 
@@ -192,8 +313,17 @@ public class DownloadActivity extends AppCompatActivity {
             super(itemView);
             view = itemView;
         }
+
+        @Override
+        public void onThumbnailLoaded(Bitmap thumbnail) {
+            final ImageView imageView = view.findViewById(R.id.imageView);
+            imageView.setImageBitmap(thumbnail);
+        }
     }
 
+    // Payload of notifyItemChanged, only the progress bar is updated.
+    private static final Object PAYLOAD_PROGRESS = new Object();
+
     private class ListAdapter extends RecyclerView.Adapter<ListViewHolder> {
 
         @NonNull
@@ -204,9 +334,10 @@ public class DownloadActivity extends AppCompatActivity {
 
         @Override
         public void onBindViewHolder(@NonNull ListViewHolder holder, int position) {
-            final TransferService.DownloadItem item = downloadState.items[position];
+            final TransferService.DownloadItem item = downloadState.items.get(position);
             final Uri uri = Uri.parse(item.fileUri);
 
+            bindBytesProgress(holder, item);
             final View progressBar = holder.view.findViewById(R.id.progressBar);
             final ImageView imageView = holder.view.findViewById(R.id.imageView);
             final View videoPlay = holder.view.findViewById(R.id.video_play);
@@ -216,19 +347,16 @@ public class DownloadActivity extends AppCompatActivity {
                 case TransferService.DownloadItem.STATE_COMPLETED:
                     progressBar.setVisibility(View.GONE);
                     errorView.setVisibility(View.GONE);
-                    if (item.isVideo) {
-                        try {
-                            imageView.setImageBitmap(Compat.Instance.createThumbnail(DownloadActivity.this, uri));
-                        } catch (IOException e) {
-                            Log.e("thumbnail", "", e);
-                        }
-                        imageView.setVisibility(View.VISIBLE);
-                        videoPlay.setVisibility(View.VISIBLE);
-                    } else {
-                        imageView.setImageURI(uri);
-                        imageView.setVisibility(View.VISIBLE);
-                        videoPlay.setVisibility(View.GONE);
+                    clearThumbnail(holder);
+                    // A thumbnail in memory is shown in this call.
+                    Tracing.begin("thumbnail load");
+                    try {
+                        thumbnailLoader.load(item.fileUri, holder);
+                    } finally {
+                        Tracing.end();
                     }
+                    imageView.setVisibility(View.VISIBLE);
+                    videoPlay.setVisibility(item.isVideo ? View.VISIBLE : View.GONE);
                     holder.view.setOnClickListener((v) -> {
                         final Intent intent = new Intent(Intent.ACTION_VIEW);
                         intent.setDataAndType(uri, item.isVideo ? "video/mp4" : "image/jpeg");
@@ -241,6 +369,7 @@ public class DownloadActivity extends AppCompatActivity {
                     });
                     break;
                 case TransferService.DownloadItem.STATE_ERROR:
+                    clearThumbnail(holder);
                     progressBar.setVisibility(View.GONE);
                     errorView.setVisibility(View.VISIBLE);
                     imageView.setVisibility(View.GONE);
@@ -248,6 +377,7 @@ public class DownloadActivity extends AppCompatActivity {
                     holder.view.setOnClickListener(null);
                     break;
                 case TransferService.DownloadItem.STATE_DOWNLOADING:
+                    clearThumbnail(holder);
                     progressBar.setVisibility(View.VISIBLE);
                     errorView.setVisibility(View.GONE);
                     imageView.setVisibility(View.GONE);
@@ -257,9 +387,41 @@ public class DownloadActivity extends AppCompatActivity {
 
         }
 
+        @Override
+        public void onBindViewHolder(@NonNull ListViewHolder holder, int position, @NonNull List<Object> payloads) {
+            if (!payloads.isEmpty() && payloads.stream().allMatch(payload -> payload == PAYLOAD_PROGRESS)) {
+                bindBytesProgress(holder, downloadState.items.get(position));
+            } else {
+                super.onBindViewHolder(holder, position, payloads);
+            }
+        }
+
+        @Override
+        public void onViewRecycled(@NonNull ListViewHolder holder) {
+            clearThumbnail(holder);
+        }
+
+        // The thumbnail is released to be reused, so the ImageView must not show it anymore.
+        private void clearThumbnail(@NonNull ListViewHolder holder) {
+            final ImageView imageView = holder.view.findViewById(R.id.imageView);
+            imageView.setImageDrawable(null);
+            thumbnailLoader.cancel(holder);
+        }
+
+        private void bindBytesProgress(@NonNull ListViewHolder holder, TransferService.DownloadItem item) {
+            final ProgressBar bytesProgress = holder.view.findViewById(R.id.bytesProgress);
+            final long totalBytes = item.totalBytes;
+            if (item.state == TransferService.DownloadItem.STATE_DOWNLOADING && totalBytes > 0) {
+                bytesProgress.setProgress((int) (bytesProgress.getMax() * Math.min(item.bytesCommitted.get(), totalBytes) / totalBytes));
+                bytesProgress.setVisibility(View.VISIBLE);
+            } else {
+                bytesProgress.setVisibility(View.GONE);
+            }
+        }
+
         @Override
         public int getItemCount() {
-            return downloadState == null ? 0 : downloadState.items.length;
+            return downloadState == null ? 0 : downloadState.items.size();
         }
     }
 }
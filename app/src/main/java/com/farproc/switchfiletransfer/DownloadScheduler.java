@@ -0,0 +1,217 @@
+package com.farproc.switchfiletransfer;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs download jobs with an adaptive number of concurrent jobs.
+ * <p>
+ * Jobs run on threads of the scheduler, or start a transfer which finishes later elsewhere, see {@link AsyncJob}.
+ * Jobs report the bytes they transfer with {@link #onBytesTransferred(long)}.
+ * The aggregate throughput is sampled every {@link #SAMPLE_INTERVAL_MS} and the concurrency
+ * limit is adjusted AIMD-style: increased by one while more concurrent jobs bring more throughput,
+ * halved when the throughput drops or a transfer fails.
+ * The limit is adjusted only while the scheduler is saturated(jobs are waiting), because
+ * only then the throughput says something about the limit.
+ * <p>
+ * This class is thread safe.
+ */
+class DownloadScheduler {
+    static final long SAMPLE_INTERVAL_MS = 1000;
+    // Throughput gain(relative) needed to keep increasing the limit.
+    static final double INCREASE_THRESHOLD = 0.05;
+    // Throughput drop(relative) which halves the limit.
+    static final double DECREASE_THRESHOLD = 0.25;
+    // Try one more job after this number of stable samples, in case the link got better.
+    static final int PROBE_SAMPLES = 5;
+
+    private final int minConcurrency;
+    private final int maxConcurrency;
+
+    /**
+     * A job which starts a transfer and returns, the transfer tells the scheduler when it finishes.
+     * It counts as running until then.
+     */
+    interface AsyncJob {
+        /**
+         * Start the transfer. Called with the scheduler locked, so it must not block.
+         *
+         * @param finished To run once when the transfer finishes, from any thread.
+         */
+        void start(Runnable finished);
+    }
+
+    private final ArrayDeque<AsyncJob> queue = new ArrayDeque<>();
+    private final ExecutorService workers;
+    private final ScheduledExecutorService sampler;
+    private final LongAdder bytes = new LongAdder();
+
+    private int limit;
+    private int running;
+    private boolean dispatching;
+    private boolean shutdown;
+
+    private long lastSampleNanos;
+    private double lastThroughput;
+    private int stableSamples;
+
+    /**
+     * @param minConcurrency     Lower bound of concurrent jobs.
+     * @param maxConcurrency     Upper bound of concurrent jobs.
+     * @param initialConcurrency Concurrent jobs before the first adjustment.
+     */
+    DownloadScheduler(final int minConcurrency, final int maxConcurrency, final int initialConcurrency) {
+        if (minConcurrency < 1 || maxConcurrency < minConcurrency
+                || initialConcurrency < minConcurrency || initialConcurrency > maxConcurrency) {
+            throw new IllegalArgumentException("bad concurrency bounds");
+        }
+        this.minConcurrency = minConcurrency;
+        this.maxConcurrency = maxConcurrency;
+        this.limit = initialConcurrency;
+        workers = Executors.newCachedThreadPool();
+        sampler = Executors.newSingleThreadScheduledExecutor();
+        lastSampleNanos = System.nanoTime();
+        sampler.scheduleAtFixedRate(this::sample, SAMPLE_INTERVAL_MS, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queue a job. It is run when the number of running jobs is under the limit.
+     *
+     * @throws IllegalStateException if the scheduler is shut down.
+     */
+    void execute(final Runnable job) {
+        executeAsync(finished -> workers.execute(() -> {
+            try {
+                job.run();
+            } finally {
+                finished.run();
+            }
+        }));
+    }
+
+    /**
+     * Queue a job which finishes asynchronously. It is started when the number of running jobs is under the limit.
+     *
+     * @throws IllegalStateException if the scheduler is shut down.
+     */
+    synchronized void executeAsync(final AsyncJob job) {
+        if (shutdown) {
+            throw new IllegalStateException("shutdown");
+        }
+        queue.add(job);
+        dispatch();
+    }
+
+    // Start queued jobs up to the limit.
+    private void dispatch() {
+        // A job finished in start goes on in the outer loop instead of nesting another.
+        if (dispatching) {
+            return;
+        }
+        dispatching = true;
+        try {
+            while (running < limit && !queue.isEmpty()) {
+                final AsyncJob job = queue.poll();
+                running++;
+                job.start(this::onJobFinished);
+            }
+        } finally {
+            dispatching = false;
+        }
+    }
+
+    private synchronized void onJobFinished() {
+        running--;
+        if (!shutdown) {
+            dispatch();
+        }
+    }
+
+    /**
+     * Called by jobs, from any thread, when {@code n} bytes are transferred.
+     */
+    void onBytesTransferred(final long n) {
+        bytes.add(n);
+    }
+
+    /**
+     * Called by jobs when a transfer failed. A failure is taken as a sign of an overloaded link.
+     */
+    synchronized void onTransferError() {
+        decrease();
+    }
+
+    private void sample() {
+        final long now = System.nanoTime();
+        final long n = bytes.sumThenReset();
+        synchronized (this) {
+            final double seconds = (now - lastSampleNanos) / 1e9;
+            lastSampleNanos = now;
+            if (seconds > 0) {
+                adjust(n / seconds, running >= limit && !queue.isEmpty());
+            }
+        }
+    }
+
+    /**
+     * Adjust the limit by a throughput sample.
+     *
+     * @param throughput Bytes per second since the last sample.
+     * @param saturated  Whether jobs were waiting for the limit.
+     */
+    synchronized void adjust(final double throughput, final boolean saturated) {
+        if (!saturated) {
+            lastThroughput = throughput;
+            stableSamples = 0;
+            return;
+        }
+        if (throughput > lastThroughput * (1 + INCREASE_THRESHOLD)) {
+            increase();
+        } else if (throughput < lastThroughput * (1 - DECREASE_THRESHOLD)) {
+            decrease();
+        } else if (++stableSamples >= PROBE_SAMPLES) {
+            increase();
+        }
+        lastThroughput = throughput;
+    }
+
+    private void increase() {
+        stableSamples = 0;
+        if (limit < maxConcurrency) {
+            limit++;
+            dispatch();
+        }
+    }
+
+    private void decrease() {
+        stableSamples = 0;
+        limit = Math.max(minConcurrency, limit / 2);
+    }
+
+    synchronized int getLimit() {
+        return limit;
+    }
+
+    synchronized int getRunning() {
+        return running;
+    }
+
+    synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Drop the queued jobs and stop sampling. Running jobs are allowed to finish,
+     * the threads exit after that.
+     */
+    synchronized void shutdown() {
+        shutdown = true;
+        queue.clear();
+        sampler.shutdownNow();
+        workers.shutdown();
+    }
+}
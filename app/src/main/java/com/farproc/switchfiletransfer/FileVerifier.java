@@ -0,0 +1,37 @@
+package com.farproc.switchfiletransfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Checks a saved file against the size and hash recorded when it was downloaded.
+ */
+class FileVerifier {
+    private static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(final int b) {
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+        }
+    };
+
+    private FileVerifier() {
+    }
+
+    /**
+     * Read {@code in} to the end and compare it with the expected size and hash.
+     * {@code in} is not closed.
+     *
+     * @param hash Expected hash, see {@link ItemDownloader#DIGEST_ALGORITHM}. Null to check the size only.
+     */
+    static boolean verify(final TransferEngine engine, final InputStream in, final long size, final byte[] hash) throws IOException {
+        final MessageDigest digest = hash == null ? null : ItemDownloader.newDigest();
+        final long n = engine.copy(in, NULL_OUTPUT, size, TransferEngine.NO_PROGRESS, digest);
+        return n == size && (digest == null || Arrays.equals(hash, digest.digest()));
+    }
+}
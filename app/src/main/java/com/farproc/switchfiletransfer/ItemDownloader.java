@@ -0,0 +1,172 @@
+package com.farproc.switchfiletransfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Downloads one file over HTTP.
+ * <p>
+ * If some bytes of the file were already saved by a previous attempt, the download
+ * continues from there with a {@code Range} request and appends to the saved bytes.
+ * If the server ignores the {@code Range} header, the file is downloaded again from the beginning.
+ */
+class ItemDownloader {
+    /**
+     * Where the downloaded bytes go.
+     */
+    interface Target {
+        /**
+         * Open the output stream of the file to write from {@code offset}.
+         * The saved bytes from {@code offset} on are dropped, so the file is never longer than what is downloaded.
+         *
+         * @param offset Number of bytes kept, 0 to truncate the file.
+         */
+        OutputStream open(long offset) throws IOException;
+    }
+
+    /**
+     * Receives the progress of a download, called on the downloading thread.
+     */
+    interface Listener extends TransferEngine.Progress {
+        /**
+         * Called before the first byte of body is written.
+         *
+         * @param offset Number of bytes already saved and kept in the file. 0 if the file is truncated.
+         * @param length Total length of the file, or -1 if unknown.
+         */
+        void onStart(long offset, long length);
+    }
+
+    // Hash of the downloaded files.
+    static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private ItemDownloader() {
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Download {@code path} on the console to {@code target}.
+     *
+     * The file is hashed while it is written, and the number of bytes is checked against Content-Length.
+     *
+     * @param path   Request target, e.g. "/img/a.jpg".
+     * @param offset Number of bytes of the file already saved in {@code target}.
+     * @return Hash of the whole file, see {@link #DIGEST_ALGORITHM}. Null if only the rest of the file was downloaded.
+     * @throws IOException Also if the body is shorter than Content-Length.
+     */
+    static byte[] download(final ConsoleHttpClient client, final String path, final long offset, final Target target,
+                         final TransferEngine engine, final Listener listener) throws IOException {
+        final ConsoleHttpClient.Request request = ConsoleHttpClient.Request.get(path);
+        if (offset > 0) {
+            request.header("Range", "bytes=" + offset + "-");
+        }
+        try (ConsoleHttpClient.Response response = client.execute(request)) {
+            if (offset == 0 || response.code != 416) { // Range Not Satisfiable.
+                return receive(response, path, offset, target, engine, listener);
+            }
+            if (parseUnsatisfiedRange(response.header("Content-Range")) == offset) {
+                // Nothing left to download.
+                listener.onStart(offset, offset);
+                return null;
+            }
+        }
+        // The saved bytes are more than the file has now, download it again from the first byte.
+        return download(client, path, 0, target, engine, listener);
+    }
+
+    // Save the body of response to target, see download.
+    private static byte[] receive(final ConsoleHttpClient.Response response, final String path, final long offset,
+                                  final Target target, final TransferEngine engine, final Listener listener) throws IOException {
+        final int code = response.code;
+        final boolean append;
+        final long start;
+        final long length;
+        if (offset > 0 && code == HttpURLConnection.HTTP_PARTIAL) {
+            final long[] range = parseContentRange(response.header("Content-Range"));
+            if (range == null || range[0] != offset) {
+                throw new IOException("unexpected Content-Range: " + response.header("Content-Range"));
+            }
+            append = true;
+            start = offset;
+            length = range[2];
+        } else if (code == HttpURLConnection.HTTP_OK) {
+            // Range is not supported by the server, download the whole file again.
+            append = false;
+            start = 0;
+            length = response.getContentLength();
+        } else {
+            throw new IOException("HTTP " + code + " " + path);
+        }
+
+        listener.onStart(start, length);
+        final InputStream in = response.body();
+        final MessageDigest digest = append ? null : newDigest();
+        final long copied;
+        try (OutputStream out = target.open(start)) {
+            copied = engine.copy(in, out, length < 0 ? -1 : length - start, listener, digest);
+        }
+        if (length >= 0 && start + copied != length) {
+            throw new IOException(String.format("%s truncated, %d of %d bytes", path, start + copied, length));
+        }
+        return digest == null ? null : digest.digest();
+    }
+
+    /**
+     * Parse {@code Content-Range: bytes *}{@code /total} of a 416 response.
+     *
+     * @return total, or -1 if it can't be parsed.
+     */
+    static long parseUnsatisfiedRange(final String value) {
+        if (value == null) {
+            return -1;
+        }
+        final String s = value.trim();
+        if (!s.startsWith("bytes */")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(s.substring(8).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parse {@code Content-Range: bytes start-end/total}.
+     *
+     * @return {start, end, total}, total is -1 if it is {@code *}. Null if it can't be parsed.
+     */
+    static long[] parseContentRange(final String value) {
+        if (value == null) {
+            return null;
+        }
+        final String s = value.trim();
+        if (!s.startsWith("bytes ")) {
+            return null;
+        }
+        final int dash = s.indexOf('-', 6);
+        final int slash = s.indexOf('/', dash + 1);
+        if (dash == -1 || slash == -1) {
+            return null;
+        }
+        try {
+            final long start = Long.parseLong(s.substring(6, dash).trim());
+            final long end = Long.parseLong(s.substring(dash + 1, slash).trim());
+            final String total = s.substring(slash + 1).trim();
+            return new long[]{start, end, "*".equals(total) ? -1 : Long.parseLong(total)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.farproc.switchfiletransfer;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Orders download jobs by their sizes before they are queued.
+ * <p>
+ * With {@link #LONGEST_FIRST}(LPT) the largest files start first and the small ones
+ * fill the gaps at the end, so all workers finish at about the same time.
+ */
+class JobOrdering {
+    /**
+     * A policy to order jobs.
+     */
+    interface Policy {
+        /**
+         * @param sizes Size of every job in bytes.
+         * @return Indexes of {@code sizes} in the order to run.
+         */
+        int[] order(long[] sizes);
+    }
+
+    /**
+     * Keep the original order.
+     */
+    static final Policy FIFO = sizes -> {
+        final int[] order = new int[sizes.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        return order;
+    };
+
+    /**
+     * Longest processing time first.
+     */
+    static final Policy LONGEST_FIRST = sizes -> sortBySize(sizes, true);
+
+    /**
+     * Smallest first, the most files are completed early.
+     */
+    static final Policy SMALLEST_FIRST = sizes -> sortBySize(sizes, false);
+
+    // Stable sort of indexes by size.
+    private static int[] sortBySize(final long[] sizes, final boolean descending) {
+        final Integer[] indexes = new Integer[sizes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = i;
+        }
+        final Comparator<Integer> bySize = (a, b) -> Long.compare(sizes[a], sizes[b]);
+        Arrays.sort(indexes, descending ? bySize.reversed() : bySize);
+        final int[] order = new int[indexes.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = indexes[i];
+        }
+        return order;
+    }
+
+    // Used for the jobs whose sizes can't be learned.
+    static final long VIDEO_SIZE_ESTIMATE = 30 * 1024 * 1024;
+    static final long IMAGE_SIZE_ESTIMATE = 300 * 1024;
+
+    private JobOrdering() {
+    }
+
+    /**
+     * Predict the makespan of running jobs in {@code order} on {@code workers} workers
+     * which take jobs in turn whenever they are free.
+     *
+     * @return Bytes transferred by the busiest worker.
+     */
+    static long makespan(final long[] sizes, final int[] order, final int workers) {
+        final PriorityQueue<Long> loads = new PriorityQueue<>();
+        for (int i = 0; i < workers; i++) {
+            loads.add(0L);
+        }
+        long max = 0;
+        for (final int i : order) {
+            final long load = loads.poll() + sizes[i];
+            max = Math.max(max, load);
+            loads.add(load);
+        }
+        return max;
+    }
+}
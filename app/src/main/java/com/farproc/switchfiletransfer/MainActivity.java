@@ -1,7 +1,6 @@
 package com.farproc.switchfiletransfer;
 
 import android.Manifest;
-import android.app.Activity;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
@@ -13,9 +12,11 @@ import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -28,11 +29,9 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentManager;
 
-import com.google.zxing.integration.android.IntentIntegrator;
-import com.google.zxing.integration.android.IntentResult;
-
 public class MainActivity extends AppCompatActivity {
     private Button scanButton;
+    private CheckBox syncOnlyCheckBox;
     private TextView wifiOffPrompt;
 
     private ActivityResultLauncher<String> requestCameraPermission;
@@ -49,6 +48,7 @@ public class MainActivity extends AppCompatActivity {
             startScanQR();
         });
         wifiOffPrompt = findViewById(R.id.wifi_off_prompt);
+        syncOnlyCheckBox = findViewById(R.id.sync_only);
 
         requestCameraPermission = registerForActivityResult(new ActivityResultContracts.RequestPermission(), isGranted -> {
             if (((Boolean) true).equals(isGranted)) {
@@ -70,17 +70,14 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
-        scanQR = registerForActivityResult(new ScanQR(), code -> {
-            if (code == null) {
-                scanButton.setEnabled(true);
-                return;
-            }
-            final WifiConfig wifiConfig = WifiConfig.parse(code);
+        // The scanner returns the first Wi-Fi code it finds, codes of other kinds are skipped there.
+        final ScanQR scanQRContract = new ScanQR();
+        scanQR = registerForActivityResult(scanQRContract, wifiConfig -> {
             if (wifiConfig == null) {
-                Toast.makeText(this, R.string.wrong_qr, Toast.LENGTH_LONG).show();
                 scanButton.setEnabled(true);
                 return;
             }
+            qrParsedTime = scanQRContract.parsedTime;
 
             // 1. MediaStore API instead of raw File access is used on Android Q+
             // 2. P2P Wi-Fi connectivity instead of direct Wi-Fi operation on Android Q+
@@ -121,12 +118,25 @@ public class MainActivity extends AppCompatActivity {
         waitingForConnect = true;
         if (serviceBinder == null) {
             Log.i("MainActivity", "Service not bound, delay connect");
-            runAfterServiceBound = () -> serviceBinder.connect(wifiConfig.SSID, wifiConfig.Password);
+            runAfterServiceBound = () -> serviceBinder.connect(wifiConfig.SSID, wifiConfig.Password, wifiConfig.Hidden,
+                    syncOnlyCheckBox.isChecked(), qrParsedTime, isSelectorEngine());
             return;
         }
-        serviceBinder.connect(wifiConfig.SSID, wifiConfig.Password);
+        serviceBinder.connect(wifiConfig.SSID, wifiConfig.Password, wifiConfig.Hidden,
+                syncOnlyCheckBox.isChecked(), qrParsedTime, isSelectorEngine());
     }
 
+    // Launch with this extra true to download with SelectorDownloader, e.g.
+    // adb shell am start -n com.farproc.switchfiletransfer/.MainActivity --ez selectorEngine true
+    private static final String EXTRA_SELECTOR_ENGINE = "selectorEngine";
+
+    private boolean isSelectorEngine() {
+        return getIntent().getBooleanExtra(EXTRA_SELECTOR_ENGINE, false);
+    }
+
+    // SystemClock#elapsedRealtime when the last QR code is parsed.
+    private long qrParsedTime;
+
     private Runnable runAfterServiceBound;
 
     private void bindTransferService() {
@@ -210,8 +220,22 @@ public class MainActivity extends AppCompatActivity {
         }
 
         @Override
-        public void onDownloadItemStateChanged(int pos) {
-            Log.i("MainActivity", String.format("onDownloadItemStateChanged %d", pos));
+        public void onDownloadItemsAdded(int start, int count) {
+            Log.i("MainActivity", String.format("onDownloadItemsAdded %d %d", start, count));
+        }
+
+        @Override
+        public void onDownloadItemsChanged(int[] positions, int count) {
+            Log.i("MainActivity", String.format("onDownloadItemsChanged %d", count));
+        }
+
+        @Override
+        public void onDownloadProgress(int[] positions, int count) {
+        }
+
+        @Override
+        public void onVerifyCompleted(int checked, int damaged) {
+            Log.i("MainActivity", String.format("onVerifyCompleted %d %d", checked, damaged));
         }
 
         @Override
@@ -290,9 +314,11 @@ public class MainActivity extends AppCompatActivity {
         public void onReceive(Context context, Intent intent) {
             if (intent.getIntExtra(WifiManager.EXTRA_WIFI_STATE, WifiManager.WIFI_STATE_UNKNOWN) == WifiManager.WIFI_STATE_ENABLED) {
                 scanButton.setVisibility(View.VISIBLE);
+                syncOnlyCheckBox.setVisibility(View.VISIBLE);
                 wifiOffPrompt.setVisibility(View.GONE);
             } else {
                 scanButton.setVisibility(View.GONE);
+                syncOnlyCheckBox.setVisibility(View.GONE);
                 wifiOffPrompt.setVisibility(View.VISIBLE);
             }
         }
@@ -307,26 +333,24 @@ public class MainActivity extends AppCompatActivity {
     }
 
 
-    // ScanQR is a ActivityResultContract to scan QR code with device camera.
-    private static class ScanQR extends ActivityResultContract<Void, String> {
+    // ScanQR is a ActivityResultContract to scan Wi-Fi QR code with device camera.
+    private static class ScanQR extends ActivityResultContract<Void, WifiConfig> {
+        // SystemClock#elapsedRealtime when the last result is parsed by the scanner.
+        long parsedTime;
 
         @NonNull
         @Override
         public Intent createIntent(@NonNull Context context, Void input) {
-            final IntentIntegrator ii = new IntentIntegrator((Activity) context);
-            ii.setDesiredBarcodeFormats(IntentIntegrator.QR_CODE);
-            ii.setOrientationLocked(false);
-            ii.setBarcodeImageEnabled(false);
-            return ii.createScanIntent();
+            return new Intent(context, ScanWifiActivity.class);
         }
 
         @Override
-        public String parseResult(int resultCode, @Nullable Intent intent) {
-            IntentResult result = IntentIntegrator.parseActivityResult(IntentIntegrator.REQUEST_CODE, resultCode, intent);
-            if (result == null) {
-                return null;
+        public WifiConfig parseResult(int resultCode, @Nullable Intent intent) {
+            final WifiConfig wifiConfig = ScanWifiActivity.parseResult(resultCode, intent);
+            if (wifiConfig != null) {
+                parsedTime = intent.getLongExtra(ScanWifiActivity.EXTRA_PARSED_TIME, SystemClock.elapsedRealtime());
             }
-            return result.getContents();
+            return wifiConfig;
         }
     }
 }
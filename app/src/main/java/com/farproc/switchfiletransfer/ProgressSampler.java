@@ -0,0 +1,153 @@
+package com.farproc.switchfiletransfer;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the byte progress of running downloads to one thread(the main thread)
+ * at most once per period, however many workers there are.
+ * <p>
+ * Workers only add to their own {@link AtomicLong} counter and call {@link #onProgress()},
+ * which posts a sample only if none is pending, so nothing is posted per chunk.
+ * The sample reads the counters and reports the positions whose counters have changed.
+ * <p>
+ * {@link #onStart(int, AtomicLong)} and {@link #onProgress()} may be called on any thread,
+ * other methods are called on the thread of the {@link Poster}.
+ */
+class ProgressSampler {
+    /**
+     * Runs the sample on the publishing thread, e.g. {@code Handler::postDelayed}.
+     */
+    interface Poster {
+        void postDelayed(Runnable r, long delayMs);
+    }
+
+    /**
+     * Receives the samples on the publishing thread.
+     */
+    interface Callback {
+        /**
+         * @param positions The positions whose counters have changed since the last sample, the first {@code count} are valid.
+         * @param bytes     Bytes added to all counters since the last sample.
+         * @param elapsedMs Milliseconds since the last sample.
+         */
+        void onSample(int[] positions, int count, long bytes, long elapsedMs);
+    }
+
+    private static class Counter {
+        final int pos;
+        final AtomicLong bytes;
+        long published;
+        boolean finished;
+
+        Counter(final int pos, final AtomicLong bytes) {
+            this.pos = pos;
+            this.bytes = bytes;
+            this.published = bytes.get();
+        }
+    }
+
+    private final Poster poster;
+    private final Callback callback;
+    private final long periodMs;
+
+    private final ConcurrentLinkedQueue<Counter> started = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile long lastSampleMs;
+
+    // Accessed on the publishing thread.
+    private final ArrayList<Counter> active = new ArrayList<>();
+    private int[] positions = new int[16];
+
+    ProgressSampler(final Poster poster, final long periodMs, final Callback callback) {
+        this.poster = poster;
+        this.periodMs = periodMs;
+        this.callback = callback;
+        lastSampleMs = now();
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * A download at {@code pos} starts, whose progress is counted by {@code bytes}.
+     */
+    void onStart(final int pos, final AtomicLong bytes) {
+        started.add(new Counter(pos, bytes));
+    }
+
+    /**
+     * Some counter has changed.
+     */
+    void onProgress() {
+        if (scheduled.compareAndSet(false, true)) {
+            poster.postDelayed(this::sample, Math.max(0, lastSampleMs + periodMs - now()));
+        }
+    }
+
+    /**
+     * The download at {@code pos} is finished, its counter is not sampled anymore.
+     * Changes not sampled yet are still reported by the next sample.
+     */
+    void onFinish(final int pos) {
+        drainStarted();
+        for (final Counter counter : active) {
+            if (counter.pos == pos) {
+                counter.finished = true;
+            }
+        }
+        // The next sample reports the last changes and drops the counter.
+        onProgress();
+    }
+
+    /**
+     * Forget all downloads.
+     */
+    void reset() {
+        started.clear();
+        active.clear();
+    }
+
+    private void drainStarted() {
+        Counter counter;
+        while ((counter = started.poll()) != null) {
+            active.add(counter);
+        }
+    }
+
+    private void sample() {
+        // Cleared before reading, so the progress made while sampling posts the next sample.
+        scheduled.set(false);
+        final long now = now();
+        final long elapsed = now - lastSampleMs;
+        lastSampleMs = now;
+
+        drainStarted();
+        if (positions.length < active.size()) {
+            positions = new int[Math.max(active.size(), positions.length * 2)];
+        }
+        int count = 0;
+        long bytes = 0;
+        for (int i = active.size() - 1; i >= 0; i--) {
+            final Counter counter = active.get(i);
+            final long value = counter.bytes.get();
+            if (value != counter.published) {
+                // Counters may go back when a download starts over.
+                bytes += Math.max(0, value - counter.published);
+                counter.published = value;
+                positions[count++] = counter.pos;
+            }
+            if (counter.finished) {
+                // Order does not matter, move the last one here.
+                active.set(i, active.get(active.size() - 1));
+                active.remove(active.size() - 1);
+            }
+        }
+        if (count > 0) {
+            callback.onSample(positions, count, bytes, elapsed);
+        }
+    }
+}
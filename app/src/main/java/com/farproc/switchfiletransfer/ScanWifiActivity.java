@@ -0,0 +1,94 @@
+package com.farproc.switchfiletransfer;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+import androidx.appcompat.app.AppCompatActivity;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.ResultPoint;
+import com.journeyapps.barcodescanner.BarcodeCallback;
+import com.journeyapps.barcodescanner.BarcodeResult;
+import com.journeyapps.barcodescanner.DecoratedBarcodeView;
+import com.journeyapps.barcodescanner.DefaultDecoderFactory;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Scans until a Wi-Fi QR code is found and returns it as the result.
+ * <p>
+ * Each decoded code is parsed in the decode callback. A code of another kind
+ * shows a hint and scanning goes on, so the user doesn't have to start another scan.
+ */
+public class ScanWifiActivity extends AppCompatActivity {
+    static final String EXTRA_SSID = "ssid";
+    static final String EXTRA_AUTH_TYPE = "auth_type";
+    static final String EXTRA_PASSWORD = "password";
+    static final String EXTRA_HIDDEN = "hidden";
+    // SystemClock#elapsedRealtime when the code is parsed.
+    static final String EXTRA_PARSED_TIME = "parsed_time";
+
+    private DecoratedBarcodeView barcodeView;
+    private boolean found;
+
+    @Override
+    protected void onCreate(@Nullable Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        barcodeView = new DecoratedBarcodeView(this);
+        barcodeView.getBarcodeView().setDecoderFactory(new DefaultDecoderFactory(Collections.singletonList(BarcodeFormat.QR_CODE)));
+        barcodeView.setStatusText(getString(R.string.scan));
+        barcodeView.decodeContinuous(new BarcodeCallback() {
+            @Override
+            public void barcodeResult(BarcodeResult result) {
+                if (found) {
+                    return;
+                }
+                final WifiConfig wifiConfig = WifiConfig.parse(result.getText());
+                if (wifiConfig == null) {
+                    barcodeView.setStatusText(getString(R.string.wrong_qr));
+                    return;
+                }
+                found = true;
+                barcodeView.pause();
+                setResult(RESULT_OK, new Intent()
+                        .putExtra(EXTRA_SSID, wifiConfig.SSID)
+                        .putExtra(EXTRA_AUTH_TYPE, wifiConfig.AuthType)
+                        .putExtra(EXTRA_PASSWORD, wifiConfig.Password)
+                        .putExtra(EXTRA_HIDDEN, wifiConfig.Hidden)
+                        .putExtra(EXTRA_PARSED_TIME, SystemClock.elapsedRealtime()));
+                finish();
+            }
+
+            @Override
+            public void possibleResultPoints(List<ResultPoint> resultPoints) {
+            }
+        });
+        setContentView(barcodeView);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        if (!found) {
+            barcodeView.resume();
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        barcodeView.pause();
+    }
+
+    // Returns the WifiConfig of the result, or null if scanning is canceled.
+    static WifiConfig parseResult(final int resultCode, @Nullable final Intent intent) {
+        if (resultCode != RESULT_OK || intent == null) {
+            return null;
+        }
+        return new WifiConfig(intent.getStringExtra(EXTRA_SSID), intent.getStringExtra(EXTRA_AUTH_TYPE),
+                intent.getStringExtra(EXTRA_PASSWORD), intent.getBooleanExtra(EXTRA_HIDDEN, false));
+    }
+}
@@ -0,0 +1,245 @@
+package com.farproc.switchfiletransfer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Downloads a large file with several connections at the same time.
+ * <p>
+ * The file is split into byte ranges({@link Plan}), every range is fetched with its own
+ * {@code Range} request and written at its offset in the target file.
+ * The progress of every range is kept in the {@link Plan}, so an interrupted download
+ * can be continued with the same plan.
+ */
+class SegmentedDownloader {
+    /**
+     * How a file is split into segments, and how much of every segment is saved.
+     */
+    static class Plan {
+        // Total length of the file.
+        final long length;
+        // First byte of every segment.
+        final long[] starts;
+        // Last byte(inclusive) of every segment.
+        final long[] ends;
+        // The next byte to save of every segment.
+        final AtomicLongArray positions;
+
+        Plan(final long length, final int segmentCount) {
+            this.length = length;
+            starts = new long[segmentCount];
+            ends = new long[segmentCount];
+            positions = new AtomicLongArray(segmentCount);
+            final long segmentLength = (length + segmentCount - 1) / segmentCount;
+            for (int i = 0; i < segmentCount; i++) {
+                starts[i] = Math.min(length, i * segmentLength);
+                ends[i] = Math.min(length, (i + 1) * segmentLength) - 1;
+                positions.set(i, starts[i]);
+            }
+        }
+
+        int getSegmentCount() {
+            return starts.length;
+        }
+
+        boolean isSegmentCompleted(final int i) {
+            return positions.get(i) > ends[i];
+        }
+
+        /**
+         * Number of bytes saved in all segments.
+         */
+        long getBytesSaved() {
+            long n = 0;
+            for (int i = 0; i < starts.length; i++) {
+                n += positions.get(i) - starts[i];
+            }
+            return n;
+        }
+    }
+
+    /**
+     * The file to write segments to.
+     */
+    interface Target {
+        /**
+         * Open the file for writing at any position, without truncating it.
+         */
+        FileChannel open() throws IOException;
+    }
+
+    private final Executor executor;
+    private final TransferEngine engine;
+    private final int segmentCount;
+    private final long minLength;
+    // Whether the server supports ranges, null until a probe tells.
+    private volatile Boolean rangesSupported;
+
+    /**
+     * @param executor     Runs all segments but one of a download, the calling thread runs the other.
+     * @param segmentCount Number of segments a file is split into.
+     * @param minLength    Files shorter than this are not split.
+     */
+    SegmentedDownloader(final Executor executor, final TransferEngine engine, final int segmentCount, final long minLength) {
+        if (segmentCount < 1) {
+            throw new IllegalArgumentException("segmentCount < 1");
+        }
+        this.executor = executor;
+        this.engine = engine;
+        this.segmentCount = segmentCount;
+        this.minLength = minLength;
+    }
+
+    /**
+     * Send a HEAD request to learn the length of the file and whether ranges are supported.
+     *
+     * @param path Request target, e.g. "/img/a.mp4".
+     * @return The plan to download the file, or null if the file should not be split.
+     */
+    Plan probe(final ConsoleHttpClient client, final String path) throws IOException {
+        if (segmentCount == 1) {
+            return null;
+        }
+        try (ConsoleHttpClient.Response response = client.execute(ConsoleHttpClient.Request.head(path))) {
+            if (response.code != HttpURLConnection.HTTP_OK) {
+                return null;
+            }
+            final long length = response.getContentLength();
+            rangesSupported = "bytes".equals(response.header("Accept-Ranges"));
+            if (length < minLength || length < segmentCount || !rangesSupported) {
+                return null;
+            }
+            return new Plan(length, segmentCount);
+        }
+    }
+
+    /**
+     * The plan for a file of {@code length} bytes, -1 if unknown. Probes only if the length is unknown
+     * or no probe has told whether the server supports ranges yet.
+     *
+     * @return The plan to download the file, or null if the file should not be split.
+     */
+    Plan plan(final ConsoleHttpClient client, final String path, final long length) throws IOException {
+        if (segmentCount == 1 || length >= 0 && (length < minLength || length < segmentCount)) {
+            return null;
+        }
+        final Boolean ranges = rangesSupported;
+        if (length < 0 || ranges == null) {
+            return probe(client, path);
+        }
+        return ranges ? new Plan(length, segmentCount) : null;
+    }
+
+    /**
+     * Download the unfinished segments of {@code plan} and wait for all of them.
+     *
+     * @param progress Notified on the segment threads, must be thread safe.
+     */
+    void download(final ConsoleHttpClient client, final String path, final Plan plan,
+                  final Target target, final TransferEngine.Progress progress) throws IOException {
+        try (FileChannel channel = target.open()) {
+            final List<FutureTask<Void>> tasks = new ArrayList<>();
+            int last = -1;
+            for (int i = 0; i < plan.getSegmentCount(); i++) {
+                if (plan.isSegmentCompleted(i)) {
+                    continue;
+                }
+                if (last != -1) {
+                    final int segment = last;
+                    final FutureTask<Void> task = new FutureTask<>(() -> {
+                        downloadSegment(client, path, plan, segment, channel, progress);
+                        return null;
+                    });
+                    tasks.add(task);
+                    executor.execute(task);
+                }
+                last = i;
+            }
+
+            IOException error = null;
+            if (last != -1) {
+                try {
+                    downloadSegment(client, path, plan, last, channel, progress);
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            for (final FutureTask<Void> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        error = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    private void downloadSegment(final ConsoleHttpClient client, final String path, final Plan plan, final int segment,
+                                 final FileChannel channel, final TransferEngine.Progress progress) throws IOException {
+        final long start = plan.positions.get(segment);
+        final long end = plan.ends[segment];
+        final ConsoleHttpClient.Request request = ConsoleHttpClient.Request.get(path)
+                .header("Range", "bytes=" + start + "-" + end);
+        try (ConsoleHttpClient.Response response = client.execute(request)) {
+            if (response.code != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("HTTP " + response.code + " for range request " + path);
+            }
+            final long[] range = ItemDownloader.parseContentRange(response.header("Content-Range"));
+            if (range == null || range[0] != start || range[1] != end) {
+                throw new IOException("unexpected Content-Range: " + response.header("Content-Range"));
+            }
+            engine.copy(response.body(), new PositionalOutputStream(channel, start), end - start + 1, n -> {
+                plan.positions.addAndGet(segment, n);
+                progress.onBytesWritten(n);
+            });
+            if (!plan.isSegmentCompleted(segment)) {
+                throw new IOException(String.format("segment %d truncated at %d", segment, plan.positions.get(segment)));
+            }
+        }
+    }
+
+    /**
+     * Writes to a {@link FileChannel} from a position without changing the position of the channel,
+     * so several streams can write to the same channel at the same time.
+     * Closing this stream does not close the channel.
+     */
+    static class PositionalOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private long position;
+
+        PositionalOutputStream(final FileChannel channel, final long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+}
@@ -0,0 +1,755 @@
+package com.farproc.switchfiletransfer;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads files from the console on non-blocking sockets, all served by one {@link Selector} thread.
+ * <p>
+ * The I/O thread only moves bytes between the sockets and buffers. A filled buffer is handed to a writer
+ * thread, which hashes it and writes it to the file, and the connection does not read until the buffer
+ * is back. So a download in flight costs a socket and a buffer instead of a thread blocked in read.
+ * <p>
+ * A download behaves like {@link ItemDownloader#download}: it continues from an offset with a {@code Range}
+ * request, the file is hashed only if it is downloaded from the first byte, and the body is checked against
+ * Content-Length. Connections are kept alive and reused like {@link ConsoleHttpClient}.
+ * Chunked bodies are not supported, the console sends Content-Length.
+ * <p>
+ * This class is thread safe.
+ */
+class SelectorDownloader implements Closeable {
+    /**
+     * Prepares a socket before it connects, e.g. binds it to the network of the console.
+     */
+    interface SocketBinder {
+        void bind(Socket socket) throws IOException;
+    }
+
+    static final SocketBinder DEFAULT_BINDER = socket -> {
+    };
+
+    /**
+     * Receives the result of a download, called on a writer thread. Exactly one method is called.
+     */
+    interface Callback {
+        /**
+         * @param hash Hash of the whole file, see {@link ItemDownloader#DIGEST_ALGORITHM}.
+         *             Null if only the rest of the file was downloaded.
+         */
+        void onCompleted(byte[] hash);
+
+        void onFailed(IOException e);
+    }
+
+    // Also the max length of a response head.
+    private static final int HEAD_BUFFER_SIZE = TransferEngine.MIN_BUFFER_SIZE;
+    // Timeouts are checked at least this often.
+    private static final long SELECT_TIMEOUT_MS = 1000;
+
+    private static final int STATE_CONNECTING = 0;
+    private static final int STATE_SENDING = 1;
+    private static final int STATE_HEAD = 2;
+    private static final int STATE_BODY = 3;
+    private static final int STATE_DONE = 4;
+
+    private static class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        long idleSince;
+
+        Connection(final SocketChannel channel, final SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    // A download. The fields before the lock are accessed on the I/O thread, the ones after it
+    // on the writer thread, which is handed over with the buffer.
+    private static class Call {
+        final String path;
+        // Set to 0 if the file has to be downloaded again from the first byte.
+        long offset;
+        final ItemDownloader.Target target;
+        final ItemDownloader.Listener listener;
+        final Callback callback;
+
+        Connection connection;
+        // Whether connection was idle before, so the server may have closed it.
+        boolean reused;
+        int state;
+        long deadlineNanos;
+        ByteBuffer request;
+        ByteBuffer head;
+        // Bytes of body still to read, -1 if it ends when the connection is closed.
+        long remaining;
+        boolean keepAlive;
+
+        // Written on the I/O thread before the first write is handed over.
+        boolean rangeNotSatisfiable;
+        boolean append;
+        long start;
+        long length;
+        ByteBuffer body;
+
+        OutputStream out;
+        MessageDigest digest;
+        long copied;
+        byte[] hash;
+
+        // Guarded by this.
+        boolean writing;
+        IOException failure;
+        boolean finished;
+
+        Call(final String path, final long offset, final ItemDownloader.Target target,
+             final ItemDownloader.Listener listener, final Callback callback) {
+            this.path = path;
+            this.offset = offset;
+            this.target = target;
+            this.listener = listener;
+            this.callback = callback;
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final SocketBinder binder;
+    private final int receiveBufferSize;
+    private final int maxIdleConnections;
+    private final BufferPool pool;
+    private final ExecutorService writers;
+    private final Selector selector;
+
+    // Guarded by itself.
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private boolean stopped;
+    private volatile boolean closed;
+
+    // Accessed on the I/O thread.
+    private final Set<Call> calls = new HashSet<>();
+    private final ArrayDeque<Connection> idle = new ArrayDeque<>();
+
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong connectionsReused = new AtomicLong();
+
+    /**
+     * @param binder            Prepares every socket, e.g. binds it to the network of the console.
+     * @param receiveBufferSize SO_RCVBUF of the sockets, 0 for the system default.
+     * @param writerThreads     Number of threads writing the files.
+     * @param pool              Buffers of the bodies are borrowed from it.
+     */
+    SelectorDownloader(final String host, final int port, final SocketBinder binder, final int receiveBufferSize,
+                       final int maxIdleConnections, final int writerThreads, final BufferPool pool) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.binder = binder;
+        this.receiveBufferSize = receiveBufferSize;
+        this.maxIdleConnections = maxIdleConnections;
+        this.pool = pool;
+        selector = Selector.open();
+        writers = Executors.newFixedThreadPool(writerThreads);
+        final Thread thread = new Thread(this::run, "SelectorDownloader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Number of new connections made.
+     */
+    long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    /**
+     * Number of requests sent on reused connections.
+     */
+    long getConnectionsReused() {
+        return connectionsReused.get();
+    }
+
+    /**
+     * Start downloading {@code path} on the console to {@code target}. Returns at once.
+     *
+     * @param path     Request target, e.g. "/img/a.jpg".
+     * @param offset   Number of bytes of the file already saved in {@code target}.
+     * @param listener Called on a writer thread.
+     * @param callback Called on a writer thread when the download completes or fails,
+     *                 or on the calling thread if this is closed.
+     */
+    void download(final String path, final long offset, final ItemDownloader.Target target,
+                  final ItemDownloader.Listener listener, final Callback callback) {
+        final Call call = new Call(path, offset, target, listener, callback);
+        if (!post(() -> start(call))) {
+            callback.onFailed(new IOException("closed"));
+        }
+    }
+
+    /**
+     * Fail the downloads in flight and close all connections. Files are closed before the callbacks.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    // Run task on the I/O thread. Returns false if the thread has stopped.
+    private boolean post(final Runnable task) {
+        synchronized (tasks) {
+            if (stopped) {
+                return false;
+            }
+            tasks.add(task);
+        }
+        selector.wakeup();
+        return true;
+    }
+
+    private void runTasks() {
+        while (true) {
+            final Runnable task;
+            synchronized (tasks) {
+                task = tasks.poll();
+            }
+            if (task == null) {
+                return;
+            }
+            task.run();
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            runTasks();
+            try {
+                selector.select(SELECT_TIMEOUT_MS);
+            } catch (IOException e) {
+                break;
+            }
+            final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                final SelectionKey key = it.next();
+                it.remove();
+                final Call call = (Call) key.attachment();
+                if (call == null || !key.isValid()) {
+                    continue;
+                }
+                try {
+                    if (key.isConnectable()) {
+                        onConnectable(call);
+                    } else if (key.isWritable()) {
+                        onWritable(call);
+                    } else if (key.isReadable()) {
+                        onReadable(call);
+                    }
+                } catch (IOException e) {
+                    onError(call, e);
+                }
+            }
+            checkTimeouts();
+        }
+        synchronized (tasks) {
+            stopped = true;
+        }
+        // Downloads started meanwhile fail with the rest.
+        runTasks();
+        for (final Call call : new ArrayList<>(calls)) {
+            fail(call, new IOException("closed"));
+        }
+        for (final Connection connection : idle) {
+            connection.close();
+        }
+        idle.clear();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+        writers.shutdown();
+    }
+
+    private void start(final Call call) {
+        if (closed) {
+            fail(call, new IOException("closed"));
+            return;
+        }
+        calls.add(call);
+        send(call);
+    }
+
+    // Send the request of call on an idle connection or a new one.
+    private void send(final Call call) {
+        final Connection connection = acquireIdle();
+        if (connection != null) {
+            connectionsReused.incrementAndGet();
+            call.reused = true;
+            call.connection = connection;
+            connection.key.attach(call);
+            onConnected(call);
+            return;
+        }
+        try {
+            connect(call);
+        } catch (IOException e) {
+            fail(call, e);
+        }
+    }
+
+    private Connection acquireIdle() {
+        final long now = System.nanoTime();
+        Connection connection;
+        while ((connection = idle.pollLast()) != null) {
+            if (now - connection.idleSince < TimeUnit.MILLISECONDS.toNanos(ConsoleHttpClient.KEEP_ALIVE_MS)) {
+                return connection;
+            }
+            connection.close();
+        }
+        return null;
+    }
+
+    private void connect(final Call call) throws IOException {
+        final SocketChannel channel = SocketChannel.open();
+        try {
+            final Socket socket = channel.socket();
+            socket.setTcpNoDelay(true);
+            if (receiveBufferSize > 0) {
+                socket.setReceiveBufferSize(receiveBufferSize);
+            }
+            binder.bind(socket);
+            channel.configureBlocking(false);
+            call.reused = false;
+            call.connection = new Connection(channel, channel.register(selector, 0, call));
+            connectionsOpened.incrementAndGet();
+            if (channel.connect(new InetSocketAddress(host, port))) {
+                onConnected(call);
+            } else {
+                call.state = STATE_CONNECTING;
+                setInterest(call, SelectionKey.OP_CONNECT, ConsoleHttpClient.CONNECT_TIMEOUT);
+            }
+        } catch (IOException e) {
+            channel.close();
+            call.connection = null;
+            throw e;
+        }
+    }
+
+    private void onConnectable(final Call call) throws IOException {
+        if (call.connection.channel.finishConnect()) {
+            onConnected(call);
+        }
+    }
+
+    private void onConnected(final Call call) {
+        final StringBuilder sb = new StringBuilder(128);
+        sb.append("GET ").append(call.path).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(host);
+        if (port != 80) {
+            sb.append(':').append(port);
+        }
+        sb.append("\r\n");
+        if (call.offset > 0) {
+            sb.append("Range: bytes=").append(call.offset).append("-\r\n");
+        }
+        sb.append("\r\n");
+        call.request = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (call.head == null) {
+            call.head = pool.acquire(HEAD_BUFFER_SIZE, false);
+        }
+        call.head.clear();
+        call.state = STATE_SENDING;
+        setInterest(call, SelectionKey.OP_WRITE, ConsoleHttpClient.READ_TIMEOUT);
+    }
+
+    private void onWritable(final Call call) throws IOException {
+        call.connection.channel.write(call.request);
+        if (!call.request.hasRemaining()) {
+            call.state = STATE_HEAD;
+            setInterest(call, SelectionKey.OP_READ, ConsoleHttpClient.READ_TIMEOUT);
+        }
+    }
+
+    private void onReadable(final Call call) throws IOException {
+        if (call.state == STATE_HEAD) {
+            readHead(call);
+        } else {
+            readBody(call);
+        }
+    }
+
+    private void readHead(final Call call) throws IOException {
+        final ByteBuffer head = call.head;
+        if (call.connection.channel.read(head) == -1) {
+            throw new EOFException("connection closed");
+        }
+        final int end = findHeadEnd(head.array(), head.arrayOffset(), head.position());
+        if (end == -1) {
+            if (!head.hasRemaining()) {
+                throw new IOException("response head too long");
+            }
+            call.deadlineNanos = deadline(ConsoleHttpClient.READ_TIMEOUT);
+            return;
+        }
+        final String[] lines = new String(head.array(), head.arrayOffset(), end, StandardCharsets.ISO_8859_1).split("\n");
+        // HTTP/1.1 200 OK
+        final String statusLine = trimCr(lines[0]);
+        final String[] parts = statusLine.split(" ", 3);
+        final int code;
+        try {
+            code = parts.length < 2 || !parts[0].startsWith("HTTP/") ? -1 : Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("bad status line: " + statusLine);
+        }
+        if (code == -1) {
+            throw new IOException("bad status line: " + statusLine);
+        }
+        final Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            final String line = trimCr(lines[i]);
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+            }
+        }
+        final String connection = headers.get("connection");
+        call.keepAlive = "HTTP/1.1".equals(parts[0])
+                ? !"close".equalsIgnoreCase(connection)
+                : "keep-alive".equalsIgnoreCase(connection);
+        call.remaining = parseContentLength(headers.get("content-length"));
+
+        if (call.offset > 0 && code == HttpURLConnection.HTTP_PARTIAL) {
+            final long[] range = ItemDownloader.parseContentRange(headers.get("content-range"));
+            if (range == null || range[0] != call.offset) {
+                throw new IOException("unexpected Content-Range: " + headers.get("content-range"));
+            }
+            call.append = true;
+            call.start = call.offset;
+            call.length = range[2];
+        } else if (call.offset > 0 && code == 416) { // Range Not Satisfiable.
+            if (ItemDownloader.parseUnsatisfiedRange(headers.get("content-range")) != call.offset) {
+                // The saved bytes are more than the file has now, download it again from the first byte.
+                call.connection.close();
+                call.connection = null;
+                call.offset = 0;
+                send(call);
+                return;
+            }
+            // Nothing left to download.
+            call.rangeNotSatisfiable = true;
+            call.remaining = 0;
+            call.keepAlive = false;
+        } else if (code == HttpURLConnection.HTTP_OK) {
+            // Range is not supported by the server, download the whole file again.
+            call.append = false;
+            call.start = 0;
+            call.length = call.remaining;
+        } else {
+            throw new IOException("HTTP " + code + " " + call.path);
+        }
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            throw new IOException("chunked body is not supported: " + call.path);
+        }
+        if (!call.append && !call.rangeNotSatisfiable) {
+            call.digest = ItemDownloader.newDigest();
+        }
+
+        // The bytes after the head are the first of the body.
+        call.body = pool.acquire(TransferEngine.bufferSizeFor(call.remaining), false);
+        final int received = head.position() - end;
+        final int n = call.remaining < 0 ? received : (int) Math.min(received, call.remaining);
+        call.body.put(head.array(), head.arrayOffset() + end, n);
+        pool.release(head);
+        call.head = null;
+        call.state = STATE_BODY;
+        consumed(call, n);
+    }
+
+    private void readBody(final Call call) throws IOException {
+        final ByteBuffer body = call.body;
+        if (call.remaining >= 0) {
+            body.limit((int) Math.min(body.capacity(), body.position() + call.remaining));
+        }
+        final int n = call.connection.channel.read(body);
+        if (n == -1) {
+            if (call.remaining > 0) {
+                throw new EOFException("connection closed with " + call.remaining + " bytes remaining");
+            }
+            // The body ends with the connection.
+            call.keepAlive = false;
+            call.remaining = 0;
+            consumed(call, 0);
+            return;
+        }
+        consumed(call, n);
+    }
+
+    // Called after n bytes of body are put in the buffer. Hands the buffer to a writer if it is full
+    // or the body is complete, so a writer round trip is paid per buffer instead of per read.
+    private void consumed(final Call call, final int n) {
+        if (call.remaining > 0) {
+            call.remaining -= n;
+        }
+        final boolean last = call.remaining == 0;
+        if (last) {
+            call.state = STATE_DONE;
+            calls.remove(call);
+            final Connection connection = call.connection;
+            call.connection = null;
+            if (call.keepAlive) {
+                release(connection);
+            } else {
+                connection.close();
+            }
+        } else if (call.body.hasRemaining()) {
+            // Read on.
+            call.deadlineNanos = deadline(ConsoleHttpClient.READ_TIMEOUT);
+            return;
+        } else {
+            setInterest(call, 0, 0);
+        }
+        handOver(call, last);
+    }
+
+    private void release(final Connection connection) {
+        connection.key.attach(null);
+        connection.key.interestOps(0);
+        if (closed || idle.size() >= maxIdleConnections) {
+            connection.close();
+            return;
+        }
+        connection.idleSince = System.nanoTime();
+        idle.addLast(connection);
+    }
+
+    // Called on the I/O thread when the writer gives the buffer back.
+    private void resume(final Call call) {
+        if (calls.contains(call)) {
+            setInterest(call, SelectionKey.OP_READ, ConsoleHttpClient.READ_TIMEOUT);
+        }
+    }
+
+    private void setInterest(final Call call, final int ops, final long timeoutMs) {
+        call.connection.key.interestOps(ops);
+        call.deadlineNanos = deadline(timeoutMs);
+    }
+
+    private static long deadline(final long timeoutMs) {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    }
+
+    // Fail the calls waiting for the network too long. Calls waiting for writers are not timed.
+    private void checkTimeouts() {
+        final long now = System.nanoTime();
+        for (final Call call : new ArrayList<>(calls)) {
+            if (call.connection != null && call.connection.key.isValid() && call.connection.key.interestOps() != 0
+                    && now - call.deadlineNanos > 0) {
+                fail(call, new SocketTimeoutException(call.state == STATE_CONNECTING ? "connect timed out" : "read timed out"));
+            }
+        }
+    }
+
+    private void onError(final Call call, final IOException e) {
+        if (call.reused && call.state < STATE_BODY && call.head != null && call.head.position() == 0) {
+            // The server may have closed the idle connection, try once on a new one.
+            call.connection.close();
+            try {
+                connect(call);
+                return;
+            } catch (IOException ce) {
+                fail(call, ce);
+                return;
+            }
+        }
+        fail(call, e);
+    }
+
+    // Called on the I/O thread. The file is closed and the callback called on a writer thread.
+    private void fail(final Call call, final IOException e) {
+        calls.remove(call);
+        call.state = STATE_DONE;
+        if (call.connection != null) {
+            call.connection.close();
+            call.connection = null;
+        }
+        if (call.head != null) {
+            pool.release(call.head);
+            call.head = null;
+        }
+        synchronized (call) {
+            if (call.finished) {
+                return;
+            }
+            if (call.failure == null) {
+                call.failure = e;
+            }
+            if (call.writing) {
+                // The writer finishes it.
+                return;
+            }
+            call.writing = true;
+        }
+        writers.execute(() -> finish(call));
+    }
+
+    // Write the buffered body on a writer thread, then give the buffer back or finish the call.
+    private void handOver(final Call call, final boolean last) {
+        synchronized (call) {
+            call.writing = true;
+        }
+        writers.execute(() -> {
+            IOException error = null;
+            try {
+                write(call, last);
+            } catch (IOException e) {
+                error = e;
+            }
+            final IOException failure;
+            synchronized (call) {
+                if (error != null && call.failure == null) {
+                    call.failure = error;
+                }
+                failure = call.failure;
+                if (failure == null && !last) {
+                    call.writing = false;
+                }
+            }
+            if (failure != null && !last) {
+                // Drop the connection.
+                post(() -> fail(call, failure));
+                finish(call);
+            } else if (last) {
+                finish(call);
+            } else {
+                // If the I/O thread has stopped, it fails the call instead.
+                post(() -> resume(call));
+            }
+        });
+    }
+
+    // Called on a writer thread.
+    private static void write(final Call call, final boolean last) throws IOException {
+        if (call.rangeNotSatisfiable) {
+            call.listener.onStart(call.offset, call.offset);
+            return;
+        }
+        if (call.out == null) {
+            call.listener.onStart(call.start, call.length);
+            call.out = call.target.open(call.start);
+        }
+        final ByteBuffer body = call.body;
+        body.flip();
+        final int n = body.remaining();
+        if (n > 0) {
+            call.out.write(body.array(), body.arrayOffset() + body.position(), n);
+            if (call.digest != null) {
+                call.digest.update(body.array(), body.arrayOffset() + body.position(), n);
+            }
+            call.listener.onBytesWritten(n);
+            call.copied += n;
+        }
+        body.clear();
+        if (!last) {
+            return;
+        }
+        final OutputStream out = call.out;
+        call.out = null;
+        out.close();
+        if (call.length >= 0 && call.start + call.copied != call.length) {
+            throw new IOException(String.format("%s truncated, %d of %d bytes", call.path, call.start + call.copied, call.length));
+        }
+        call.hash = call.digest == null ? null : call.digest.digest();
+    }
+
+    // Called on a writer thread, once the I/O thread is done with the call.
+    private void finish(final Call call) {
+        final IOException failure;
+        synchronized (call) {
+            if (call.finished) {
+                return;
+            }
+            call.finished = true;
+            failure = call.failure;
+        }
+        if (call.out != null) {
+            try {
+                call.out.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+            call.out = null;
+        }
+        if (call.body != null) {
+            pool.release(call.body);
+            call.body = null;
+        }
+        if (failure != null) {
+            call.callback.onFailed(failure);
+        } else {
+            call.callback.onCompleted(call.hash);
+        }
+    }
+
+    // Index after the empty line ending the head in array[offset, offset + length), relative to offset, or -1.
+    private static int findHeadEnd(final byte[] array, final int offset, final int length) {
+        for (int i = 0; i < length; i++) {
+            if (array[offset + i] != '\n') {
+                continue;
+            }
+            int j = i + 1;
+            if (j < length && array[offset + j] == '\r') {
+                j++;
+            }
+            if (j < length && array[offset + j] == '\n') {
+                return j + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static String trimCr(final String line) {
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+
+    private static long parseContentLength(final String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
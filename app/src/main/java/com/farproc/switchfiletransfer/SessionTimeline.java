@@ -0,0 +1,302 @@
+package com.farproc.switchfiletransfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * When the milestones of a session happen, from scanning the QR code to disconnecting.
+ * <p>
+ * Times are taken from a monotonic clock and kept relative to the creation of the timeline, so
+ * a timeline read back after a reboot is still meaningful. Every event is recorded once, the first
+ * time it happens. The completions of the items are recorded in the order they happen.
+ * <p>
+ * This class is thread safe.
+ */
+class SessionTimeline {
+    /**
+     * The milestones of a session, in the order they normally happen.
+     */
+    enum Event {
+        QR_PARSED,
+        CONNECT_REQUESTED,
+        NETWORK_AVAILABLE,
+        MANIFEST_RECEIVED,
+        FIRST_BYTE,
+        DISCONNECTED,
+    }
+
+    private static final Event[] EVENTS = Event.values();
+
+    // Time of an event which has not happened.
+    static final long UNSET = Long.MIN_VALUE;
+
+    private static final int HISTORY_MAGIC = 0x4e535431; // "NST1"
+
+    // Null for a timeline read back, which is not recorded anymore.
+    private final LongSupplier clock;
+    private final long origin;
+    // Wall clock time when the timeline is created, to tell sessions apart.
+    final long startTime;
+    // Time of every event since origin.
+    private final AtomicLongArray times = new AtomicLongArray(EVENTS.length);
+    // Positions and times of the completed items. Guarded by this.
+    private int[] itemPositions = new int[16];
+    private long[] itemTimes = new long[16];
+    private int itemCount;
+
+    /**
+     * @param clock     Current time in milliseconds, monotonic.
+     * @param startTime Current wall clock time.
+     */
+    SessionTimeline(final LongSupplier clock, final long startTime) {
+        this.clock = clock;
+        this.startTime = startTime;
+        origin = clock.getAsLong();
+        for (int i = 0; i < EVENTS.length; i++) {
+            times.set(i, UNSET);
+        }
+    }
+
+    /**
+     * Record that {@code event} happens now.
+     *
+     * @return False if it happened before.
+     */
+    boolean mark(final Event event) {
+        // Checked first, it's called for every write of the downloads.
+        if (times.get(event.ordinal()) != UNSET) {
+            return false;
+        }
+        return markAt(event, clock.getAsLong());
+    }
+
+    /**
+     * Record that {@code event} happened at {@code time} of the clock.
+     *
+     * @return False if it happened before.
+     */
+    boolean markAt(final Event event, final long time) {
+        return times.compareAndSet(event.ordinal(), UNSET, time - origin);
+    }
+
+    boolean has(final Event event) {
+        return times.get(event.ordinal()) != UNSET;
+    }
+
+    /**
+     * Record that the item at {@code position} is completed now.
+     */
+    void markItemCompleted(final int position) {
+        final long time = clock.getAsLong() - origin;
+        synchronized (this) {
+            if (itemCount == itemPositions.length) {
+                itemPositions = Arrays.copyOf(itemPositions, itemCount * 2);
+                itemTimes = Arrays.copyOf(itemTimes, itemCount * 2);
+            }
+            itemPositions[itemCount] = position;
+            itemTimes[itemCount] = time;
+            itemCount++;
+        }
+    }
+
+    // The time of the first event, which all the elapsed times are measured from.
+    private long start() {
+        long start = UNSET;
+        for (int i = 0; i < EVENTS.length; i++) {
+            final long time = times.get(i);
+            if (time != UNSET && (start == UNSET || time < start)) {
+                start = time;
+            }
+        }
+        return start == UNSET ? 0 : start;
+    }
+
+    /**
+     * Time from the first event to {@code event}.
+     *
+     * @return -1 if it has not happened.
+     */
+    long getElapsedMs(final Event event) {
+        final long time = times.get(event.ordinal());
+        return time == UNSET ? -1 : time - start();
+    }
+
+    /**
+     * Time from scanning the QR code, or requesting the connection, to the first byte of a file.
+     *
+     * @return -1 if no byte is downloaded.
+     */
+    long getTimeToFirstByteMs() {
+        return getElapsedMs(Event.FIRST_BYTE);
+    }
+
+    /**
+     * Time from scanning the QR code, or requesting the connection, to disconnecting.
+     *
+     * @return -1 if not disconnected yet.
+     */
+    long getTotalMs() {
+        return getElapsedMs(Event.DISCONNECTED);
+    }
+
+    synchronized int getItemCount() {
+        return itemCount;
+    }
+
+    synchronized int getItemPosition(final int i) {
+        return itemPositions[i];
+    }
+
+    /**
+     * Time from the first event to the completion of the {@code i}th completed item.
+     */
+    synchronized long getItemElapsedMs(final int i) {
+        return itemTimes[i] - start();
+    }
+
+    /**
+     * Every event that happened with its time since the first event and since the event before it,
+     * e.g. "CONNECT_REQUESTED 0ms, NETWORK_AVAILABLE 2300ms(+2300ms), ...".
+     */
+    @Override
+    public synchronized String toString() {
+        final StringBuilder s = new StringBuilder();
+        final long start = start();
+        long previous = UNSET;
+        for (int i = 0; i < EVENTS.length; i++) {
+            final long time = times.get(i);
+            if (time == UNSET) {
+                continue;
+            }
+            if (s.length() > 0) {
+                s.append(", ");
+            }
+            s.append(EVENTS[i]).append(' ').append(time - start).append("ms");
+            if (previous != UNSET) {
+                s.append(String.format(Locale.US, "(%+dms)", time - previous));
+            }
+            previous = time;
+        }
+        if (itemCount > 0) {
+            s.append(String.format(Locale.US, ", %d items, last %dms", itemCount, itemTimes[itemCount - 1] - start));
+        }
+        return s.toString();
+    }
+
+    synchronized void write(final DataOutputStream out) throws IOException {
+        out.writeLong(startTime);
+        out.writeByte(EVENTS.length);
+        for (int i = 0; i < EVENTS.length; i++) {
+            out.writeLong(times.get(i));
+        }
+        out.writeInt(itemCount);
+        for (int i = 0; i < itemCount; i++) {
+            out.writeInt(itemPositions[i]);
+            out.writeLong(itemTimes[i]);
+        }
+    }
+
+    private SessionTimeline(final long startTime) {
+        clock = null;
+        origin = 0;
+        this.startTime = startTime;
+    }
+
+    /**
+     * Read a timeline written by {@link #write(DataOutputStream)}.
+     * It can't be recorded anymore.
+     */
+    static SessionTimeline read(final DataInputStream in) throws IOException {
+        final SessionTimeline timeline = new SessionTimeline(in.readLong());
+        final int eventCount = in.readUnsignedByte();
+        for (int i = 0; i < eventCount; i++) {
+            final long time = in.readLong();
+            // Events of newer versions are skipped.
+            if (i < EVENTS.length) {
+                timeline.times.set(i, time);
+            }
+        }
+        for (int i = eventCount; i < EVENTS.length; i++) {
+            timeline.times.set(i, UNSET);
+        }
+        final int itemCount = in.readInt();
+        if (itemCount < 0) {
+            throw new IOException("bad item count " + itemCount);
+        }
+        timeline.itemPositions = new int[Math.max(1, itemCount)];
+        timeline.itemTimes = new long[Math.max(1, itemCount)];
+        for (int i = 0; i < itemCount; i++) {
+            timeline.itemPositions[i] = in.readInt();
+            timeline.itemTimes[i] = in.readLong();
+        }
+        timeline.itemCount = itemCount;
+        return timeline;
+    }
+
+    /**
+     * Read the timelines saved by {@link #writeHistory(File, List)}.
+     *
+     * @return Empty if there is no file.
+     */
+    static ArrayList<SessionTimeline> readHistory(final File file) throws IOException {
+        final ArrayList<SessionTimeline> timelines = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != HISTORY_MAGIC) {
+                throw new IOException("not a timeline history: " + file);
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                timelines.add(read(in));
+            }
+        } catch (FileNotFoundException e) {
+            // No session yet.
+        }
+        return timelines;
+    }
+
+    /**
+     * Save {@code timelines}, replacing the file.
+     * The file is written aside and renamed, so the old one is intact if this fails.
+     */
+    static void writeHistory(final File file, final List<SessionTimeline> timelines) throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(HISTORY_MAGIC);
+            out.writeInt(timelines.size());
+            for (final SessionTimeline timeline : timelines) {
+                timeline.write(out);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("can't rename " + tmp);
+        }
+    }
+
+    /**
+     * The value below which {@code percent} percent of {@code values} are, by the nearest rank.
+     * Negative values, which stand for unknown times, are ignored.
+     *
+     * @return -1 if there is no value.
+     */
+    static long percentile(final long[] values, final int percent) {
+        final long[] sorted = Arrays.stream(values).filter(v -> v >= 0).sorted().toArray();
+        if (sorted.length == 0) {
+            return -1;
+        }
+        final int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
@@ -0,0 +1,47 @@
+package com.farproc.switchfiletransfer;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Learns the sizes of files with HEAD requests.
+ */
+class SizeProbe {
+    private SizeProbe() {
+    }
+
+    /**
+     * Send HEAD requests for all {@code paths}, pipelined if the server allows,
+     * and give up after about {@code timeoutMs} milliseconds.
+     *
+     * @return Content-Length of every path, -1 if unknown.
+     */
+    static long[] probe(final ConsoleHttpClient client, final String[] paths, final long timeoutMs) {
+        final long[] sizes = new long[paths.length];
+        Arrays.fill(sizes, -1);
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        for (int i = 0; i < paths.length && System.currentTimeMillis() < deadline; ) {
+            final int end = Math.min(paths.length, i + ConsoleHttpClient.PIPELINE_DEPTH);
+            final List<ConsoleHttpClient.Request> requests = new ArrayList<>(end - i);
+            for (int j = i; j < end; j++) {
+                requests.add(ConsoleHttpClient.Request.head(paths[j]));
+            }
+            final List<ConsoleHttpClient.Response> responses;
+            try {
+                responses = client.pipeline(requests);
+            } catch (IOException e) {
+                break;
+            }
+            for (final ConsoleHttpClient.Response response : responses) {
+                if (response.code == HttpURLConnection.HTTP_OK) {
+                    sizes[i] = response.getContentLength();
+                }
+                i++;
+            }
+        }
+        return sizes;
+    }
+}
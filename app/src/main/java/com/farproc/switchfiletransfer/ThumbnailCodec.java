@@ -0,0 +1,258 @@
+package com.farproc.switchfiletransfer;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaDataSource;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Creates thumbnails of images by decoding them downsampled and of videos with {@link Compat.Impl#createThumbnail},
+ * and saves them as JPEG. Also creates thumbnails from the bytes kept by a {@link ThumbnailTee}.
+ * <p>
+ * Thumbnails are about the size of the image in a row of the download list. Images are decoded
+ * into the memory of recycled thumbnails from a {@link BitmapPool} when possible.
+ */
+class ThumbnailCodec implements ThumbnailLoader.Codec<Bitmap> {
+    private final Context context;
+    private final BitmapPool<Bitmap> pool;
+    // Size of the image in a row of the download list, in pixels.
+    private final int width;
+    private final int height;
+
+    ThumbnailCodec(final Context context, final BitmapPool<Bitmap> pool) {
+        this.context = context.getApplicationContext();
+        this.pool = pool;
+        final Resources resources = context.getResources();
+        final DisplayMetrics metrics = resources.getDisplayMetrics();
+        final int margin = resources.getDimensionPixelSize(R.dimen.list_item_image_margin);
+        // The longer side of the screen, so the thumbnails fit in both orientations.
+        width = Math.max(metrics.widthPixels, metrics.heightPixels) - 2 * margin;
+        height = resources.getDimensionPixelSize(R.dimen.list_item_height) - 2 * margin;
+    }
+
+    @Override
+    public String stamp(final String uri) throws IOException {
+        try (ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(Uri.parse(uri), "r")) {
+            if (pfd == null) {
+                throw new FileNotFoundException(uri);
+            }
+            final StructStat stat = Os.fstat(pfd.getFileDescriptor());
+            return stat.st_size + "@" + stat.st_mtime;
+        } catch (ErrnoException | SecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public Bitmap create(final String uri) throws IOException {
+        Tracing.begin("thumbnail create");
+        try {
+            return createFromFile(uri);
+        } finally {
+            Tracing.end();
+        }
+    }
+
+    private Bitmap createFromFile(final String uri) throws IOException {
+        final Uri file = Uri.parse(uri);
+        final Bitmap bitmap;
+        try {
+            final String type = context.getContentResolver().getType(file);
+            if (type != null && type.startsWith("image/")) {
+                bitmap = decodeImage(() -> context.getContentResolver().openInputStream(file));
+            } else {
+                bitmap = Compat.Instance.createThumbnail(context, file);
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e("thumbnail", "", e);
+            throw new IOException(e);
+        }
+        if (bitmap == null) {
+            throw new IOException("no thumbnail for " + uri);
+        }
+        return scale(bitmap);
+    }
+
+    /**
+     * Create the thumbnail from the bytes kept by {@code tee}, without reading the saved file.
+     * The image is decoded downsampled, the video frame is the first keyframe.
+     */
+    Bitmap create(final ThumbnailTee tee) throws IOException {
+        Tracing.begin("thumbnail create from tee");
+        try {
+            return createFromTee(tee);
+        } finally {
+            Tracing.end();
+        }
+    }
+
+    private Bitmap createFromTee(final ThumbnailTee tee) throws IOException {
+        if (!tee.isUsable()) {
+            throw new IOException("not enough bytes kept for thumbnail");
+        }
+        final Bitmap bitmap;
+        if (tee.isVideo()) {
+            bitmap = decodeFirstKeyframe(tee);
+        } else {
+            final byte[] bytes = new byte[(int) tee.length()];
+            tee.readAt(0, bytes, 0, bytes.length);
+            bitmap = decodeImage(() -> new ByteArrayInputStream(bytes));
+        }
+        if (bitmap == null) {
+            throw new IOException("can't decode thumbnail");
+        }
+        return scale(bitmap);
+    }
+
+    private interface Source {
+        InputStream open() throws IOException;
+    }
+
+    // Decode the image downsampled, the bounds are decoded first to choose the sample size.
+    private Bitmap decodeImage(final Source source) throws IOException {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = source.open()) {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        // The largest power of 2 which keeps the image larger than the thumbnail.
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= width && options.outHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        // Mutable, so it can be reused when it is recycled.
+        options.inMutable = true;
+        final int bytes = divideRoundingUp(options.outWidth, sampleSize) * divideRoundingUp(options.outHeight, sampleSize) * 4;
+        final Bitmap pooled = pool.acquire(bytes);
+        options.inBitmap = pooled;
+        Bitmap bitmap = null;
+        try {
+            try (InputStream in = source.open()) {
+                bitmap = BitmapFactory.decodeStream(in, null, options);
+            } catch (IllegalArgumentException e) {
+                // The pooled bitmap can't be reused for this image.
+                options.inBitmap = null;
+                try (InputStream in = source.open()) {
+                    bitmap = BitmapFactory.decodeStream(in, null, options);
+                }
+            }
+        } finally {
+            // Not decoded into, back to the pool.
+            if (pooled != null && bitmap != pooled) {
+                pool.release(pooled);
+            }
+        }
+        return bitmap;
+    }
+
+    private static int divideRoundingUp(final int a, final int b) {
+        return (a + b - 1) / b;
+    }
+
+    private static Bitmap decodeFirstKeyframe(final ThumbnailTee tee) throws IOException {
+        final MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(new MediaDataSource() {
+                @Override
+                public int readAt(long position, byte[] buffer, int offset, int size) {
+                    return tee.readAt(position, buffer, offset, size);
+                }
+
+                @Override
+                public long getSize() {
+                    return tee.length();
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+            return retriever.getFrameAtTime(0, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+        } catch (RuntimeException e) {
+            throw new IOException(e);
+        } finally {
+            retriever.release();
+        }
+    }
+
+    // Scale down to fit in the thumbnail size, keeping the aspect ratio.
+    // A bitmap less than twice the size is kept, the ImageView scales it.
+    private Bitmap scale(final Bitmap bitmap) {
+        final float ratio = Math.min((float) width / bitmap.getWidth(), (float) height / bitmap.getHeight());
+        if (ratio > 0.5f) {
+            return bitmap;
+        }
+        final Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, Math.round(bitmap.getWidth() * ratio)), Math.max(1, Math.round(bitmap.getHeight() * ratio)), true);
+        if (scaled != bitmap) {
+            // A mutable source is decoded into pooled memory, back to the pool for the next decode.
+            if (bitmap.isMutable()) {
+                pool.release(bitmap);
+            } else {
+                bitmap.recycle();
+            }
+        }
+        return scaled;
+    }
+
+    @Override
+    public Bitmap read(final File file) throws IOException {
+        Tracing.begin("thumbnail read");
+        final Bitmap bitmap;
+        try {
+            bitmap = decodeImage(() -> new FileInputStream(file));
+        } finally {
+            Tracing.end();
+        }
+        if (bitmap == null) {
+            throw new IOException("can't decode " + file);
+        }
+        return bitmap;
+    }
+
+    @Override
+    public void write(final Bitmap thumbnail, final OutputStream out) throws IOException {
+        Tracing.begin("thumbnail write");
+        try {
+            if (!thumbnail.compress(Bitmap.CompressFormat.JPEG, 85, out)) {
+                throw new IOException("can't compress thumbnail");
+            }
+        } finally {
+            Tracing.end();
+        }
+    }
+
+    @Override
+    public int sizeOf(final Bitmap thumbnail) {
+        return thumbnail.getAllocationByteCount();
+    }
+
+    @Override
+    public void recycle(final Bitmap thumbnail) {
+        if (thumbnail.isMutable()) {
+            pool.release(thumbnail);
+        }
+    }
+}
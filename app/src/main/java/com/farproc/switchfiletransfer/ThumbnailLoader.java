@@ -0,0 +1,421 @@
+package com.farproc.switchfiletransfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Loads thumbnails off main thread.
+ * <p>
+ * Loaded thumbnails are kept in memory up to a total size, the least recently used ones are dropped first.
+ * They are also saved in a {@link DiskCache} by the Uri and the modification stamp of the file,
+ * so a thumbnail is created once unless the file changes.
+ * <p>
+ * Thumbnails created elsewhere, e.g. from the bytes of a file as it is downloaded, are added with {@link #put}.
+ * <p>
+ * Requests of the same Uri are coalesced into one load. A request is cancelled when its target is given
+ * another request or {@link #cancel(Target)}ed, and a load not started yet is dropped if no target is left.
+ * <p>
+ * Thumbnails about to be shown can be {@link #prefetch}ed. Prefetches wait until no load for a target is
+ * running, and at most {@link #setPrefetchLimit} of them run at the same time. The loader keeps
+ * {@link Stats} of how often a prefetched thumbnail is found in memory when it is loaded.
+ * <p>
+ * A thumbnail delivered to a target is in use until the target is given another request or cancelled.
+ * A thumbnail dropped from memory is {@link Codec#recycle}d once it is not in use,
+ * so the memory of the thumbnails is bounded by the cache size plus the thumbnails on screen.
+ * <p>
+ * This class must be used on main thread except {@link #put}, the {@link Codec} is called on the worker threads.
+ */
+class ThumbnailLoader<T> {
+    /**
+     * Creates, saves and reads thumbnails. Called on the worker threads.
+     */
+    interface Codec<T> {
+        /**
+         * @return A string which changes when the file at {@code uri} changes, e.g. the size and the last modified time.
+         */
+        String stamp(String uri) throws IOException;
+
+        /**
+         * Create the thumbnail of the file at {@code uri}.
+         */
+        T create(String uri) throws IOException;
+
+        T read(File file) throws IOException;
+
+        void write(T thumbnail, OutputStream out) throws IOException;
+
+        /**
+         * Number of bytes {@code thumbnail} takes in memory.
+         */
+        int sizeOf(T thumbnail);
+
+        /**
+         * {@code thumbnail} is neither cached nor shown anymore, its memory can be reused. Called on main thread.
+         */
+        void recycle(T thumbnail);
+    }
+
+    interface Target<T> {
+        /**
+         * @param thumbnail Null if it can't be loaded.
+         */
+        void onThumbnailLoaded(T thumbnail);
+    }
+
+    /**
+     * Counters of the loads, to tune the prefetch distance.
+     */
+    static class Stats {
+        // Calls of load().
+        int loads;
+        // Loads found in memory.
+        int memoryHits;
+        // Loads found in memory because they were prefetched.
+        int prefetchHits;
+        // Loads which joined a running prefetch.
+        int prefetchLate;
+        // Loads which started a new load, including the prefetches not started yet.
+        int misses;
+        // Prefetches completed.
+        int prefetched;
+
+        /**
+         * Share of the loads not in memory before prefetching, which prefetching put in memory in time.
+         */
+        double getPrefetchHitRate() {
+            final int total = prefetchHits + prefetchLate + misses;
+            return total == 0 ? 0 : (double) prefetchHits / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "loads %d, memory hits %d, prefetch hits %d, late %d, misses %d, prefetched %d, hit rate %.2f",
+                    loads, memoryHits, prefetchHits, prefetchLate, misses, prefetched, getPrefetchHitRate());
+        }
+    }
+
+    private class Job {
+        final String uri;
+        final List<Target<T>> targets = new ArrayList<>(1);
+        final Runnable task;
+        // Started by prefetch(), counted in prefetchesRunning when running.
+        boolean prefetch;
+        // Given to the worker executor.
+        boolean running;
+        // Nobody waits for it, skip it if it is not started yet.
+        volatile boolean cancelled;
+
+        Job(final String uri) {
+            this.uri = uri;
+            task = () -> {
+                T thumbnail = null;
+                if (!cancelled) {
+                    try {
+                        thumbnail = loadThumbnail(uri);
+                    } catch (IOException e) {
+                        // Delivered as null.
+                    }
+                }
+                final T result = thumbnail;
+                // Also when cancelled, to count it done.
+                mainExecutor.execute(() -> onJobDone(this, result));
+            };
+        }
+    }
+
+    private final Executor workerExecutor;
+    private final Executor mainExecutor;
+    private final DiskCache diskCache;
+    private final Codec<T> codec;
+    private final long maxMemoryBytes;
+
+    private final LinkedHashMap<String, T> memoryCache = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+    // Uri -> the job loading it.
+    private final Map<String, Job> jobs = new HashMap<>();
+    // Target -> the job it waits for.
+    private final Map<Target<T>, Job> targets = new HashMap<>();
+    // Target -> the thumbnail delivered to it.
+    private final Map<Target<T>, T> shown = new HashMap<>();
+    // Thumbnail -> number of targets showing it.
+    private final Map<T, Integer> useCounts = new IdentityHashMap<>();
+    // Thumbnails dropped from memory but still shown, recycled when they are not.
+    private final Set<T> dropped = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // Prefetches not started yet, in the order to start.
+    private final ArrayDeque<Job> prefetchQueue = new ArrayDeque<>();
+    private int loadsRunning;
+    private int prefetchesRunning;
+    private int prefetchLimit = 1;
+    // Prefetched thumbnails in memory which are not loaded yet.
+    private final Set<String> prefetchedUris = new HashSet<>();
+    private final Stats stats = new Stats();
+
+    /**
+     * @param workerExecutor Runs the loads.
+     * @param mainExecutor   Runs on main thread, the loaded thumbnails are delivered with it.
+     * @param maxMemoryBytes Max total size of the thumbnails kept in memory.
+     */
+    ThumbnailLoader(final Executor workerExecutor, final Executor mainExecutor, final DiskCache diskCache,
+                    final Codec<T> codec, final long maxMemoryBytes) {
+        this.workerExecutor = workerExecutor;
+        this.mainExecutor = mainExecutor;
+        this.diskCache = diskCache;
+        this.codec = codec;
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    /**
+     * Load the thumbnail of {@code uri} for {@code target}, cancelling the previous request of {@code target}.
+     * The thumbnail is delivered at once if it is in memory.
+     */
+    void load(final String uri, final Target<T> target) {
+        cancel(target);
+        stats.loads++;
+        final T thumbnail = memoryCache.get(uri);
+        if (thumbnail != null) {
+            stats.memoryHits++;
+            if (prefetchedUris.remove(uri)) {
+                stats.prefetchHits++;
+            }
+            deliver(target, thumbnail);
+            return;
+        }
+        Job job = jobs.get(uri);
+        if (job == null) {
+            stats.misses++;
+            job = new Job(uri);
+            jobs.put(uri, job);
+            start(job);
+        } else if (!job.running) {
+            // A queued prefetch, start it now as a load.
+            stats.misses++;
+            prefetchQueue.remove(job);
+            job.prefetch = false;
+            start(job);
+        } else if (job.prefetch && job.targets.isEmpty()) {
+            stats.prefetchLate++;
+        }
+        job.targets.add(target);
+        targets.put(target, job);
+    }
+
+    /**
+     * Load the thumbnail of {@code uri} into memory, after the loads for targets.
+     * Prefetches are started in the order of the calls.
+     */
+    void prefetch(final String uri) {
+        if (memoryCache.containsKey(uri) || jobs.containsKey(uri)) {
+            return;
+        }
+        final Job job = new Job(uri);
+        job.prefetch = true;
+        jobs.put(uri, job);
+        prefetchQueue.add(job);
+        startPrefetches();
+    }
+
+    /**
+     * Drop the prefetches not started yet, e.g. when the list is scrolled the other way.
+     */
+    void cancelPrefetches() {
+        for (final Job job : prefetchQueue) {
+            jobs.remove(job.uri);
+        }
+        prefetchQueue.clear();
+    }
+
+    /**
+     * Max number of prefetches running at the same time, e.g. fewer while files are downloaded.
+     */
+    void setPrefetchLimit(final int limit) {
+        prefetchLimit = limit;
+        startPrefetches();
+    }
+
+    /**
+     * A copy of the counters.
+     */
+    Stats getStats() {
+        final Stats copy = new Stats();
+        copy.loads = stats.loads;
+        copy.memoryHits = stats.memoryHits;
+        copy.prefetchHits = stats.prefetchHits;
+        copy.prefetchLate = stats.prefetchLate;
+        copy.misses = stats.misses;
+        copy.prefetched = stats.prefetched;
+        return copy;
+    }
+
+    private void start(final Job job) {
+        job.running = true;
+        if (job.prefetch) {
+            prefetchesRunning++;
+        } else {
+            loadsRunning++;
+        }
+        workerExecutor.execute(job.task);
+    }
+
+    // Prefetches run only when no load for a target is running.
+    private void startPrefetches() {
+        while (loadsRunning == 0 && prefetchesRunning < prefetchLimit && !prefetchQueue.isEmpty()) {
+            start(prefetchQueue.poll());
+        }
+    }
+
+    /**
+     * Cancel the request of {@code target}, if there is one, and release the thumbnail delivered to it.
+     * {@code target} must not show that thumbnail anymore.
+     */
+    void cancel(final Target<T> target) {
+        final T thumbnail = shown.remove(target);
+        if (thumbnail != null) {
+            final int count = useCounts.remove(thumbnail) - 1;
+            if (count > 0) {
+                useCounts.put(thumbnail, count);
+            } else if (dropped.remove(thumbnail)) {
+                codec.recycle(thumbnail);
+            }
+        }
+        final Job job = targets.remove(target);
+        if (job == null) {
+            return;
+        }
+        job.targets.remove(target);
+        if (job.targets.isEmpty() && !job.prefetch) {
+            jobs.remove(job.uri);
+            // A running load is not interrupted, the thumbnail is still cached.
+            job.cancelled = true;
+        }
+    }
+
+    /**
+     * Add the thumbnail of {@code uri} created elsewhere. Can be called on any thread,
+     * the thumbnail is saved to disk on the calling thread.
+     */
+    void put(final String uri, final T thumbnail) {
+        try {
+            final String key = diskKey(uri);
+            diskCache.put(key, out -> codec.write(thumbnail, out));
+        } catch (IOException e) {
+            // Not saved, created from the file next time.
+        }
+        mainExecutor.execute(() -> remember(uri, thumbnail));
+    }
+
+    private void onJobDone(final Job job, final T thumbnail) {
+        if (jobs.get(job.uri) == job) {
+            jobs.remove(job.uri);
+        }
+        if (job.prefetch) {
+            prefetchesRunning--;
+        } else {
+            loadsRunning--;
+        }
+        if (thumbnail != null) {
+            remember(job.uri, thumbnail);
+            if (job.prefetch) {
+                stats.prefetched++;
+                if (job.targets.isEmpty()) {
+                    prefetchedUris.add(job.uri);
+                }
+            }
+        }
+        for (final Target<T> target : job.targets) {
+            targets.remove(target);
+            deliver(target, thumbnail);
+        }
+        job.targets.clear();
+        startPrefetches();
+    }
+
+    private void deliver(final Target<T> target, final T thumbnail) {
+        if (thumbnail != null) {
+            shown.put(target, thumbnail);
+            final Integer count = useCounts.get(thumbnail);
+            useCounts.put(thumbnail, count == null ? 1 : count + 1);
+        }
+        target.onThumbnailLoaded(thumbnail);
+    }
+
+    private void remember(final String uri, final T thumbnail) {
+        final T old = memoryCache.put(uri, thumbnail);
+        if (old == thumbnail) {
+            return;
+        }
+        memoryBytes += codec.sizeOf(thumbnail);
+        if (old != null) {
+            memoryBytes -= codec.sizeOf(old);
+            drop(old);
+        }
+        trimMemory();
+    }
+
+    private void trimMemory() {
+        final Iterator<Map.Entry<String, T>> it = memoryCache.entrySet().iterator();
+        // Keep the latest one even if it alone is too large.
+        while (memoryBytes > maxMemoryBytes && memoryCache.size() > 1) {
+            final Map.Entry<String, T> entry = it.next();
+            memoryBytes -= codec.sizeOf(entry.getValue());
+            it.remove();
+            prefetchedUris.remove(entry.getKey());
+            drop(entry.getValue());
+        }
+    }
+
+    // Recycle a thumbnail dropped from memory, or once it is not shown.
+    private void drop(final T thumbnail) {
+        if (useCounts.containsKey(thumbnail)) {
+            dropped.add(thumbnail);
+        } else {
+            codec.recycle(thumbnail);
+        }
+    }
+
+    /**
+     * Total size of the thumbnails kept in memory.
+     */
+    long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    // The file is saved on disk by the Uri and the stamp, so a changed file misses.
+    private String diskKey(final String uri) throws IOException {
+        return uri + '#' + codec.stamp(uri);
+    }
+
+    // Called on a worker thread.
+    private T loadThumbnail(final String uri) throws IOException {
+        final String key = diskKey(uri);
+        final File file = diskCache.get(key);
+        if (file != null) {
+            try {
+                return codec.read(file);
+            } catch (IOException e) {
+                // Deleted or damaged, create it again.
+            }
+        }
+        final T thumbnail = codec.create(uri);
+        try {
+            diskCache.put(key, out -> codec.write(thumbnail, out));
+        } catch (IOException e) {
+            // Not saved, created again next time.
+        }
+        return thumbnail;
+    }
+}
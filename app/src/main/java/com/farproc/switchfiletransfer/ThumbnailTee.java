@@ -0,0 +1,230 @@
+package com.farproc.switchfiletransfer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Passes the bytes of a file through to its output stream, and keeps the parts needed to create
+ * the thumbnail of the file, so the thumbnail can be created without reading the saved file back.
+ * <p>
+ * All of a JPEG is kept, up to {@link #MAX_IMAGE_BYTES}. Of an MP4, the {@code ftyp} and {@code moov}
+ * boxes are kept, and the first {@link #MDAT_HEAD_BYTES} of the {@code mdat} box, where the first keyframe is.
+ * Call {@link #readAt} to read the kept parts at their offsets in the file, the other bytes read as 0.
+ * <p>
+ * This class is not thread safe.
+ */
+class ThumbnailTee extends FilterOutputStream {
+    static final int MAX_IMAGE_BYTES = 4 * 1024 * 1024;
+    static final int MAX_MOOV_BYTES = 4 * 1024 * 1024;
+    static final int MDAT_HEAD_BYTES = 1024 * 1024;
+
+    // A kept part of the file.
+    private static class Region {
+        final long offset;
+        // Max number of bytes to keep.
+        final int limit;
+        byte[] data = new byte[8 * 1024];
+        int length;
+
+        Region(final long offset, final int limit) {
+            this.offset = offset;
+            this.limit = limit;
+        }
+
+        // Keep what fits in the limit.
+        void append(final byte[] b, final int off, final int len) {
+            final int n = Math.min(len, limit - length);
+            if (length + n > data.length) {
+                data = Arrays.copyOf(data, Math.min(limit, Math.max(length + n, data.length * 2)));
+            }
+            System.arraycopy(b, off, data, length, n);
+            length += n;
+        }
+    }
+
+    private final boolean isVideo;
+    private final List<Region> regions = new ArrayList<>();
+    // Number of bytes written.
+    private long position;
+    // The part of the file too large to keep, nothing can be created.
+    private boolean overflow;
+
+    // MP4 box being read.
+    private final byte[] boxHeader = new byte[16];
+    private int boxHeaderLength;
+    // 8, or 16 with a 64 bits size.
+    private int boxHeaderNeeded = 8;
+    private String boxType;
+    // -1 if the box extends to the end of the file.
+    private long boxEnd;
+    // Where the box is kept, null if it is skipped.
+    private Region boxRegion;
+    private boolean moovKept;
+    private boolean mdatKept;
+
+    ThumbnailTee(final OutputStream out, final boolean isVideo) {
+        super(out);
+        this.isVideo = isVideo;
+        if (!isVideo) {
+            regions.add(new Region(0, MAX_IMAGE_BYTES + 1));
+        }
+    }
+
+    boolean isVideo() {
+        return isVideo;
+    }
+
+    /**
+     * Number of bytes written.
+     */
+    long length() {
+        return position;
+    }
+
+    /**
+     * Whether enough of the file is kept to create its thumbnail.
+     */
+    boolean isUsable() {
+        if (overflow || position == 0) {
+            return false;
+        }
+        return !isVideo || (moovKept && mdatKept);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        out.write(b, off, len);
+        if (overflow) {
+            position += len;
+        } else if (isVideo) {
+            keepBoxes(b, off, len);
+        } else {
+            regions.get(0).append(b, off, len);
+            position += len;
+            if (position > MAX_IMAGE_BYTES) {
+                drop();
+            }
+        }
+    }
+
+    private void keepBoxes(final byte[] b, int off, int len) {
+        while (len > 0 && !overflow) {
+            if (boxHeaderLength < boxHeaderNeeded) {
+                final int n = Math.min(len, boxHeaderNeeded - boxHeaderLength);
+                System.arraycopy(b, off, boxHeader, boxHeaderLength, n);
+                boxHeaderLength += n;
+                position += n;
+                off += n;
+                len -= n;
+                if (boxHeaderLength == boxHeaderNeeded) {
+                    startBox();
+                }
+                continue;
+            }
+            final int n = boxEnd < 0 ? len : (int) Math.min(len, boxEnd - position);
+            if (boxRegion != null) {
+                boxRegion.append(b, off, n);
+            }
+            position += n;
+            off += n;
+            len -= n;
+            if (position == boxEnd) {
+                endBox();
+            }
+        }
+        // The rest after giving up.
+        position += len;
+    }
+
+    // Called when boxHeaderNeeded bytes of the header are read.
+    private void startBox() {
+        long size = readUInt32(boxHeader, 0);
+        if (size == 1 && boxHeaderNeeded == 8) {
+            // 64 bits size follows the type.
+            boxHeaderNeeded = 16;
+            return;
+        }
+        final long boxStart = position - boxHeaderNeeded;
+        if (size == 1) {
+            size = (readUInt32(boxHeader, 8) << 32) | readUInt32(boxHeader, 12);
+        }
+        if (size != 0 && size < boxHeaderNeeded) {
+            // Not an MP4 we understand.
+            drop();
+            return;
+        }
+        boxEnd = size == 0 ? -1 : boxStart + size;
+        boxType = new String(boxHeader, 4, 4, StandardCharsets.US_ASCII);
+        if ("ftyp".equals(boxType) || "moov".equals(boxType)) {
+            if (size == 0 || size > MAX_MOOV_BYTES) {
+                drop();
+                return;
+            }
+            boxRegion = new Region(boxStart, (int) size);
+        } else if ("mdat".equals(boxType) && !mdatKept) {
+            boxRegion = new Region(boxStart, boxHeaderNeeded + MDAT_HEAD_BYTES);
+            mdatKept = true;
+        } else {
+            boxRegion = null;
+        }
+        if (boxRegion != null) {
+            boxRegion.append(boxHeader, 0, boxHeaderNeeded);
+            regions.add(boxRegion);
+        }
+        if (position == boxEnd) {
+            endBox();
+        }
+    }
+
+    private void endBox() {
+        if (boxRegion != null && "moov".equals(boxType)) {
+            moovKept = true;
+        }
+        boxRegion = null;
+        boxHeaderLength = 0;
+        boxHeaderNeeded = 8;
+    }
+
+    // Give up, and free the kept bytes.
+    private void drop() {
+        overflow = true;
+        regions.clear();
+        boxRegion = null;
+    }
+
+    private static long readUInt32(final byte[] b, final int off) {
+        return ((b[off] & 0xffL) << 24) | ((b[off + 1] & 0xffL) << 16) | ((b[off + 2] & 0xffL) << 8) | (b[off + 3] & 0xffL);
+    }
+
+    /**
+     * Read the bytes of the file at {@code position}, in the same way as {@code MediaDataSource.readAt}.
+     * The bytes which are not kept read as 0.
+     *
+     * @return Number of bytes read, or -1 at the end of the file.
+     */
+    int readAt(final long position, final byte[] buffer, final int offset, final int size) {
+        if (position >= this.position) {
+            return -1;
+        }
+        final int n = (int) Math.min(size, this.position - position);
+        Arrays.fill(buffer, offset, offset + n, (byte) 0);
+        for (final Region region : regions) {
+            final long start = Math.max(position, region.offset);
+            final long end = Math.min(position + n, region.offset + region.length);
+            if (start < end) {
+                System.arraycopy(region.data, (int) (start - region.offset), buffer, (int) (offset + start - position), (int) (end - start));
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,154 @@
+package com.farproc.switchfiletransfer;
+
+import android.os.Build;
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Sections of the system trace, to see in Perfetto or systrace which phase of a session blocks
+ * main thread or leaves the network idle.
+ * <p>
+ * Names are built only when tracing is enabled, so the sections cost a check when it is not.
+ */
+class Tracing {
+    // Longer names are rejected by Trace.
+    private static final int MAX_NAME_LENGTH = 127;
+    // Trace.TRACE_TAG_APP, hidden.
+    private static final long TRACE_TAG_APP = 1L << 12;
+    // The hidden Trace#isTagEnabled(long) before Q, null from Q or if it can't be found.
+    private static final Method isTagEnabled = findIsTagEnabled();
+    // The arguments of isTagEnabled, boxed once so a call allocates nothing.
+    private static final Object[] IS_TAG_ENABLED_ARGS = {TRACE_TAG_APP};
+
+    private Tracing() {
+    }
+
+    private static Method findIsTagEnabled() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return null;
+        }
+        try {
+            return Trace.class.getMethod("isTagEnabled", long.class);
+        } catch (NoSuchMethodException | RuntimeException e) {
+            Log.w("Tracing", "Trace.isTagEnabled not found", e);
+            return null;
+        }
+    }
+
+    /**
+     * Whether the trace is being recorded. Before Q, asked with the hidden
+     * Trace#isTagEnabled, or true in debug builds only if that can't be called.
+     */
+    static boolean isEnabled() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return Trace.isEnabled();
+        }
+        if (isTagEnabled != null) {
+            try {
+                return (Boolean) isTagEnabled.invoke(null, IS_TAG_ENABLED_ARGS);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // Falls back as if not found.
+            }
+        }
+        return BuildConfig.DEBUG;
+    }
+
+    /**
+     * Begin a section on the current thread, end it with {@link #end()} on the same thread.
+     */
+    static void begin(final String name) {
+        Trace.beginSection(truncate(name));
+    }
+
+    static void end() {
+        Trace.endSection();
+    }
+
+    /**
+     * Begin a section which may end on another thread. From Q, ignored before.
+     *
+     * @param cookie Tells apart the sections of the same name at the same time.
+     */
+    static void beginAsync(final String name, final int cookie) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(truncate(name), cookie);
+        }
+    }
+
+    static void endAsync(final String name, final int cookie) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(truncate(name), cookie);
+        }
+    }
+
+    private static String truncate(final String name) {
+        return name.length() <= MAX_NAME_LENGTH ? name : name.substring(0, MAX_NAME_LENGTH);
+    }
+
+    /**
+     * Traces every read and write of another {@link TransferEngine.Strategy}
+     * as "read" and "write" sections, when tracing is enabled at the start of the copy.
+     */
+    static class TracingStrategy implements TransferEngine.Strategy {
+        private final TransferEngine.Strategy strategy;
+
+        TracingStrategy(final TransferEngine.Strategy strategy) {
+            this.strategy = strategy;
+        }
+
+        @Override
+        public boolean isDirect() {
+            return strategy.isDirect();
+        }
+
+        @Override
+        public long copy(final InputStream in, final OutputStream out, final ByteBuffer buffer,
+                         final TransferEngine.Progress progress, final MessageDigest digest) throws IOException {
+            if (!isEnabled()) {
+                return strategy.copy(in, out, buffer, progress, digest);
+            }
+            return strategy.copy(new TracingInputStream(in), new TracingOutputStream(out), buffer, progress, digest);
+        }
+    }
+
+    private static class TracingInputStream extends FilterInputStream {
+        TracingInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            Trace.beginSection("read");
+            try {
+                return in.read(b, off, len);
+            } finally {
+                Trace.endSection();
+            }
+        }
+    }
+
+    private static class TracingOutputStream extends FilterOutputStream {
+        TracingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            Trace.beginSection("write");
+            try {
+                out.write(b, off, len);
+            } finally {
+                Trace.endSection();
+            }
+        }
+    }
+}
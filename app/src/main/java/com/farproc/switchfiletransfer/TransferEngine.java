@@ -0,0 +1,187 @@
+package com.farproc.switchfiletransfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * Copies the body of a transfer from an {@link InputStream} to an {@link OutputStream}
+ * with bulk reads and writes.
+ * <p>
+ * Buffers are borrowed from a {@link BufferPool} and their size is chosen by the expected
+ * length of the transfer, see {@link #bufferSizeFor(long)}.
+ * How the bytes are moved is decided by a {@link Strategy}, so different strategies can be compared.
+ * <p>
+ * This class is thread safe if the {@link BufferPool} is.
+ */
+public class TransferEngine {
+    /**
+     * Receives the number of bytes written to the output, called on the copying thread.
+     */
+    public interface Progress {
+        /**
+         * Called after {@code n} bytes are written to the output.
+         */
+        void onBytesWritten(int n);
+    }
+
+    static final Progress NO_PROGRESS = n -> {
+    };
+
+    /**
+     * The way to move bytes from input to output.
+     */
+    public interface Strategy {
+        /**
+         * Whether this strategy wants a direct buffer.
+         */
+        boolean isDirect();
+
+        /**
+         * Copy all bytes from {@code in} to {@code out} until EOF using {@code buffer}.
+         * The streams are not closed.
+         *
+         * @param progress Notified after every write.
+         * @param digest   Updated with every byte written in the same pass, may be null.
+         * @return Number of bytes copied.
+         */
+        long copy(InputStream in, OutputStream out, ByteBuffer buffer, Progress progress, MessageDigest digest) throws IOException;
+    }
+
+    /**
+     * Reads into the backing array of a heap buffer and writes it out directly.
+     */
+    public static class HeapStrategy implements Strategy {
+        @Override
+        public boolean isDirect() {
+            return false;
+        }
+
+        @Override
+        public long copy(final InputStream in, final OutputStream out, final ByteBuffer buffer, final Progress progress,
+                         final MessageDigest digest) throws IOException {
+            final byte[] array = buffer.array();
+            final int offset = buffer.arrayOffset();
+            final int capacity = buffer.capacity();
+            long total = 0;
+            int n;
+            while ((n = in.read(array, offset, capacity)) != -1) {
+                out.write(array, offset, n);
+                if (digest != null) {
+                    digest.update(array, offset, n);
+                }
+                progress.onBytesWritten(n);
+                total += n;
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Wraps the streams with {@link Channels} and moves bytes through a direct buffer.
+     */
+    public static class ChannelStrategy implements Strategy {
+        @Override
+        public boolean isDirect() {
+            return true;
+        }
+
+        @Override
+        public long copy(final InputStream in, final OutputStream out, final ByteBuffer buffer, final Progress progress,
+                         final MessageDigest digest) throws IOException {
+            // The channels are not closed, closing them closes the underlying streams.
+            final ReadableByteChannel src = Channels.newChannel(in);
+            final WritableByteChannel dst = Channels.newChannel(out);
+            long total = 0;
+            int n;
+            while ((n = src.read(buffer)) != -1) {
+                buffer.flip();
+                if (digest != null) {
+                    buffer.mark();
+                    digest.update(buffer);
+                    buffer.reset();
+                }
+                while (buffer.hasRemaining()) {
+                    dst.write(buffer);
+                }
+                buffer.clear();
+                progress.onBytesWritten(n);
+                total += n;
+            }
+            return total;
+        }
+    }
+
+    static final int MIN_BUFFER_SIZE = 8 * 1024;
+    static final int MAX_BUFFER_SIZE = 128 * 1024;
+    // Size used when the length of the transfer is unknown.
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Buffer size for a transfer of {@code contentLength} bytes.
+     * A power of 2 about 1/32 of the length, between {@link #MIN_BUFFER_SIZE} and {@link #MAX_BUFFER_SIZE}.
+     * Small screenshots get small buffers and large videos get large ones.
+     *
+     * @param contentLength Expected length of the transfer, or -1 if unknown.
+     */
+    static int bufferSizeFor(final long contentLength) {
+        if (contentLength < 0) {
+            return DEFAULT_BUFFER_SIZE;
+        }
+        final long target = contentLength / 32;
+        int size = MIN_BUFFER_SIZE;
+        while (size < target && size < MAX_BUFFER_SIZE) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    private final Strategy strategy;
+    private final BufferPool pool;
+
+    public TransferEngine(final Strategy strategy, final BufferPool pool) {
+        this.strategy = strategy;
+        this.pool = pool;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Copy all bytes from {@code in} to {@code out} until EOF.
+     * The streams are not closed.
+     *
+     * @param contentLength Expected length of the transfer, or -1 if unknown. Used to size the buffer only.
+     * @return Number of bytes copied.
+     */
+    public long copy(final InputStream in, final OutputStream out, final long contentLength) throws IOException {
+        return copy(in, out, contentLength, NO_PROGRESS);
+    }
+
+    /**
+     * Same as {@link #copy(InputStream, OutputStream, long)}, and report every write to {@code progress}.
+     */
+    public long copy(final InputStream in, final OutputStream out, final long contentLength, final Progress progress) throws IOException {
+        return copy(in, out, contentLength, progress, null);
+    }
+
+    /**
+     * Same as {@link #copy(InputStream, OutputStream, long, Progress)}, and update {@code digest}
+     * with the bytes as they are written, so the output never has to be read back to be hashed.
+     */
+    public long copy(final InputStream in, final OutputStream out, final long contentLength, final Progress progress,
+                     final MessageDigest digest) throws IOException {
+        final ByteBuffer buffer = pool.acquire(bufferSizeFor(contentLength), strategy.isDirect());
+        try {
+            return strategy.copy(in, out, buffer, progress, digest);
+        } finally {
+            pool.release(buffer);
+        }
+    }
+}
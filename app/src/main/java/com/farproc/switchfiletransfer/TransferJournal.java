@@ -0,0 +1,330 @@
+package com.farproc.switchfiletransfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the items of a download session.
+ * <p>
+ * Every change of an item is appended as a small binary record and flushed at once,
+ * so a crash loses at most the progress not recorded yet. {@link #replay(File)} rebuilds the
+ * session from the records, ignoring a torn record at the end.
+ * When the session ends, {@link #compact(Snapshot)} rewrites the journal with one record per item.
+ * <p>
+ * Record: int length, payload, int CRC32 of the payload. Payload: byte type, fields.
+ * <p>
+ * This class is not thread safe.
+ */
+class TransferJournal implements Closeable {
+    private static final int MAGIC = 0x4e534a32; // "NSJ2"
+
+    private static final byte RECORD_SESSION = 1;
+    private static final byte RECORD_ITEM = 2;
+    private static final byte RECORD_STATE = 3;
+    private static final byte RECORD_PROGRESS = 4;
+    private static final byte RECORD_TIMELINE = 5;
+
+    /**
+     * An item as recorded in the journal.
+     */
+    static class ItemRecord {
+        final String fileName;
+        final boolean isVideo;
+        final String fileUri;
+        long totalBytes = -1;
+        // 0 while downloading, the final state otherwise.
+        int state;
+        long bytesCommitted;
+        SegmentedDownloader.Plan segmentPlan;
+        // Hash of the file, null if unknown.
+        byte[] contentHash;
+
+        ItemRecord(final String fileName, final boolean isVideo, final String fileUri) {
+            this.fileName = fileName;
+            this.isVideo = isVideo;
+            this.fileUri = fileUri;
+        }
+    }
+
+    /**
+     * A session as recorded in the journal.
+     */
+    static class Snapshot {
+        final String consoleName;
+        final ArrayList<ItemRecord> items = new ArrayList<>();
+        // The last recorded timeline of the session, null if none.
+        SessionTimeline timeline;
+
+        Snapshot(final String consoleName) {
+            this.consoleName = consoleName;
+        }
+    }
+
+    private final File file;
+    private DataOutputStream out;
+    // Payload of the record being written.
+    private final ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+    private final DataOutputStream payloadOut = new DataOutputStream(payload);
+    private final CRC32 crc = new CRC32();
+
+    TransferJournal(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Start a new session, the records of the previous session are dropped.
+     */
+    void startSession(final String consoleName) throws IOException {
+        close();
+        out = open(file, false);
+        beginRecord(RECORD_SESSION);
+        payloadOut.writeUTF(consoleName);
+        endRecord();
+    }
+
+    /**
+     * Append an item. Items are numbered in the order they are added.
+     */
+    void addItem(final ItemRecord item) throws IOException {
+        beginRecord(RECORD_ITEM);
+        payloadOut.writeUTF(item.fileName);
+        payloadOut.writeBoolean(item.isVideo);
+        payloadOut.writeUTF(item.fileUri);
+        endRecord();
+        if (item.state != 0) {
+            setState(-1, item.state, item.bytesCommitted, item.contentHash);
+        } else if (item.totalBytes >= 0 || item.bytesCommitted > 0 || item.segmentPlan != null) {
+            setProgress(-1, item.totalBytes, item.bytesCommitted, item.segmentPlan);
+        }
+    }
+
+    /**
+     * Record the final state of an item.
+     *
+     * @param index       Index of the item, or -1 for the last item added.
+     * @param contentHash Hash of the file, null if unknown.
+     */
+    void setState(final int index, final int state, final long bytesCommitted, final byte[] contentHash) throws IOException {
+        beginRecord(RECORD_STATE);
+        payloadOut.writeInt(index);
+        payloadOut.writeInt(state);
+        payloadOut.writeLong(bytesCommitted);
+        if (contentHash == null) {
+            payloadOut.writeByte(0);
+        } else {
+            payloadOut.writeByte(contentHash.length);
+            payloadOut.write(contentHash);
+        }
+        endRecord();
+    }
+
+    /**
+     * Record the progress of an unfinished item.
+     *
+     * @param index Index of the item, or -1 for the last item added.
+     */
+    void setProgress(final int index, final long totalBytes, final long bytesCommitted,
+                     final SegmentedDownloader.Plan plan) throws IOException {
+        beginRecord(RECORD_PROGRESS);
+        payloadOut.writeInt(index);
+        payloadOut.writeLong(totalBytes);
+        payloadOut.writeLong(bytesCommitted);
+        if (plan == null) {
+            payloadOut.writeInt(0);
+        } else {
+            payloadOut.writeInt(plan.getSegmentCount());
+            payloadOut.writeLong(plan.length);
+            for (int i = 0; i < plan.getSegmentCount(); i++) {
+                payloadOut.writeLong(plan.positions.get(i));
+            }
+        }
+        endRecord();
+    }
+
+    /**
+     * Record the timeline of the session. A later timeline replaces it.
+     */
+    void setTimeline(final SessionTimeline timeline) throws IOException {
+        beginRecord(RECORD_TIMELINE);
+        timeline.write(payloadOut);
+        endRecord();
+    }
+
+    /**
+     * Replace the journal with the records of {@code snapshot}.
+     * The new journal is written aside and renamed, so the old one is intact if this fails.
+     */
+    void compact(final Snapshot snapshot) throws IOException {
+        close();
+        final File tmp = new File(file.getPath() + ".tmp");
+        final TransferJournal journal = new TransferJournal(tmp);
+        try {
+            journal.startSession(snapshot.consoleName);
+            for (final ItemRecord item : snapshot.items) {
+                journal.addItem(item);
+            }
+            if (snapshot.timeline != null) {
+                journal.setTimeline(snapshot.timeline);
+            }
+        } finally {
+            journal.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("can't rename " + tmp);
+        }
+        out = open(file, true);
+    }
+
+    /**
+     * Delete the journal.
+     */
+    void delete() throws IOException {
+        close();
+        if (file.exists() && !file.delete()) {
+            throw new IOException("can't delete " + file);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            final DataOutputStream stream = out;
+            out = null;
+            stream.close();
+        }
+    }
+
+    private static DataOutputStream open(final File file, final boolean append) throws IOException {
+        final boolean exists = append && file.length() > 0;
+        final DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, append)));
+        if (!exists) {
+            stream.writeInt(MAGIC);
+        }
+        return stream;
+    }
+
+    private void beginRecord(final byte type) throws IOException {
+        if (out == null) {
+            throw new IOException("no session");
+        }
+        payload.reset();
+        payloadOut.writeByte(type);
+    }
+
+    // The record goes to the file with one write call, so a crash tears at most this record.
+    private void endRecord() throws IOException {
+        final byte[] bytes = payload.toByteArray();
+        crc.reset();
+        crc.update(bytes, 0, bytes.length);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeInt((int) crc.getValue());
+        out.flush();
+    }
+
+    /**
+     * Read the session recorded in {@code file}.
+     *
+     * @return Null if there is no journal or no session in it.
+     */
+    static Snapshot replay(final File file) throws IOException {
+        final DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a journal: " + file);
+            }
+            Snapshot snapshot = null;
+            final CRC32 crc = new CRC32();
+            byte[] buffer = new byte[256];
+            while (true) {
+                final int length;
+                try {
+                    length = in.readInt();
+                    if (length <= 0) {
+                        break;
+                    }
+                    if (buffer.length < length) {
+                        buffer = new byte[Math.max(length, buffer.length * 2)];
+                    }
+                    in.readFully(buffer, 0, length);
+                    crc.reset();
+                    crc.update(buffer, 0, length);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    // Torn record at the end.
+                    break;
+                }
+                final DataInputStream record = new DataInputStream(new ByteArrayInputStream(buffer, 0, length));
+                final byte type = record.readByte();
+                if (type == RECORD_SESSION) {
+                    snapshot = new Snapshot(record.readUTF());
+                } else if (snapshot == null) {
+                    throw new IOException("record before session");
+                } else if (type == RECORD_ITEM) {
+                    snapshot.items.add(new ItemRecord(record.readUTF(), record.readBoolean(), record.readUTF()));
+                } else if (type == RECORD_STATE) {
+                    final ItemRecord item = item(snapshot, record.readInt());
+                    item.state = record.readInt();
+                    item.bytesCommitted = record.readLong();
+                    item.segmentPlan = null;
+                    final int hashLength = record.readUnsignedByte();
+                    if (hashLength > 0) {
+                        item.contentHash = new byte[hashLength];
+                        record.readFully(item.contentHash);
+                    } else {
+                        item.contentHash = null;
+                    }
+                } else if (type == RECORD_PROGRESS) {
+                    final ItemRecord item = item(snapshot, record.readInt());
+                    item.totalBytes = record.readLong();
+                    item.bytesCommitted = record.readLong();
+                    final int segmentCount = record.readInt();
+                    if (segmentCount > 0) {
+                        final SegmentedDownloader.Plan plan = new SegmentedDownloader.Plan(record.readLong(), segmentCount);
+                        for (int i = 0; i < segmentCount; i++) {
+                            plan.positions.set(i, record.readLong());
+                        }
+                        item.segmentPlan = plan;
+                    } else {
+                        item.segmentPlan = null;
+                    }
+                } else if (type == RECORD_TIMELINE) {
+                    snapshot.timeline = SessionTimeline.read(record);
+                } else {
+                    throw new IOException("unknown record " + type);
+                }
+            }
+            return snapshot;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static ItemRecord item(final Snapshot snapshot, final int index) throws IOException {
+        final int i = index == -1 ? snapshot.items.size() - 1 : index;
+        if (i < 0 || i >= snapshot.items.size()) {
+            throw new IOException("bad item index " + index);
+        }
+        return snapshot.items.get(i);
+    }
+}
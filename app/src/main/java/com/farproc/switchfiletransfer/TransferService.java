@@ -8,42 +8,45 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.graphics.Bitmap;
 import android.net.Network;
 import android.net.Uri;
 import android.os.Build;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.view.Choreographer;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
-import java.io.Reader;
-import java.io.Serializable;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
-import java.nio.charset.StandardCharsets;
+import java.net.HttpURLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.Executor;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.SocketFactory;
 
 public class TransferService extends Service {
     /**
@@ -94,6 +97,10 @@ public class TransferService extends Service {
         }
     }
 
+    public interface TimelinesCallback {
+        void onSessionTimelines(List<SessionTimeline> timelines);
+    }
+
     public interface Listener {
         void onRemoveWifiNetworkError(String ssid);
 
@@ -110,10 +117,37 @@ public class TransferService extends Service {
 
         void onCreateFileError();
 
-        void onDownloadItemStateChanged(int pos);
+        /**
+         * Called when {@code count} items are appended to {@link DownloadState#items} at {@code start}.
+         */
+        void onDownloadItemsAdded(int start, int count);
+
+        /**
+         * Called at most once per frame with the items whose {@link DownloadItem#state} have changed.
+         *
+         * @param positions Sorted positions of the items, the first {@code count} are valid.
+         *                  Only valid during the call.
+         */
+        void onDownloadItemsChanged(int[] positions, int count);
+
+        /**
+         * Called at most every {@link #PROGRESS_PERIOD_MS} with the items whose
+         * {@link DownloadItem#bytesCommitted} have changed.
+         *
+         * @param positions Positions of the items, the first {@code count} are valid.
+         *                  Only valid during the call.
+         */
+        void onDownloadProgress(int[] positions, int count);
 
         void onDownloadCompleted();
 
+        /**
+         * Called when the files checked by {@link Binder#verifySavedFiles()} are verified.
+         *
+         * @param damaged Number of files which don't match the size or hash recorded when they were downloaded.
+         */
+        void onVerifyCompleted(int checked, int damaged);
+
         void onStateChanged(State state);
 
     }
@@ -142,11 +176,20 @@ public class TransferService extends Service {
         }
 
         // Try to connect to the WiFi network.
-        public void connect(final String ssid, final String password) {
+        // If syncOnly is true, only the files not downloaded from the console before are downloaded.
+        // qrParsedTime is SystemClock#elapsedRealtime when the QR code is parsed, for the timeline of the session.
+        // If selectorEngine is true, the files are downloaded by SelectorDownloader instead of a thread per file.
+        // hidden tells whether the network does not broadcast its SSID.
+        public void connect(final String ssid, final String password, final boolean hidden, final boolean syncOnly,
+                            final long qrParsedTime, final boolean selectorEngine) {
             final Context context = getApplicationContext();
             final Intent intent = new Intent(context, TransferService.class);
             intent.putExtra("ssid", Objects.requireNonNull(ssid));
             intent.putExtra("password", Objects.requireNonNull(password));
+            intent.putExtra("hidden", hidden);
+            intent.putExtra("syncOnly", syncOnly);
+            intent.putExtra("qrParsedTime", qrParsedTime);
+            intent.putExtra("selectorEngine", selectorEngine);
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                 context.startForegroundService(intent);
             } else {
@@ -163,6 +206,29 @@ public class TransferService extends Service {
         public DownloadState getDownloadState() {
             return downloadState;
         }
+
+        // Check the completed items against their sizes and hashes in background.
+        // Damaged items are changed to STATE_ERROR, see Listener#onVerifyCompleted.
+        public void verifySavedFiles() {
+            TransferService.this.verifySavedFiles();
+        }
+
+        // Timeline of the current or the last session, null if there is none.
+        public SessionTimeline getSessionTimeline() {
+            return timeline;
+        }
+
+        // Get the timelines of the last finished sessions, the oldest first.
+        // They are loaded in background, callback is called on main thread.
+        public void getSessionTimelines(final TimelinesCallback callback) {
+            if (journalExecutor.isShutdown()) {
+                return;
+            }
+            journalExecutor.execute(() -> {
+                final List<SessionTimeline> timelines = new ArrayList<>(timelineHistory);
+                Application.handler.post(() -> callback.onSessionTimelines(timelines));
+            });
+        }
     }
 
     @Override
@@ -175,7 +241,9 @@ public class TransferService extends Service {
 
         startForegroundWithNotification();
 
-        connect(ssid, password);
+        syncOnly = intent.getBooleanExtra("syncOnly", false);
+        selectorEngine = intent.getBooleanExtra("selectorEngine", false);
+        connect(ssid, password, intent.getBooleanExtra("hidden", false), intent.getLongExtra("qrParsedTime", SessionTimeline.UNSET));
 
         return START_NOT_STICKY;
     }
@@ -184,7 +252,26 @@ public class TransferService extends Service {
     public void onCreate() {
         Log.i("TransferService", "Service onCreate");
         super.onCreate();
-        downloadState = readDownloadState(this);
+        final File journalFile = new File(getFilesDir(), JOURNAL_FILE_NAME);
+        journal = new TransferJournal(journalFile);
+        dedupIndex = new DedupIndex(new File(getFilesDir(), DEDUP_INDEX_FILE_NAME));
+        thumbnailLoader = Application.getThumbnailLoader(this);
+        thumbnailCodec = Application.getThumbnailCodec(this);
+        final File legacyFile = new File(getFilesDir(), LEGACY_DOWNLOAD_STATE_FILE_NAME);
+        previousState = journalExecutor.submit(() -> {
+            if (legacyFile.exists() && !legacyFile.delete()) {
+                Log.i("TransferService", "delete legacy download state file failed.");
+            }
+            return readJournal(journalFile);
+        });
+        final File timelineFile = new File(getFilesDir(), TIMELINE_HISTORY_FILE_NAME);
+        journalExecutor.execute(() -> {
+            try {
+                timelineHistory = SessionTimeline.readHistory(timelineFile);
+            } catch (IOException e) {
+                Log.e("TransferService", "readHistory", e);
+            }
+        });
         createNotificationChannel();
         changeToState(State.Idle);
     }
@@ -192,6 +279,24 @@ public class TransferService extends Service {
     @Override
     public void onDestroy() {
         Log.i("TransferService", "Service onDestroy");
+        // The download and metadata threads may still post results, drop them.
+        if (session != null) {
+            session.aborted = true;
+            session = null;
+        }
+        metadataExecutor.shutdown();
+        downloadScheduler.shutdown();
+        segmentExecutor.shutdown();
+        verifyExecutor.shutdown();
+        thumbnailExecutor.shutdown();
+        writeJournal(TransferJournal::close);
+        journalExecutor.shutdown();
+        if (consoleClient != null) {
+            consoleClient.close();
+        }
+        if (selectorDownloader != null) {
+            selectorDownloader.close();
+        }
         ((NotificationManager) getSystemService(NOTIFICATION_SERVICE)).cancel(FOREGROUND_NOTIFICATION_ID);
         super.onDestroy();
     }
@@ -231,7 +336,11 @@ public class TransferService extends Service {
     }
 
     private void startForegroundWithNotification(final String message) {
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, NOTIFICATION_CH)
+        startForeground(FOREGROUND_NOTIFICATION_ID, foregroundNotification(message).build());
+    }
+
+    private NotificationCompat.Builder foregroundNotification(final String message) {
+        final NotificationCompat.Builder builder = new NotificationCompat.Builder(this, NOTIFICATION_CH)
                 .setSmallIcon(android.R.drawable.stat_sys_download)
                 .setContentText(message)
                 .setPriority(NotificationCompat.PRIORITY_DEFAULT)
@@ -239,27 +348,122 @@ public class TransferService extends Service {
         if (downloadState != null) {
             builder.setContentTitle(downloadState.consoleName);
         }
+        return builder;
+    }
+
+    // Resolution of the progress bar in the notification.
+    private static final int NOTIFICATION_PROGRESS_MAX = 1000;
+
+    // Notify the number of remaining items, the progress and ETA of the session.
+    private void showProgressNotification(final Session session) {
+        session.lastNotificationTime = SystemClock.elapsedRealtime();
+        final NotificationCompat.Builder builder = foregroundNotification(getString(R.string.fmt_remaining, session.remaining));
+        if (session.queuedBytes > 0) {
+            final long done = Math.min(session.bytesDone, session.queuedBytes);
+            builder.setProgress(NOTIFICATION_PROGRESS_MAX, (int) (NOTIFICATION_PROGRESS_MAX * done / session.queuedBytes), false);
+            if (session.throughput > 0) {
+                builder.setSubText(getString(R.string.fmt_eta, (long) Math.ceil((session.queuedBytes - done) / session.throughput)));
+            }
+        }
         startForeground(FOREGROUND_NOTIFICATION_ID, builder.build());
     }
 
     private void stop() {
+        endConnectTrace();
+        finishTimeline();
         stopForeground(true);
         stopSelf();
     }
 
-    private void connect(@NonNull final String ssid, @NonNull final String password) {
-        deleteSavedDownloadState(this);
+    // Timelines of this many last sessions are kept.
+    private static final int TIMELINE_HISTORY_SIZE = 100;
+    private static final String TIMELINE_HISTORY_FILE_NAME = "session_timelines";
+
+    // Timeline of the current or the last session. Written on main thread.
+    private volatile SessionTimeline timeline;
+    // Timelines of the last sessions. Accessed on journalExecutor.
+    private ArrayList<SessionTimeline> timelineHistory = new ArrayList<>();
+
+    // The session is over, save its timeline with the journal and in the history.
+    private void finishTimeline() {
+        final SessionTimeline timeline = this.timeline;
+        if (timeline == null || !timeline.mark(SessionTimeline.Event.DISCONNECTED)) {
+            return;
+        }
+        final ConnectPlanner.Timings connectTimings = Compat.Instance.getConnectTimings();
+        Log.i("Timeline", timeline + (connectTimings != null ? "; connect: " + connectTimings : ""));
+        if (downloadState != null) {
+            writeJournal(journal -> journal.setTimeline(timeline));
+        }
+        final File file = new File(getFilesDir(), TIMELINE_HISTORY_FILE_NAME);
+        // The history is merged and written in background, after the history is loaded.
+        writeJournal(journal -> {
+            final ArrayList<SessionTimeline> history = timelineHistory;
+            history.add(timeline);
+            while (history.size() > TIMELINE_HISTORY_SIZE) {
+                history.remove(0);
+            }
+            final long[] timesToFirstByte = new long[history.size()];
+            final long[] totals = new long[history.size()];
+            for (int i = 0; i < history.size(); i++) {
+                timesToFirstByte[i] = history.get(i).getTimeToFirstByteMs();
+                totals[i] = history.get(i).getTotalMs();
+            }
+            Log.i("Timeline", String.format("%d sessions, time to first byte p50 %dms p95 %dms, total p50 %dms p95 %dms",
+                    history.size(),
+                    SessionTimeline.percentile(timesToFirstByte, 50), SessionTimeline.percentile(timesToFirstByte, 95),
+                    SessionTimeline.percentile(totals, 50), SessionTimeline.percentile(totals, 95)));
+            SessionTimeline.writeHistory(file, history);
+        });
+    }
+
+    // Whether the session downloads only the files not downloaded before.
+    private boolean syncOnly;
+    // Whether the session downloads on non-blocking sockets served by one thread, see SelectorDownloader,
+    // instead of a thread blocked in each download. Files are not split into segments then.
+    private boolean selectorEngine;
+
+    private void connect(@NonNull final String ssid, @NonNull final String password, final boolean hidden,
+                         final long qrParsedTime) {
+        timeline = new SessionTimeline(SystemClock::elapsedRealtime, System.currentTimeMillis());
+        if (qrParsedTime != SessionTimeline.UNSET) {
+            timeline.markAt(SessionTimeline.Event.QR_PARSED, qrParsedTime);
+        }
+        if (downloadState != null) {
+            // The service lives on since the previous session.
+            previousState = CompletableFuture.completedFuture(downloadState);
+        }
         downloadState = null;
 
         changeToState(State.Connecting);
         startForegroundWithNotification(getString(R.string.fmt_connecting_to, ssid));
-        Compat.Instance.connect(this, ssid, password, compatListener);
+        timeline.mark(SessionTimeline.Event.CONNECT_REQUESTED);
+        connectTraceCookie++;
+        connectTraced = true;
+        Tracing.beginAsync("connect", connectTraceCookie);
+        Tracing.begin("Compat.connect");
+        try {
+            Compat.Instance.connect(this, ssid, password, hidden, compatListener);
+        } finally {
+            Tracing.end();
+        }
     }
 
     private void disconnect() {
         Compat.Instance.disconnect(this, compatListener);
     }
 
+    // The async trace section from requesting the connection to the network available or the session stopped.
+    private int connectTraceCookie;
+    private boolean connectTraced;
+
+    private void endConnectTrace() {
+        if (connectTraced) {
+            connectTraced = false;
+            Tracing.endAsync("connect", connectTraceCookie);
+        }
+    }
+
     private final Compat.Listener compatListener = new Compat.Listener() {
 
         @Override
@@ -300,7 +504,9 @@ public class TransferService extends Service {
 
         @Override
         public void onNetworkAvailable(Network network) {
-            startDownload(DEFAULT_HOST);
+            endConnectTrace();
+            timeline.mark(SessionTimeline.Event.NETWORK_AVAILABLE);
+            startDownload(DEFAULT_HOST, network.getSocketFactory(), network::bindSocket);
         }
 
         @Override
@@ -311,126 +517,472 @@ public class TransferService extends Service {
 
         @Override
         public void onNetworkLost() {
+            if (downloadState != null) {
+                // Record the bytes committed so far, the items can be resumed in the next session.
+                final List<TransferJournal.ItemRecord> records = new ArrayList<>();
+                final List<Integer> indexes = new ArrayList<>();
+                for (int i = 0; i < downloadState.items.size(); i++) {
+                    final DownloadItem item = downloadState.items.get(i);
+                    if (item.state == DownloadItem.STATE_DOWNLOADING) {
+                        records.add(toRecord(item));
+                        indexes.add(i);
+                    }
+                }
+                writeJournal(journal -> {
+                    for (int i = 0; i < records.size(); i++) {
+                        final TransferJournal.ItemRecord record = records.get(i);
+                        journal.setProgress(indexes.get(i), record.totalBytes, record.bytesCommitted, record.segmentPlan);
+                    }
+                });
+            }
             changeToState(State.Idle);
             stop();
         }
     };
 
-    private static class JsonData {
-        public final String consoleName;
-        public final String[] urls;
+    // Executor to fetch metadata(data.json).
+    // Separated from downloads, so it never waits behind large files.
+    private final ExecutorService metadataExecutor = Executors.newSingleThreadExecutor();
 
-        public JsonData(final String consoleName, final String[] urls) {
-            this.consoleName = consoleName;
-            this.urls = urls;
-        }
-    }
+    // Max number of connections downloading at the same time, items and their extra segments together.
+    private static final int MAX_STREAMS = 8;
 
-    // Executor to run non-ui threads.
-    private final Executor executor = Executors.newFixedThreadPool(4);
+    // Runs downloads. The number of concurrent downloads follows the measured throughput.
+    // The threads of segmentExecutor are left out of its max, so the streams never exceed MAX_STREAMS.
+    private final DownloadScheduler downloadScheduler = new DownloadScheduler(1, MAX_STREAMS - SEGMENT_THREADS, 2);
 
-    private static final String DEFAULT_HOST = "192.168.0.1";
-    private static final String PROTOCOL = "http";
+    // At most 1MB of idle buffers are kept for reuse.
+    private final BufferPool bufferPool = new BufferPool(1024 * 1024);
+
+    // Copies the body of every downloaded file.
+    private final TransferEngine transferEngine = new TransferEngine(new Tracing.TracingStrategy(new TransferEngine.HeapStrategy()),
+            bufferPool);
 
+    // Threads writing the files downloaded by the selector engine.
+    private static final int SELECTOR_WRITER_THREADS = 2;
+    // Creates the thumbnails of the files downloaded by the selector engine.
+    private final ExecutorService thumbnailExecutor = Executors.newSingleThreadExecutor();
 
-    // read data.json to get files to download.
-    private JsonData readDataJson(final String host) throws IOException, JSONException {
-        final StringBuilder sb = new StringBuilder();
-        final URL url = new URL(PROTOCOL, host, "data.json");
-        final URLConnection conn = url.openConnection();
-        conn.connect();
-        conn.setConnectTimeout(5000);
-        conn.setReadTimeout(2000);
-        try (final Reader reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
-            int c = reader.read();
-            while (c != -1) {
-                sb.append((char) c);
-                c = reader.read();
+    private static final String DEFAULT_HOST = "192.168.0.1";
+    private static final int CONSOLE_PORT = 80;
+    // Files are at IMG_PATH + file name.
+    private static final String IMG_PATH = "/img/";
+
+    // Max number of idle keep-alive connections to the console.
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+    // Receive buffer of every connection to the console. The link is local and fast but Wi-Fi
+    // stalls the sender for a few ms at times, the default window would drain meanwhile.
+    // The kernel caps it at net.core.rmem_max.
+    private static final int RECEIVE_BUFFER_SIZE = 512 * 1024;
+
+    // HTTP client of the current session. Written on main thread, read on download threads.
+    private volatile ConsoleHttpClient consoleClient;
+    // Downloader of the current session if selectorEngine. Accessed on main thread.
+    private SelectorDownloader selectorDownloader;
+
+    // read data.json to get files to download, the values are handed to handler as they are parsed.
+    private static void readDataJson(final ConsoleHttpClient client, final DataJsonParser.Handler handler) throws IOException {
+        Tracing.begin("readDataJson");
+        try (final ConsoleHttpClient.Response response = client.execute(ConsoleHttpClient.Request.get("/data.json"))) {
+            if (response.code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + response.code);
             }
+            DataJsonParser.parse(response.body(), handler);
+        } finally {
+            Tracing.end();
         }
-        Log.i("data.json", sb.toString());
-        final JSONObject json = new JSONObject(sb.toString());
-        final String consoleName = json.getString("ConsoleName");
-        final JSONArray array = json.getJSONArray("FileNames");
-        final String[] urls = new String[array.length()];
-        for (int i = 0; i < array.length(); i++) {
-            urls[i] = String.format("%s://%s/img/%s", PROTOCOL, host, array.getString(i));
-        }
-        return new JsonData(consoleName, urls);
     }
 
-    public static class DownloadItem implements Serializable {
-        static final long serialVersionUID = 1L;
+    private static String itemPath(final DownloadItem item) {
+        return IMG_PATH + item.fileName;
+    }
 
+    public static class DownloadItem {
         static final int STATE_DOWNLOADING = 0;
         static final int STATE_COMPLETED = 1;
         static final int STATE_ERROR = -1;
 
+        // Name of the file on the console.
+        public final String fileName;
         public final boolean isVideo;
         public String fileUri;
-        public int state = STATE_DOWNLOADING;
-
-        public DownloadItem(final boolean isVideo) {
+        // Written by the downloading thread when the item is finished.
+        public volatile int state = STATE_DOWNLOADING;
+        // Total length of the file, -1 if unknown.
+        public volatile long totalBytes = -1;
+        // Number of bytes saved to fileUri. Written by the downloading threads.
+        public final AtomicLong bytesCommitted = new AtomicLong();
+        // Not null if the item is downloaded in segments.
+        public volatile SegmentedDownloader.Plan segmentPlan;
+        // Hash of the file if it was computed while downloading, see ItemDownloader#DIGEST_ALGORITHM.
+        public volatile byte[] contentHash;
+
+        public DownloadItem(final String fileName, final boolean isVideo) {
+            this.fileName = fileName;
             this.isVideo = isVideo;
         }
     }
 
-    public static class DownloadState implements Serializable {
-        static final long serialVersionUID = 1L;
-
+    public static class DownloadState {
         final String consoleName;
-        final DownloadItem[] items;
+        // Items are appended on main thread while data.json is being read.
+        final ArrayList<DownloadItem> items = new ArrayList<>();
 
-        public DownloadState(final String consoleName, final DownloadItem[] items) {
+        public DownloadState(final String consoleName) {
             this.consoleName = consoleName;
-            this.items = items;
         }
     }
 
-    private static final String DOWNLOAD_STATE_SER_FILE_NAME = "download_state.ser";
+    // Journal of the current or the last session.
+    private static final String JOURNAL_FILE_NAME = "download_journal";
+    // Whole DownloadState saved with ObjectOutputStream by older versions.
+    private static final String LEGACY_DOWNLOAD_STATE_FILE_NAME = "download_state.ser";
+
+    // Index of the files downloaded in all sessions.
+    private static final String DEDUP_INDEX_FILE_NAME = "dedup_index";
+    private DedupIndex dedupIndex;
+
+    // Runs journal IO in order, off main thread.
+    private final ExecutorService journalExecutor = Executors.newSingleThreadExecutor();
+    // Accessed on journalExecutor.
+    private TransferJournal journal;
+    // State of the previous session, whose unfinished items can be resumed.
+    private Future<DownloadState> previousState;
+
+    private interface JournalTask {
+        void run(TransferJournal journal) throws IOException;
+    }
 
-    private static void writeDownloadState(final Context context, final DownloadState state) {
-        final File f = new File(context.getFilesDir(), DOWNLOAD_STATE_SER_FILE_NAME);
+    // Called on main thread. Dropped after onDestroy, when results of the downloads may still arrive.
+    private void writeJournal(final JournalTask task) {
+        if (journalExecutor.isShutdown()) {
+            Log.w("TransferService", "writeJournal after shutdown");
+            return;
+        }
+        journalExecutor.execute(() -> {
+            try {
+                task.run(journal);
+            } catch (IOException e) {
+                Log.e("TransferService", "writeJournal", e);
+            }
+        });
+    }
+
+    // Copy the values of item. Called on main thread, the record is written later on journalExecutor.
+    private static TransferJournal.ItemRecord toRecord(final DownloadItem item) {
+        final TransferJournal.ItemRecord record = new TransferJournal.ItemRecord(item.fileName, item.isVideo, item.fileUri);
+        record.totalBytes = item.totalBytes;
+        record.state = item.state;
+        record.contentHash = item.contentHash;
+        record.bytesCommitted = item.bytesCommitted.get();
+        record.segmentPlan = item.segmentPlan;
+        return record;
+    }
+
+    private static DownloadState readJournal(final File file) {
         try {
-            try (final ObjectOutputStream stream = new ObjectOutputStream(new FileOutputStream(f))) {
-                stream.writeObject(state);
+            final TransferJournal.Snapshot snapshot = TransferJournal.replay(file);
+            if (snapshot == null) {
+                return null;
             }
+            final DownloadState state = new DownloadState(snapshot.consoleName);
+            for (final TransferJournal.ItemRecord record : snapshot.items) {
+                final DownloadItem item = new DownloadItem(record.fileName, record.isVideo);
+                item.fileUri = record.fileUri;
+                item.state = record.state;
+                item.contentHash = record.contentHash;
+                item.totalBytes = record.totalBytes;
+                item.bytesCommitted.set(record.bytesCommitted);
+                item.segmentPlan = record.segmentPlan;
+                state.items.add(item);
+            }
+            return state;
         } catch (IOException e) {
-            Log.e("TransferService", "writeDownloadState", e);
+            Log.i("TransferService", "readJournal", e);
+        }
+        return null;
+    }
+
+    private DownloadState downloadState;
+
+    /**
+     * Resume the {@code items} which were interrupted in {@code previous}
+     * if it is a session of the same console.
+     * The saved file and the number of bytes committed are carried over.
+     */
+    private static void carryOverInterruptedItems(@Nullable final DownloadState previous, @NonNull final String consoleName,
+                                                  @NonNull final List<DownloadItem> items) {
+        if (previous == null || !previous.consoleName.equals(consoleName)) {
+            return;
+        }
+        final Map<String, DownloadItem> interrupted = new HashMap<>();
+        for (final DownloadItem item : previous.items) {
+            if (item.state != DownloadItem.STATE_COMPLETED && item.fileUri != null && item.fileName != null) {
+                interrupted.put(item.fileName, item);
+            }
+        }
+        for (final DownloadItem item : items) {
+            final DownloadItem previousItem = interrupted.get(item.fileName);
+            if (previousItem != null && item.state == DownloadItem.STATE_DOWNLOADING) {
+                item.fileUri = previousItem.fileUri;
+                item.bytesCommitted.set(previousItem.bytesCommitted.get());
+                item.segmentPlan = previousItem.segmentPlan;
+                Log.i("Download", String.format("resume %s from %d", item.fileName, item.bytesCommitted.get()));
+            }
         }
     }
 
-    private static DownloadState readDownloadState(final Context context) {
-        final File f = new File(context.getFilesDir(), DOWNLOAD_STATE_SER_FILE_NAME);
-        try {
-            try (final ObjectInputStream stream = new ObjectInputStream(new FileInputStream(f))) {
-                return (DownloadState) stream.readObject();
+    // Bookkeeping of the downloads of a session. Accessed on main thread.
+    private static class Session {
+        final long startTime = SystemClock.elapsedRealtime();
+        // Positions of the finished items, flushed in the next main thread message.
+        ChangeBatcher finishedItems;
+        // Positions of the finished items for the listeners, flushed once per frame.
+        ChangeBatcher changedItems;
+        // State of the previous session.
+        Future<DownloadState> previousState;
+        // Number of items queued but not finished.
+        int remaining;
+        // Number of items saved in earlier sessions, which are not downloaded again.
+        int skipped;
+        // Only the file names not seen before are downloaded, see Binder#connect.
+        boolean syncOnly;
+        // Marked on any thread.
+        SessionTimeline timeline;
+        // Whether all items in data.json are queued.
+        boolean manifestCompleted;
+        // Set when the session is given up, items arriving later are dropped.
+        boolean aborted;
+        // Remaining bytes of the items in the order they are queued, to predict the makespan.
+        final ArrayList<Long> queuedSizes = new ArrayList<>();
+        int workers;
+        long predictedMs;
+        // Sum of queuedSizes.
+        long queuedBytes;
+        // Bytes downloaded in this session, as sampled by progressSampler.
+        long bytesDone;
+        // Smoothed throughput in bytes per second.
+        double throughput;
+        long lastNotificationTime;
+    }
+
+    private Session session;
+
+    // The first batch of file names is dispatched early to start downloading soon.
+    // Later batches grow up to MAX_DISPATCH_BATCH, so there are fewer size probes and main thread posts.
+    private static final int FIRST_DISPATCH_BATCH = 8;
+    private static final int MAX_DISPATCH_BATCH = 64;
+
+    /**
+     * Receives the values of data.json on the metadata thread, and dispatches
+     * the file names to main thread in batches while the rest of data.json is still arriving.
+     */
+    private class ManifestHandler implements DataJsonParser.Handler {
+        private final ConsoleHttpClient client;
+        private final Session session;
+        private String consoleName;
+        // File names are held until the console name is known,
+        // which is needed to resume the items of the previous session.
+        private boolean consoleNameKnown;
+        private ArrayList<String> pending = new ArrayList<>();
+        private int batchSize = FIRST_DISPATCH_BATCH;
+        // Number of file names dispatched to main thread.
+        int dispatched;
+
+        ManifestHandler(final ConsoleHttpClient client, final Session session) {
+            this.client = client;
+            this.session = session;
+        }
+
+        @Override
+        public void onConsoleName(String consoleName) {
+            this.consoleName = consoleName;
+            consoleNameKnown = true;
+            if (pending.size() >= batchSize) {
+                dispatch();
             }
-        } catch (Exception e) { // Catch all exceptions here. java.io.InvalidClassException etc.
-            Log.i("TransferService", "readDownloadState", e);
         }
-        return null;
+
+        @Override
+        public void onFileName(String fileName) {
+            pending.add(fileName);
+            if (consoleNameKnown && pending.size() >= batchSize) {
+                dispatch();
+            }
+        }
+
+        private void dispatch() {
+            List<String> fileNames = pending;
+            pending = new ArrayList<>();
+            batchSize = Math.min(batchSize * 2, MAX_DISPATCH_BATCH);
+            if (session.syncOnly) {
+                fileNames = dispatchSynced(fileNames);
+            }
+            post(fileNames);
+        }
+
+        /**
+         * Dispatch the files downloaded before at once, without asking the console.
+         *
+         * @return The new files.
+         */
+        private List<String> dispatchSynced(final List<String> fileNames) {
+            final String[] uris = new String[fileNames.size()];
+            final long[] sizes = new long[fileNames.size()];
+            final int newFiles = dedupIndex.diff(consoleNameOrDefault(consoleName), fileNames, uris, sizes);
+            if (newFiles == fileNames.size()) {
+                return fileNames;
+            }
+            final List<String> synced = new ArrayList<>(fileNames.size() - newFiles);
+            final List<String> syncedUris = new ArrayList<>(synced.size());
+            final long[] syncedSizes = new long[fileNames.size() - newFiles];
+            final List<String> unsynced = new ArrayList<>(newFiles);
+            for (int i = 0; i < uris.length; i++) {
+                if (uris[i] == null) {
+                    unsynced.add(fileNames.get(i));
+                } else {
+                    syncedSizes[synced.size()] = sizes[i];
+                    synced.add(fileNames.get(i));
+                    syncedUris.add(uris[i]);
+                }
+            }
+            dispatched += synced.size();
+            final String name = consoleName;
+            final DownloadState previous = awaitPreviousState(session.previousState);
+            final String[] savedUris = syncedUris.toArray(new String[0]);
+            Application.handler.post(() -> addItems(session, name, previous, synced, syncedSizes, savedUris));
+            return unsynced;
+        }
+
+        // Probe the sizes of fileNames, and hand them to main thread.
+        private void post(final List<String> fileNames) {
+            if (fileNames.isEmpty() && dispatched > 0) {
+                return;
+            }
+            final String[] paths = new String[fileNames.size()];
+            for (int i = 0; i < paths.length; i++) {
+                paths[i] = IMG_PATH + fileNames.get(i);
+            }
+            final long[] sizes = SizeProbe.probe(client, paths, SIZE_PROBE_TIMEOUT_MS);
+            final String[] savedUris = findSavedFiles(consoleNameOrDefault(consoleName), fileNames, sizes);
+            dispatched += fileNames.size();
+            final String name = consoleName;
+            final DownloadState previous = awaitPreviousState(session.previousState);
+            Application.handler.post(() -> addItems(session, name, previous, fileNames, sizes, savedUris));
+        }
+
+        // Dispatch the rest, and tell main thread that all items are dispatched.
+        void finish() {
+            dispatch();
+            Log.i("data.json", String.format("%d files", dispatched));
+            Application.handler.post(() -> onManifestCompleted(session));
+        }
+    }
+
+    private String consoleNameOrDefault(@Nullable final String consoleName) {
+        return consoleName == null || consoleName.isEmpty() ? getString(R.string.default_console_name) : consoleName;
     }
 
-    private static void deleteSavedDownloadState(final Context context) {
-        if (!new File(context.getFilesDir(), DOWNLOAD_STATE_SER_FILE_NAME).delete()) {
-            Log.i("TransferService", "delete saved download state file failed.");
+    /**
+     * Look up the files downloaded in earlier sessions. Called off main thread.
+     *
+     * @return Uri of the saved file for every file name, null if it has to be downloaded.
+     */
+    private String[] findSavedFiles(final String consoleName, final List<String> fileNames, final long[] sizes) {
+        final String[] uris = new String[fileNames.size()];
+        for (int i = 0; i < uris.length; i++) {
+            if (sizes[i] < 0) {
+                continue;
+            }
+            final DedupIndex.Entry entry = dedupIndex.find(consoleName, fileNames.get(i), sizes[i]);
+            if (entry == null) {
+                continue;
+            }
+            if (isFileSaved(entry.fileUri, entry.size)) {
+                uris[i] = entry.fileUri;
+            } else {
+                // Deleted by the user, download it again.
+                try {
+                    dedupIndex.remove(entry);
+                } catch (IOException e) {
+                    Log.e("TransferService", "dedupIndex", e);
+                }
+            }
         }
+        return uris;
     }
 
+    // Whether the file at uri is still there with the size.
+    private boolean isFileSaved(final String uri, final long size) {
+        try (ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(Uri.parse(uri), "r")) {
+            return pfd != null && pfd.getStatSize() == size;
+        } catch (IOException | SecurityException | IllegalArgumentException e) {
+            return false;
+        }
+    }
 
-    private DownloadState downloadState;
+    // Wait for the state of the previous session to be loaded. Null if there is none.
+    private static DownloadState awaitPreviousState(@Nullable final Future<DownloadState> future) {
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException | InterruptedException e) {
+            Log.e("TransferService", "awaitPreviousState", e);
+            return null;
+        }
+    }
 
-    private void startDownload(final String host) {
-        executor.execute(() -> {
-            JsonData data = null;
+    // All connections to the console are made with socketFactory or bound by socketBinder, so they go through
+    // the network of the console even if another network, e.g. cellular, is the default.
+    private void startDownload(final String host, final SocketFactory socketFactory,
+                               final SelectorDownloader.SocketBinder socketBinder) {
+        if (consoleClient != null) {
+            consoleClient.close();
+        }
+        final ConsoleHttpClient client = new ConsoleHttpClient(host, CONSOLE_PORT, socketFactory, RECEIVE_BUFFER_SIZE, MAX_IDLE_CONNECTIONS);
+        consoleClient = client;
+        if (selectorDownloader != null) {
+            selectorDownloader.close();
+            selectorDownloader = null;
+        }
+        if (selectorEngine) {
+            try {
+                selectorDownloader = new SelectorDownloader(host, CONSOLE_PORT, socketBinder, RECEIVE_BUFFER_SIZE,
+                        MAX_IDLE_CONNECTIONS, SELECTOR_WRITER_THREADS, bufferPool);
+            } catch (IOException e) {
+                // Go on with a thread per download.
+                Log.e("TransferService", "SelectorDownloader", e);
+            }
+        }
+        final Session session = new Session();
+        // The journal and the counters don't wait for frames, which are throttled or stopped with the screen off.
+        session.finishedItems = new ChangeBatcher(Application.handler::post,
+                (positions, count) -> onItemsFinished(session, positions, count));
+        session.changedItems = new ChangeBatcher(TransferService::runOnNextFrame,
+                (positions, count) -> onItemsChanged(session, positions, count));
+        session.previousState = previousState;
+        session.timeline = timeline;
+        session.syncOnly = syncOnly;
+        this.session = session;
+        progressSampler.reset();
+        metadataExecutor.execute(() -> {
             for (int retries = 0; retries < 3; retries++) {
                 Log.i("readDataJson", String.format("%d time", retries + 1));
+                final ManifestHandler handler = new ManifestHandler(client, session);
                 try {
-                    data = readDataJson(host);
-                    break;
+                    readDataJson(client, handler);
+                    session.timeline.mark(SessionTimeline.Event.MANIFEST_RECEIVED);
+                    handler.finish();
+                    return;
                 } catch (Exception e) {
                     Log.e("readDataJson", "", e);
+                    if (handler.dispatched > 0) {
+                        // Some items are being downloaded, go on with them instead of starting over.
+                        handler.finish();
+                        return;
+                    }
                 }
                 try {
                     Thread.sleep(1000 * (retries + 1));
@@ -438,101 +990,600 @@ public class TransferService extends Service {
                     Log.e("readDataJson", "", e);
                 }
             }
-            final JsonData jsonData = data;
             Application.handler.post(() -> {
-                if (jsonData == null) {
-                    for (Listener listener : listeners) {
-                        listener.onParseTasksError();
-                    }
-                    Compat.Instance.disconnect(this, compatListener);
-                    changeToState(State.Idle);
-                    return;
+                for (Listener listener : listeners) {
+                    listener.onParseTasksError();
                 }
+                Compat.Instance.disconnect(this, compatListener);
+                changeToState(State.Idle);
+            });
+        });
+    }
+
+    // Items whose sizes are not learned in this time are ordered by estimated sizes.
+    private static final long SIZE_PROBE_TIMEOUT_MS = 2000;
+
+    // The order to download items.
+    private static final JobOrdering.Policy ORDERING_POLICY = JobOrdering.LONGEST_FIRST;
+
+    // Throughput of a single download stream in bytes per second, used to predict the makespan of a session.
+    // Learned from the last session.
+    private double streamThroughput = 2 * 1024 * 1024;
+
+    // Add a batch of items parsed from data.json and queue them.
+    private void addItems(final Session session, final String consoleName, @Nullable final DownloadState previous,
+                          final List<String> fileNames, final long[] sizes, final String[] savedUris) {
+        if (session != this.session || session.aborted) {
+            return;
+        }
+        if (downloadState == null) {
+            downloadState = new DownloadState(consoleNameOrDefault(consoleName));
+            final String name = downloadState.consoleName;
+            writeJournal(journal -> journal.startSession(name));
+            changeToState(State.Downloading);
+        }
 
-                final DownloadItem[] downloadItems = new DownloadItem[jsonData.urls.length];
-                final URL[] urls = new URL[jsonData.urls.length];
+        final List<DownloadItem> items = new ArrayList<>(fileNames.size());
+        for (int i = 0; i < fileNames.size(); i++) {
+            final String fileName = fileNames.get(i);
+            final DownloadItem item = new DownloadItem(fileName, fileName.endsWith(".mp4"));
+            item.totalBytes = sizes[i];
+            if (savedUris[i] != null) {
+                // Downloaded in an earlier session.
+                item.fileUri = savedUris[i];
+                item.bytesCommitted.set(sizes[i]);
+                item.state = DownloadItem.STATE_COMPLETED;
+            }
+            items.add(item);
+        }
+        carryOverInterruptedItems(previous, downloadState.consoleName, items);
+        for (final DownloadItem item : items) {
+            if (item.fileUri == null) {
+                Tracing.begin("createDownloadFile");
+                final Uri fileUri;
                 try {
-                    for (int i = 0; i < jsonData.urls.length; i++) {
-                        downloadItems[i] = new DownloadItem(jsonData.urls[i].endsWith(".mp4"));
-                        urls[i] = new URL(jsonData.urls[i]);
-                    }
-                } catch (MalformedURLException e) {
-                    Log.e("data.json", "url", e);
+                    fileUri = Compat.Instance.createDownloadFile(this, item.fileName, item.isVideo);
+                } finally {
+                    Tracing.end();
+                }
+                if (fileUri == null) {
+                    Log.e("download", "can't create file ");
+                    session.aborted = true;
                     for (Listener listener : listeners) {
-                        listener.onParseTasksError();
+                        listener.onCreateFileError();
                     }
                     Compat.Instance.disconnect(this, compatListener);
                     changeToState(State.Idle);
                     return;
                 }
-                String consoleName = jsonData.consoleName;
-                if (consoleName == null || consoleName.isEmpty()) {
-                    consoleName = getString(R.string.default_console_name);
-                }
-                downloadState = new DownloadState(consoleName, downloadItems);
-                changeToState(State.Downloading);
-                startDownload(urls);
-            });
+                item.fileUri = fileUri.toString();
+            }
+        }
+
+        final List<TransferJournal.ItemRecord> records = new ArrayList<>(items.size());
+        for (final DownloadItem item : items) {
+            records.add(toRecord(item));
+        }
+        writeJournal(journal -> {
+            for (final TransferJournal.ItemRecord record : records) {
+                journal.addItem(record);
+            }
         });
+
+        final int start = downloadState.items.size();
+        downloadState.items.addAll(items);
+        for (final DownloadItem item : items) {
+            if (item.state == DownloadItem.STATE_DOWNLOADING) {
+                session.remaining++;
+            } else {
+                session.skipped++;
+            }
+        }
+        if (!items.isEmpty()) {
+            for (Listener listener : listeners) {
+                listener.onDownloadItemsAdded(start, items.size());
+            }
+        }
+        showProgressNotification(session);
+        enqueue(session, start, items);
     }
 
-    private void startDownload(final URL[] urls) {
-        // Should be `int remains = downloadItems.length`, but it will be used in anonymous class.
-        final int[] remains = new int[]{downloadState.items.length};
-        startForegroundWithNotification(getString(R.string.fmt_remaining, remains[0]));
-        for (int i = 0; i < urls.length; i++) {
-            final URL url = urls[i];
-            final DownloadItem item = downloadState.items[i];
-            final int pos = i;
-            item.fileUri = Compat.Instance.createDownloadFile(this, new File(url.getPath()).getName(), item.isVideo).toString();
-            if (item.fileUri == null) {
-                Log.e("download", "can't create file ");
-                for (Listener listener : listeners) {
-                    listener.onCreateFileError();
+    // Queue items by ORDERING_POLICY. start is the position of the first item in downloadState.items.
+    private void enqueue(final Session session, final int start, final List<DownloadItem> items) {
+        if (downloadScheduler.isShutdown()) {
+            return;
+        }
+        final String consoleName = downloadState.consoleName;
+        // Remaining bytes of every item.
+        final long[] sizes = new long[items.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            final DownloadItem item = items.get(i);
+            if (item.totalBytes >= 0) {
+                sizes[i] = Math.max(0, item.totalBytes - item.bytesCommitted.get());
+            } else {
+                sizes[i] = item.isVideo ? JobOrdering.VIDEO_SIZE_ESTIMATE : JobOrdering.IMAGE_SIZE_ESTIMATE;
+            }
+        }
+        for (final int i : ORDERING_POLICY.order(sizes)) {
+            final DownloadItem item = items.get(i);
+            if (item.state != DownloadItem.STATE_DOWNLOADING) {
+                continue;
+            }
+            session.queuedSizes.add(sizes[i]);
+            session.queuedBytes += sizes[i];
+            final int pos = start + i;
+            final SelectorDownloader selector = selectorDownloader;
+            // A file saved in segments before is continued in segments.
+            if (selector != null && item.segmentPlan == null) {
+                downloadScheduler.executeAsync(finished -> {
+                    progressSampler.onStart(pos, item.bytesCommitted);
+                    final boolean traced = Tracing.isEnabled();
+                    if (traced) {
+                        Tracing.beginAsync("download " + item.fileName, pos);
+                    }
+                    downloadItemAsync(selector, item, session.timeline, error -> {
+                        if (traced) {
+                            Tracing.endAsync("download " + item.fileName, pos);
+                        }
+                        onItemDownloaded(session, consoleName, pos, item, error);
+                        finished.run();
+                    });
+                });
+                continue;
+            }
+            downloadScheduler.execute(() -> {
+                progressSampler.onStart(pos, item.bytesCommitted);
+                // The reads and writes of the item are nested in this section, see Tracing.TracingStrategy.
+                final boolean traced = Tracing.isEnabled();
+                if (traced) {
+                    Tracing.begin("download " + item.fileName);
                 }
-                Compat.Instance.disconnect(this, compatListener);
-                changeToState(State.Idle);
-                return;
+                IOException error = null;
+                try {
+                    downloadItem(item, session.timeline);
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    if (traced) {
+                        Tracing.end();
+                    }
+                }
+                onItemDownloaded(session, consoleName, pos, item, error);
+            });
+        }
+    }
+
+    // Called on the download thread when item is downloaded, or failed with error.
+    private void onItemDownloaded(final Session session, final String consoleName, final int pos,
+                                  final DownloadItem item, @Nullable IOException error) {
+        if (error == null) {
+            error = checkSavedSize(item);
+        }
+        if (error == null) {
+            item.state = DownloadItem.STATE_COMPLETED;
+            session.timeline.markItemCompleted(pos);
+            addToDedupIndex(consoleName, item);
+        } else {
+            downloadScheduler.onTransferError();
+            item.state = DownloadItem.STATE_ERROR;
+            Log.e("download", "", error);
+        }
+        session.finishedItems.onChanged(pos);
+    }
+
+    private void onManifestCompleted(final Session session) {
+        if (session != this.session || session.aborted) {
+            return;
+        }
+        session.manifestCompleted = true;
+
+        final long[] sizes = new long[session.queuedSizes.size()];
+        final int[] order = new int[sizes.length];
+        long totalBytes = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = session.queuedSizes.get(i);
+            order[i] = i;
+            totalBytes += sizes[i];
+        }
+        session.workers = downloadScheduler.getLimit();
+        session.predictedMs = (long) (JobOrdering.makespan(sizes, order, session.workers) * 1000 / streamThroughput);
+        Log.i("Download", String.format("%d items, %d saved before, %d bytes, %d workers, predicted makespan %dms",
+                sizes.length, session.skipped, totalBytes, session.workers, session.predictedMs));
+
+        if (session.remaining == 0) {
+            onSessionCompleted(session);
+        }
+    }
+
+    // Run r on main thread at the next display frame, so a burst of changes costs one layout pass.
+    private static void runOnNextFrame(final Runnable r) {
+        Application.handler.post(() -> Choreographer.getInstance().postFrameCallback(frameTimeNanos -> r.run()));
+    }
+
+    private void onItemsChanged(final Session session, final int[] positions, final int count) {
+        if (session != this.session) {
+            return;
+        }
+        for (Listener listener : listeners) {
+            listener.onDownloadItemsChanged(positions, count);
+        }
+    }
+
+    private void onItemsFinished(final Session session, final int[] positions, final int count) {
+        if (session != this.session) {
+            return;
+        }
+        //saveDownloadState();
+        final int[] indexes = Arrays.copyOf(positions, count);
+        final int[] states = new int[count];
+        final long[] bytesCommitted = new long[count];
+        final byte[][] hashes = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            progressSampler.onFinish(positions[i]);
+            final DownloadItem item = downloadState.items.get(positions[i]);
+            states[i] = item.state;
+            bytesCommitted[i] = item.bytesCommitted.get();
+            hashes[i] = item.contentHash;
+        }
+        writeJournal(journal -> {
+            for (int i = 0; i < indexes.length; i++) {
+                journal.setState(indexes[i], states[i], bytesCommitted[i], hashes[i]);
             }
+        });
+        for (int i = 0; i < count; i++) {
+            session.changedItems.onChanged(positions[i]);
+        }
+        session.remaining -= count;
+        if (session.remaining == 0 && session.manifestCompleted) {
+            onSessionCompleted(session);
+        } else {
+            showProgressNotification(session);
+            Log.i("Download", String.format("remaining: %d", session.remaining));
+        }
+    }
 
-            Log.i("Download", String.format("remaining: %d", remains[0]));
+    // Item progress is published to main thread at most this often.
+    static final long PROGRESS_PERIOD_MS = 100;
+    // The notification is updated at most this often, the system drops too frequent updates.
+    private static final long NOTIFICATION_PERIOD_MS = 1000;
+    // Weight of a new sample in the smoothed throughput.
+    private static final double THROUGHPUT_SMOOTHING = 0.2;
 
-            executor.execute(() -> {
-                try {
-                    try (OutputStream outputStream = new BufferedOutputStream(getContentResolver().openOutputStream(Uri.parse(item.fileUri)));
-                         InputStream inputStream = url.openStream()) {
-                        int c = inputStream.read();
-                        while (c != -1) {
-                            outputStream.write(c);
-                            c = inputStream.read();
+    private final ProgressSampler progressSampler = new ProgressSampler(Application.handler::postDelayed,
+            PROGRESS_PERIOD_MS, this::onProgressSample);
+
+    private void onProgressSample(final int[] positions, final int count, final long bytes, final long elapsedMs) {
+        final Session session = this.session;
+        if (session == null || session.aborted) {
+            return;
+        }
+        session.bytesDone += bytes;
+        if (elapsedMs > 0) {
+            final double throughput = bytes * 1000.0 / elapsedMs;
+            session.throughput = session.throughput == 0
+                    ? throughput
+                    : session.throughput + THROUGHPUT_SMOOTHING * (throughput - session.throughput);
+        }
+        for (Listener listener : listeners) {
+            listener.onDownloadProgress(positions, count);
+        }
+        if (SystemClock.elapsedRealtime() - session.lastNotificationTime >= NOTIFICATION_PERIOD_MS) {
+            showProgressNotification(session);
+        }
+    }
+
+    private void onSessionCompleted(final Session session) {
+        final long actualMs = SystemClock.elapsedRealtime() - session.startTime;
+        Log.i("Download", String.format("makespan predicted %dms, actual %dms", session.predictedMs, actualMs));
+        final ConsoleHttpClient client = consoleClient;
+        if (client != null) {
+            Log.i("Download", String.format("connections: %d new, %d reused, %d requests pipelined",
+                    client.getConnectionsOpened(), client.getConnectionsReused(), client.getPipelinedRequests()));
+        }
+        if (selectorDownloader != null) {
+            Log.i("Download", String.format("selector connections: %d new, %d reused",
+                    selectorDownloader.getConnectionsOpened(), selectorDownloader.getConnectionsReused()));
+        }
+        long totalBytes = 0;
+        for (final long size : session.queuedSizes) {
+            totalBytes += size;
+        }
+        if (actualMs > 0 && totalBytes > 0 && session.workers > 0) {
+            streamThroughput = totalBytes * 1000.0 / actualMs / session.workers;
+        }
+        final TransferJournal.Snapshot snapshot = new TransferJournal.Snapshot(downloadState.consoleName);
+        for (final DownloadItem item : downloadState.items) {
+            snapshot.items.add(toRecord(item));
+        }
+        writeJournal(journal -> journal.compact(snapshot));
+        showDownloadCompletedNotification();
+        stop();
+        for (Listener listener : listeners) {
+            listener.onDownloadCompleted();
+        }
+        changeToState(State.Idle);
+        stopForeground(true);
+        Compat.Instance.disconnect(this, compatListener);
+    }
+
+    // Large videos are downloaded with this number of connections.
+    private static final int SEGMENT_COUNT = 4;
+    // Videos shorter than this are downloaded with a single connection.
+    private static final long SEGMENT_MIN_LENGTH = 8 * 1024 * 1024;
+
+    // Threads running the segments beside the item thread. Segments of other videos wait for them.
+    private static final int SEGMENT_THREADS = SEGMENT_COUNT - 1;
+
+    // Executor to run the segments of segmented downloads.
+    // Separated from downloadScheduler because the item thread waits for its segments.
+    private final ExecutorService segmentExecutor = Executors.newFixedThreadPool(SEGMENT_THREADS);
+
+    private final SegmentedDownloader segmentedDownloader = new SegmentedDownloader(segmentExecutor, transferEngine,
+            SEGMENT_COUNT, SEGMENT_MIN_LENGTH);
+
+    // Reads saved files back to verify them.
+    private final ExecutorService verifyExecutor = Executors.newSingleThreadExecutor();
+
+    private void verifySavedFiles() {
+        final DownloadState state = downloadState;
+        final List<Integer> positions = new ArrayList<>();
+        if (state != null) {
+            for (int i = 0; i < state.items.size(); i++) {
+                final DownloadItem item = state.items.get(i);
+                if (item.state == DownloadItem.STATE_COMPLETED && item.fileUri != null && item.totalBytes >= 0) {
+                    positions.add(i);
+                }
+            }
+        }
+        // Copy the values, the items are not touched off main thread.
+        final String[] uris = new String[positions.size()];
+        final String[] fileNames = new String[positions.size()];
+        final long[] sizes = new long[positions.size()];
+        final byte[][] hashes = new byte[positions.size()][];
+        for (int i = 0; i < uris.length; i++) {
+            final DownloadItem item = state.items.get(positions.get(i));
+            uris[i] = item.fileUri;
+            fileNames[i] = item.fileName;
+            sizes[i] = item.totalBytes;
+            hashes[i] = item.contentHash;
+        }
+        verifyExecutor.execute(() -> {
+            final List<Integer> damaged = new ArrayList<>();
+            for (int i = 0; i < uris.length; i++) {
+                boolean ok;
+                try (InputStream in = getContentResolver().openInputStream(Uri.parse(uris[i]))) {
+                    ok = in != null && FileVerifier.verify(transferEngine, in, sizes[i], hashes[i]);
+                } catch (IOException | SecurityException e) {
+                    Log.e("verify", uris[i], e);
+                    ok = false;
+                }
+                if (!ok) {
+                    Log.w("verify", String.format("%s is damaged", fileNames[i]));
+                    damaged.add(positions.get(i));
+                    final DedupIndex.Entry entry = dedupIndex.find(state.consoleName, fileNames[i], sizes[i]);
+                    if (entry != null) {
+                        try {
+                            dedupIndex.remove(entry);
+                        } catch (IOException e) {
+                            Log.e("TransferService", "dedupIndex", e);
                         }
                     }
-                    Application.handler.post(() -> item.state = DownloadItem.STATE_COMPLETED);
-                } catch (IOException e) {
-                    Application.handler.post(() -> item.state = DownloadItem.STATE_ERROR);
-                    Log.e("download", "", e);
                 }
-                Application.handler.post(() -> {
-                    //saveDownloadState();
-                    for (Listener listener : listeners) {
-                        listener.onDownloadItemStateChanged(pos);
-                    }
-                    if (--remains[0] == 0) {
-                        writeDownloadState(this, downloadState);
-                        showDownloadCompletedNotification();
-                        stop();
-                        for (Listener listener : listeners) {
-                            listener.onDownloadCompleted();
+            }
+            Application.handler.post(() -> onVerified(state, uris.length, damaged));
+        });
+    }
+
+    private void onVerified(final DownloadState state, final int checked, final List<Integer> damaged) {
+        if (state != null && state == downloadState && !damaged.isEmpty()) {
+            final int[] positions = new int[damaged.size()];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = damaged.get(i);
+                state.items.get(positions[i]).state = DownloadItem.STATE_ERROR;
+            }
+            writeJournal(journal -> {
+                for (final int pos : positions) {
+                    journal.setState(pos, DownloadItem.STATE_ERROR, 0, null);
+                }
+            });
+            for (Listener listener : listeners) {
+                listener.onDownloadItemsChanged(positions, positions.length);
+            }
+        }
+        for (Listener listener : listeners) {
+            listener.onVerifyCompleted(checked, damaged.size());
+        }
+    }
+
+    private void addToDedupIndex(final String consoleName, final DownloadItem item) {
+        final long size = item.totalBytes;
+        if (size < 0 || item.bytesCommitted.get() != size) {
+            return;
+        }
+        final byte[] hash = item.contentHash;
+        try {
+            dedupIndex.put(new DedupIndex.Entry(consoleName, item.fileName, size, hash == null ? new byte[0] : hash, item.fileUri));
+        } catch (IOException e) {
+            Log.e("TransferService", "dedupIndex", e);
+        }
+    }
+
+    // Create thumbnails from the bytes as they are downloaded, instead of reading the saved files back.
+    private static final boolean THUMBNAIL_TEE = true;
+
+    private ThumbnailLoader<Bitmap> thumbnailLoader;
+    private ThumbnailCodec thumbnailCodec;
+
+    // Download item with segments if it is a large video, or with a single connection.
+    // Called on the download thread.
+    private void downloadItem(final DownloadItem item, final SessionTimeline timeline) throws IOException {
+        final ConsoleHttpClient client = consoleClient;
+        final String path = itemPath(item);
+        if (item.segmentPlan == null && item.isVideo && item.bytesCommitted.get() == 0) {
+            // The size is known from the size probe, a HEAD request is needed only if it isn't.
+            item.segmentPlan = segmentedDownloader.plan(client, path, item.totalBytes);
+        }
+        if (item.segmentPlan != null) {
+            final SegmentedDownloader.Plan plan = item.segmentPlan;
+            item.totalBytes = plan.length;
+            item.bytesCommitted.set(plan.getBytesSaved());
+            segmentedDownloader.download(client, path, plan,
+                    () -> openItemChannel(item, plan.length),
+                    n -> {
+                        item.bytesCommitted.addAndGet(n);
+                        downloadScheduler.onBytesTransferred(n);
+                        progressSampler.onProgress();
+                        timeline.mark(SessionTimeline.Event.FIRST_BYTE);
+                    });
+            return;
+        }
+        // Only a file downloaded from the first byte goes through the tee.
+        final ThumbnailTee[] tee = new ThumbnailTee[1];
+        item.contentHash = ItemDownloader.download(client, path, item.bytesCommitted.get(),
+                itemTarget(item, tee), transferEngine, itemListener(item, timeline));
+        if (tee[0] != null) {
+            createThumbnail(item, tee[0]);
+        }
+    }
+
+    // Receives the result of downloadItemAsync.
+    private interface ItemCallback {
+        // Called on a writer thread. error is null if the item is downloaded.
+        void onFinished(@Nullable IOException error);
+    }
+
+    // Download item with a single connection on selector. Returns at once.
+    private void downloadItemAsync(final SelectorDownloader selector, final DownloadItem item, final SessionTimeline timeline,
+                                   final ItemCallback callback) {
+        final ThumbnailTee[] tee = new ThumbnailTee[1];
+        selector.download(itemPath(item), item.bytesCommitted.get(), itemTarget(item, tee), itemListener(item, timeline),
+                new SelectorDownloader.Callback() {
+                    @Override
+                    public void onCompleted(byte[] hash) {
+                        item.contentHash = hash;
+                        if (tee[0] == null) {
+                            callback.onFinished(null);
+                            return;
+                        }
+                        // Not on the writer thread, the other downloads wait for it to hand their buffers back.
+                        try {
+                            thumbnailExecutor.execute(() -> {
+                                createThumbnail(item, tee[0]);
+                                callback.onFinished(null);
+                            });
+                        } catch (RejectedExecutionException e) {
+                            // Destroyed, the thumbnail is created from the saved file later.
+                            callback.onFinished(null);
                         }
-                        changeToState(State.Idle);
-                        stopForeground(true);
-                        Compat.Instance.disconnect(this, compatListener);
-                    } else {
-                        startForegroundWithNotification(getString(R.string.fmt_remaining, remains[0]));
-                        Log.i("Download", String.format("remaining: %d", remains[0]));
+                    }
+
+                    @Override
+                    public void onFailed(IOException e) {
+                        callback.onFinished(e);
                     }
                 });
-            });
+    }
+
+    // Opens the file of item. A file downloaded from the first byte goes through a ThumbnailTee, stored in tee[0].
+    private ItemDownloader.Target itemTarget(final DownloadItem item, final ThumbnailTee[] tee) {
+        return offset -> {
+            final OutputStream stream = openItemOutputStream(item, offset);
+            if (!THUMBNAIL_TEE || offset > 0) {
+                return stream;
+            }
+            tee[0] = new ThumbnailTee(stream, item.isVideo);
+            return tee[0];
+        };
+    }
+
+    private ItemDownloader.Listener itemListener(final DownloadItem item, final SessionTimeline timeline) {
+        return new ItemDownloader.Listener() {
+            @Override
+            public void onStart(long offset, long length) {
+                item.totalBytes = length;
+                item.bytesCommitted.set(offset);
+            }
+
+            @Override
+            public void onBytesWritten(int n) {
+                item.bytesCommitted.addAndGet(n);
+                downloadScheduler.onBytesTransferred(n);
+                progressSampler.onProgress();
+                timeline.mark(SessionTimeline.Event.FIRST_BYTE);
+            }
+        };
+    }
+
+    // Called on the download thread after the file is saved.
+    // If it fails, the thumbnail loader creates the thumbnail from the saved file.
+    private void createThumbnail(final DownloadItem item, final ThumbnailTee tee) {
+        try {
+            thumbnailLoader.put(item.fileUri, thumbnailCodec.create(tee));
+        } catch (IOException e) {
+            Log.w("thumbnail", item.fileName, e);
+        }
+    }
+
+    // Opens the file of item, the bytes after size are dropped.
+    private FileChannel openItemChannel(final DownloadItem item, final long size) throws IOException {
+        final ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(Uri.parse(item.fileUri), "rw");
+        if (pfd == null) {
+            throw new FileNotFoundException(item.fileUri);
+        }
+        // Closing the channel closes the stream, which closes pfd.
+        final FileChannel channel = new ParcelFileDescriptor.AutoCloseOutputStream(pfd).getChannel();
+        try {
+            channel.truncate(size);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    // Opens the file of item to write from offset.
+    // The file may be longer than the journal tells, the bytes written after the last journal write are not counted,
+    // so the file is truncated to offset instead of appended to.
+    private OutputStream openItemOutputStream(final DownloadItem item, final long offset) throws IOException {
+        final FileChannel channel = openItemChannel(item, offset);
+        try {
+            channel.position(offset);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return Channels.newOutputStream(channel);
+    }
+
+    // The bytes counted in this session may not be all of the file, so the saved file is checked against the length.
+    // Returns null if it has the length or either is unknown. If not, the next download starts from the first byte.
+    @Nullable
+    private IOException checkSavedSize(final DownloadItem item) {
+        final long length = item.totalBytes;
+        if (length < 0) {
+            return null;
+        }
+        final long size;
+        try {
+            size = getSavedSize(item);
+        } catch (IOException e) {
+            return e;
+        }
+        if (size < 0 || size == length) {
+            return null;
+        }
+        item.bytesCommitted.set(0);
+        item.segmentPlan = null;
+        return new IOException(String.format("%s saved %d of %d bytes", item.fileName, size, length));
+    }
+
+    // Size of the saved file of item, -1 if unknown.
+    private long getSavedSize(final DownloadItem item) throws IOException {
+        try (ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(Uri.parse(item.fileUri), "r")) {
+            if (pfd == null) {
+                throw new FileNotFoundException(item.fileUri);
+            }
+            return pfd.getStatSize();
         }
     }
 }
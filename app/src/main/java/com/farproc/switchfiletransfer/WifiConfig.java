@@ -1,63 +1,154 @@
 package com.farproc.switchfiletransfer;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 
 public class WifiConfig {
     public final String SSID;
     public final String AuthType;
     public final String Password;
+    // Whether the network does not broadcast its SSID.
+    public final boolean Hidden;
 
     public WifiConfig(String ssid, String authType, String password) {
+        this(ssid, authType, password, false);
+    }
+
+    public WifiConfig(String ssid, String authType, String password, boolean hidden) {
         this.SSID = ssid;
         this.AuthType = authType;
         this.Password = password;
+        this.Hidden = hidden;
     }
 
-    private static Pattern WIFI_CONFIG_SSID = Pattern.compile("\\bS\\:([^;]+);");
-    private static Pattern WIFI_CONFIG_AUTH_TYPE = Pattern.compile("\\bT\\:([^;]+);");
-    private static Pattern WIFI_CONFIG_PASSWORD = Pattern.compile("\\bP\\:([^;]+);");
-
-    private static String restoreEscaped(String str) {
-        return str
-                .replace("\0_1", ";")
-                .replace("\0_2", ":")
-                .replace("\\,", ",")
-                .replace("\\\\", "\\");
-    }
+    private static final String PREFIX = "WIFI:";
 
     // Parse the configuration string from QR.
-    // Returns null if config can't be parsed.
+    // Returns null if config can't be parsed, or if it has no SSID, type or password.
+    //
+    // https://github.com/zxing/zxing/wiki/Barcode-Contents#wifi-network-config-android
+    // WIFI:T:WPA;S:mynetwork;P:mypass;H:false;;
+    // Fields are in any order, the first of a field counts and unknown fields (E:, A:, I:, PH2:, ...) are skipped.
+    // '\' escapes the next character. The SSID and password may be in double quotes, an SSID
+    // of hex digits without quotes is the hex of the SSID.
+    //
+    // The string is scanned once, a value is copied only if it has escapes. A code of another kind
+    // is rejected by its first characters, so this can run on every frame the scanner decodes.
     public static WifiConfig parse(String config) {
-        // https://github.com/zxing/zxing/wiki/Barcode-Contents#wifi-network-config-android
-        // replace all escaped characters.
-        config = config
-                .replace("\\;", "\0_1")
-                .replace("\\:", "\0_2");
-
-        Matcher m = WIFI_CONFIG_SSID.matcher(config);
-        if(!m.find() || m.groupCount() == 0) {
+        if (config == null || !config.startsWith(PREFIX)) {
             return null;
         }
-        final String ssid = m.group(1);
-
-        m = WIFI_CONFIG_AUTH_TYPE.matcher(config);
-        if(!m.find() || m.groupCount() == 0) {
+        String ssid = null;
+        String authType = null;
+        String password = null;
+        String hidden = null;
+        final int length = config.length();
+        int pos = PREFIX.length();
+        while (pos < length && config.charAt(pos) != ';') {
+            // The field ends at the first ';' not escaped.
+            int end = pos;
+            boolean escaped = false;
+            while (end < length && config.charAt(end) != ';') {
+                if (config.charAt(end) == '\\') {
+                    escaped = true;
+                    end++;
+                }
+                end++;
+            }
+            if (end >= length) {
+                return null; // Not terminated.
+            }
+            final int colon = config.indexOf(':', pos);
+            if (colon == -1 || colon > end) {
+                // A field without key, skipped.
+                pos = end + 1;
+                continue;
+            }
+            final String value = escaped ? unescape(config, colon + 1, end) : config.substring(colon + 1, end);
+            if (colon - pos == 1) {
+                switch (config.charAt(pos)) {
+                    case 'S':
+                        ssid = ssid == null ? value : ssid;
+                        break;
+                    case 'T':
+                        authType = authType == null ? value : authType;
+                        break;
+                    case 'P':
+                        password = password == null ? value : password;
+                        break;
+                    case 'H':
+                        hidden = hidden == null ? value : hidden;
+                        break;
+                }
+            }
+            pos = end + 1;
+        }
+        if (ssid == null || authType == null || password == null
+                || ssid.isEmpty() || authType.isEmpty() || password.isEmpty()) {
             return null;
         }
-        final String authType = m.group(1);
+        return new WifiConfig(decodeSsid(ssid), authType, unquote(password), "true".equalsIgnoreCase(hidden));
+    }
 
-        m = WIFI_CONFIG_PASSWORD.matcher(config);
-        if(!m.find() || m.groupCount() == 0) {
-            return null;
+    // config[start, end) without the '\' of the escapes.
+    private static String unescape(final String config, final int start, final int end) {
+        final StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            final char c = config.charAt(i);
+            if (c == '\\' && i + 1 < end) {
+                i++;
+                sb.append(config.charAt(i));
+            } else {
+                sb.append(c);
+            }
         }
-        final String password = m.group(1);
+        return sb.toString();
+    }
 
+    private static boolean isQuoted(final String value) {
+        return value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"';
+    }
 
-        if (ssid == null || authType == null || password == null) {
-            return null;
-        }
+    private static String unquote(final String value) {
+        return isQuoted(value) ? value.substring(1, value.length() - 1) : value;
+    }
 
-        return new WifiConfig(restoreEscaped(ssid), restoreEscaped(authType), restoreEscaped(password));
+    // A quoted SSID is the SSID. An SSID of an even number of hex digits is the UTF-8 bytes of the SSID in hex,
+    // unless the bytes are not valid UTF-8 or not printable, e.g. the digits of "12345678" are kept as they are.
+    private static String decodeSsid(final String ssid) {
+        if (isQuoted(ssid)) {
+            return unquote(ssid);
+        }
+        if (ssid.length() % 2 != 0) {
+            return ssid;
+        }
+        final byte[] bytes = new byte[ssid.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            final int high = Character.digit(ssid.charAt(2 * i), 16);
+            final int low = Character.digit(ssid.charAt(2 * i + 1), 16);
+            if (high == -1 || low == -1) {
+                return ssid;
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        final String decoded;
+        try {
+            decoded = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(bytes))
+                    .toString();
+        } catch (CharacterCodingException e) {
+            return ssid;
+        }
+        for (int i = 0; i < decoded.length(); i++) {
+            final char c = decoded.charAt(i);
+            if (Character.isISOControl(c) || Character.getType(c) == Character.UNASSIGNED) {
+                return ssid;
+            }
+        }
+        return decoded;
     }
 }
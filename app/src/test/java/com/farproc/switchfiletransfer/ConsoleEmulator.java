@@ -0,0 +1,424 @@
+package com.farproc.switchfiletransfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Emulates the HTTP server of the console on localhost, to run the download path end to end
+ * without a Switch.
+ * <p>
+ * Serves {@code /data.json} and {@code /img/<name>} for an album generated from a seed, so the same
+ * {@link Config} always gives the same file names, sizes and bytes. The files start like JPEG and MP4
+ * files and are about as large. The link is shaped by {@link Config}: bandwidth, latency,
+ * connections reset in the middle of a body, Range support and keep-alive.
+ */
+class ConsoleEmulator implements Closeable {
+    /**
+     * The album, which is generated when the server is created, and the behavior of the server,
+     * whose changes apply to the next responses.
+     */
+    static class Config {
+        String consoleName = "Switch";
+        long seed = 1;
+        int images = 20;
+        int videos = 2;
+        // Average sizes of the files, every file is within 25% of it.
+        int imageSize = 300 * 1024;
+        int videoSize = 8 * 1024 * 1024;
+
+        // Max bytes per second of every connection, 0 for no limit.
+        volatile long bytesPerSecond;
+        // Delay before every response, like the round trip of a slow link.
+        volatile long latencyMs;
+        // Whether Range requests are answered with 206, or ignored as by a server without Range support.
+        volatile boolean rangeSupported = true;
+        // Whether connections are kept alive after a response.
+        volatile boolean keepAlive = true;
+        // Bodies are cut after this many bytes by resetting the connection, see ConsoleEmulator#setResets.
+        volatile long resetAfterBytes = -1;
+    }
+
+    /**
+     * A file of the album.
+     */
+    static class AlbumFile {
+        final String name;
+        final long length;
+        private final long seed;
+
+        private AlbumFile(final String name, final long length, final long seed) {
+            this.name = name;
+            this.length = length;
+            this.seed = seed;
+        }
+
+        boolean isVideo() {
+            return name.endsWith(".mp4");
+        }
+
+        /**
+         * The whole file.
+         */
+        byte[] content() {
+            final byte[] bytes = new byte[(int) length];
+            fill(0, bytes, 0, bytes.length);
+            return bytes;
+        }
+
+        // Fill buffer[offset, offset + length) with the bytes of the file from position.
+        private void fill(final long position, final byte[] buffer, final int offset, final int length) {
+            final byte[] header = isVideo() ? MP4_HEADER : JPEG_HEADER;
+            for (int i = 0; i < length; i++) {
+                final long pos = position + i;
+                if (pos < header.length) {
+                    buffer[offset + i] = header[(int) pos];
+                } else if (!isVideo() && pos >= this.length - 2) {
+                    // End of image.
+                    buffer[offset + i] = pos == this.length - 2 ? (byte) 0xff : (byte) 0xd9;
+                } else {
+                    buffer[offset + i] = (byte) (mix(seed + pos / 8) >>> (pos % 8 * 8));
+                }
+            }
+        }
+    }
+
+    // Start of image and an APP0 marker.
+    private static final byte[] JPEG_HEADER = {(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0, 0, 16, 'J', 'F', 'I', 'F', 0};
+    // An ftyp box.
+    private static final byte[] MP4_HEADER = {0, 0, 0, 24, 'f', 't', 'y', 'p', 'm', 'p', '4', '2', 0, 0, 0, 0,
+            'i', 's', 'o', 'm', 'm', 'p', '4', '2'};
+
+    // SplitMix64, the bytes of a file at any position without keeping the file.
+    private static long mix(long z) {
+        z += 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    final Config config;
+    private final List<AlbumFile> files;
+    private final Map<String, AlbumFile> filesByName = new HashMap<>();
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Set<Socket> sockets = Collections.synchronizedSet(new HashSet<>());
+    private final AtomicInteger resets = new AtomicInteger();
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicLong bodyBytes = new AtomicLong();
+
+    /**
+     * Generate the album of {@code config} and start serving it on a free port of localhost.
+     */
+    ConsoleEmulator(final Config config) throws IOException {
+        this.config = config;
+        final Random random = new Random(config.seed);
+        final List<AlbumFile> files = new ArrayList<>();
+        final int total = config.images + config.videos;
+        for (int i = 0; i < total; i++) {
+            // Videos are spread evenly.
+            final boolean video = (long) (i + 1) * config.videos / total != (long) i * config.videos / total;
+            final int size = video ? config.videoSize : config.imageSize;
+            final long length = Math.max(MP4_HEADER.length + 2, (long) (size * (0.75 + random.nextDouble() / 2)));
+            // Named by the time of the capture, as the console does.
+            final String name = String.format(Locale.US, "20210101%06d00-0.%s", 120000 + i, video ? "mp4" : "jpg");
+            final AlbumFile file = new AlbumFile(name, length, random.nextLong());
+            files.add(file);
+            filesByName.put(name, file);
+        }
+        this.files = Collections.unmodifiableList(files);
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        executor.execute(this::accept);
+    }
+
+    String getHost() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Files of the album in the order of data.json.
+     */
+    List<AlbumFile> getFiles() {
+        return files;
+    }
+
+    AlbumFile getFile(final String name) {
+        return filesByName.get(name);
+    }
+
+    /**
+     * Reset the connection of the next {@code count} bodies after {@link Config#resetAfterBytes} bytes.
+     */
+    void setResets(final int count) {
+        resets.set(count);
+    }
+
+    int getConnections() {
+        return connections.get();
+    }
+
+    int getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Bytes of all bodies sent.
+     */
+    long getBodyBytes() {
+        return bodyBytes.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        synchronized (sockets) {
+            for (final Socket socket : sockets) {
+                socket.close();
+            }
+        }
+        executor.shutdownNow();
+    }
+
+    private void accept() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return; // Closed.
+            }
+            connections.incrementAndGet();
+            sockets.add(socket);
+            executor.execute(() -> {
+                try {
+                    serve(socket);
+                } catch (IOException e) {
+                    // The client went away.
+                } finally {
+                    sockets.remove(socket);
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // Ignore.
+                    }
+                }
+            });
+        }
+    }
+
+    // Answer the requests of a connection until it is closed.
+    private void serve(final Socket socket) throws IOException {
+        final InputStream in = new BufferedInputStream(socket.getInputStream());
+        final OutputStream out = new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE);
+        while (true) {
+            final String requestLine = readLine(in);
+            if (requestLine == null) {
+                return;
+            }
+            final Map<String, String> headers = new HashMap<>();
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                final int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+                }
+            }
+            requests.incrementAndGet();
+            final String[] parts = requestLine.split(" ");
+            if (parts.length != 3) {
+                return;
+            }
+            final boolean keepAlive = config.keepAlive && !"close".equalsIgnoreCase(headers.get("connection"));
+            sleep(config.latencyMs);
+            if (!respond(socket, out, parts[0], parts[1], headers.get("range"), keepAlive) || !keepAlive) {
+                return;
+            }
+        }
+    }
+
+    // Write the response. Returns false if the connection is reset.
+    private boolean respond(final Socket socket, final OutputStream out, final String method, final String target,
+                            final String range, final boolean keepAlive) throws IOException {
+        final boolean head = "HEAD".equals(method);
+        final Map<String, String> headers = new LinkedHashMap<>();
+        if (!keepAlive) {
+            headers.put("Connection", "close");
+        }
+        if ("/data.json".equals(target)) {
+            final byte[] body = dataJson().getBytes(StandardCharsets.UTF_8);
+            headers.put("Content-Type", "application/json");
+            headers.put("Content-Length", String.valueOf(body.length));
+            writeHead(out, "200 OK", headers);
+            if (!head) {
+                out.write(body);
+            }
+            out.flush();
+            return true;
+        }
+        final AlbumFile file = target.startsWith("/img/") ? filesByName.get(target.substring("/img/".length())) : null;
+        if (file == null) {
+            headers.put("Content-Length", "0");
+            writeHead(out, "404 Not Found", headers);
+            out.flush();
+            return true;
+        }
+        headers.put("Content-Type", file.isVideo() ? "video/mp4" : "image/jpeg");
+        if (config.rangeSupported) {
+            headers.put("Accept-Ranges", "bytes");
+        }
+        long start = 0;
+        long end = file.length - 1;
+        String status = "200 OK";
+        if (range != null && config.rangeSupported) {
+            final long[] r = parseRange(range, file.length);
+            if (r == null) {
+                headers.put("Content-Range", "bytes */" + file.length);
+                headers.put("Content-Length", "0");
+                writeHead(out, "416 Range Not Satisfiable", headers);
+                out.flush();
+                return true;
+            }
+            start = r[0];
+            end = r[1];
+            status = "206 Partial Content";
+            headers.put("Content-Range", String.format(Locale.US, "bytes %d-%d/%d", start, end, file.length));
+        }
+        headers.put("Content-Length", String.valueOf(end - start + 1));
+        writeHead(out, status, headers);
+        if (!head) {
+            return writeBody(socket, out, file, start, end + 1);
+        }
+        out.flush();
+        return true;
+    }
+
+    private boolean writeBody(final Socket socket, final OutputStream out, final AlbumFile file, final long start,
+                              final long end) throws IOException {
+        final long resetAfter = config.resetAfterBytes;
+        final boolean reset = resetAfter >= 0 && resets.getAndUpdate(n -> Math.max(0, n - 1)) > 0;
+        final long limit = reset ? Math.min(end, start + resetAfter) : end;
+        final byte[] buffer = new byte[CHUNK_SIZE];
+        final long startTime = System.nanoTime();
+        long pos = start;
+        while (pos < limit) {
+            final int n = (int) Math.min(buffer.length, limit - pos);
+            file.fill(pos, buffer, 0, n);
+            out.write(buffer, 0, n);
+            pos += n;
+            bodyBytes.addAndGet(n);
+            final long rate = config.bytesPerSecond;
+            if (rate > 0) {
+                out.flush();
+                // Wait until the bytes sent are within the rate.
+                final long dueNanos = (pos - start) * 1_000_000_000L / rate;
+                final long aheadNanos = dueNanos - (System.nanoTime() - startTime);
+                if (aheadNanos > 0) {
+                    sleep(aheadNanos / 1_000_000);
+                }
+            }
+        }
+        out.flush();
+        if (reset) {
+            // RST instead of FIN.
+            socket.setSoLinger(true, 0);
+            socket.close();
+            return false;
+        }
+        return true;
+    }
+
+    private String dataJson() {
+        final StringBuilder sb = new StringBuilder("{\"FileType\":\"photo\",\"DownloadMes\":\"false\",\"FileNames\":[");
+        for (int i = 0; i < files.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append(files.get(i).name).append('"');
+        }
+        return sb.append("],\"ConsoleName\":\"").append(config.consoleName).append("\"}").toString();
+    }
+
+    private static void writeHead(final OutputStream out, final String status, final Map<String, String> headers) throws IOException {
+        final StringBuilder sb = new StringBuilder("HTTP/1.1 ").append(status).append("\r\n");
+        for (final Map.Entry<String, String> header : headers.entrySet()) {
+            sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        out.write(sb.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    // "bytes=start-end" or "bytes=start-". Returns {start, end}, null if not satisfiable.
+    private static long[] parseRange(final String value, final long length) throws IOException {
+        if (!value.startsWith("bytes=") || value.indexOf('-') < 0) {
+            throw new IOException("bad range " + value);
+        }
+        final String spec = value.substring("bytes=".length());
+        final int dash = spec.indexOf('-');
+        final long start = Long.parseLong(spec.substring(0, dash).trim());
+        final String endText = spec.substring(dash + 1).trim();
+        final long end = endText.isEmpty() ? length - 1 : Math.min(length - 1, Long.parseLong(endText));
+        if (start >= length || start > end) {
+            return null;
+        }
+        return new long[]{start, end};
+    }
+
+    // Null at EOF.
+    private static String readLine(final InputStream in) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        int c;
+        try {
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    final int length = sb.length();
+                    return length > 0 && sb.charAt(length - 1) == '\r' ? sb.substring(0, length - 1) : sb.toString();
+                }
+                sb.append((char) c);
+            }
+        } catch (SocketException e) {
+            return null;
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    private static void sleep(final long ms) throws IOException {
+        if (ms <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.farproc.switchfiletransfer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TestBitmapPool {
+    // The "bitmaps" are their sizes.
+    private final BitmapPool<int[]> pool = new BitmapPool<>(1000, bitmap -> bitmap[0]);
+
+    @Test
+    public void bestFit() {
+        final int[] small = {100};
+        final int[] medium = {300};
+        final int[] large = {500};
+        pool.release(large);
+        pool.release(small);
+        pool.release(medium);
+        assertEquals(900, pool.getPooledBytes());
+
+        assertSame(medium, pool.acquire(200));
+        // Too small, or more than twice as large.
+        assertNull(pool.acquire(600));
+        assertNull(pool.acquire(40));
+        assertSame(small, pool.acquire(100));
+        assertSame(large, pool.acquire(300));
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void bounded() {
+        pool.release(new int[]{600});
+        pool.release(new int[]{600});
+        assertEquals(600, pool.getPooledBytes());
+        pool.release(new int[]{400});
+        assertEquals(1000, pool.getPooledBytes());
+    }
+}
@@ -0,0 +1,61 @@
+package com.farproc.switchfiletransfer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestChangeBatcher {
+    private final List<Runnable> scheduled = new ArrayList<>();
+    private final List<String> batches = new ArrayList<>();
+
+    private final ChangeBatcher batcher = new ChangeBatcher(flush -> {
+        synchronized (scheduled) {
+            scheduled.add(flush);
+        }
+    }, (positions, count) -> batches.add(Arrays.toString(Arrays.copyOf(positions, count))));
+
+    @Test
+    public void batch() throws InterruptedException {
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int first = t;
+            threads[t] = new Thread(() -> {
+                for (int pos = first; pos < 1000; pos += threads.length) {
+                    batcher.onChanged(pos);
+                    batcher.onChanged(pos);
+                }
+            });
+            threads[t].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, scheduled.size());
+        scheduled.remove(0).run();
+        assertEquals(1, batches.size());
+        final int[] expected = new int[1000];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = i;
+        }
+        assertEquals(Arrays.toString(expected), batches.get(0));
+
+        // The next change schedules another flush.
+        batcher.onChanged(7);
+        batcher.onChanged(3);
+        assertEquals(1, scheduled.size());
+        scheduled.remove(0).run();
+        assertEquals("[3, 7]", batches.get(1));
+    }
+
+    @Test
+    public void unique() {
+        final int[] values = {1, 1, 2, 5, 5, 5, 9};
+        assertEquals(4, ChangeBatcher.unique(values, values.length));
+        assertEquals("[1, 2, 5, 9]", Arrays.toString(Arrays.copyOf(values, 4)));
+        assertEquals(0, ChangeBatcher.unique(values, 0));
+    }
+}
@@ -0,0 +1,83 @@
+package com.farproc.switchfiletransfer;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static com.farproc.switchfiletransfer.ConnectPlanner.Step.ADD_NETWORK;
+import static com.farproc.switchfiletransfer.ConnectPlanner.Step.DISCONNECT;
+import static com.farproc.switchfiletransfer.ConnectPlanner.Step.ENABLE_NETWORK;
+import static com.farproc.switchfiletransfer.ConnectPlanner.Step.REMOVE_NETWORK;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestConnectPlanner {
+    @Test
+    public void firstConnection() {
+        assertEquals(Arrays.asList(ADD_NETWORK, ENABLE_NETWORK),
+                ConnectPlanner.plan("switch_1", "pass", -1, null, null));
+        assertEquals(Arrays.asList(ADD_NETWORK, DISCONNECT, ENABLE_NETWORK),
+                ConnectPlanner.plan("switch_1", "pass", -1, null, "home"));
+    }
+
+    @Test
+    public void configuredByOthers() {
+        // The password of the configuration can't be checked.
+        assertEquals(Arrays.asList(REMOVE_NETWORK, ADD_NETWORK, DISCONNECT, ENABLE_NETWORK),
+                ConnectPlanner.plan("switch_1", "pass", 3, null, "home"));
+    }
+
+    @Test
+    public void reuse() {
+        final ConnectPlanner.Credentials added = new ConnectPlanner.Credentials("switch_1", "pass", 3);
+        assertEquals(Arrays.asList(DISCONNECT, ENABLE_NETWORK),
+                ConnectPlanner.plan("switch_1", "pass", 3, added, "home"));
+        assertEquals(Collections.singletonList(ENABLE_NETWORK),
+                ConnectPlanner.plan("switch_1", "pass", 3, added, null));
+        // Changed password, or the configuration was replaced by others.
+        assertEquals(Arrays.asList(REMOVE_NETWORK, ADD_NETWORK, ENABLE_NETWORK),
+                ConnectPlanner.plan("switch_1", "other", 3, added, null));
+        assertEquals(Arrays.asList(REMOVE_NETWORK, ADD_NETWORK, ENABLE_NETWORK),
+                ConnectPlanner.plan("switch_1", "pass", 4, added, null));
+        // Another console.
+        assertEquals(Arrays.asList(REMOVE_NETWORK, ADD_NETWORK, DISCONNECT, ENABLE_NETWORK),
+                ConnectPlanner.plan("switch_2", "pass", 5, added, "switch_1"));
+    }
+
+    @Test
+    public void associated() {
+        assertTrue(ConnectPlanner.plan("switch_1", "pass", 3, null, "switch_1").isEmpty());
+        // Associated without a configuration, e.g. it was just removed.
+        assertEquals(Arrays.asList(ADD_NETWORK, ENABLE_NETWORK),
+                ConnectPlanner.plan("switch_1", "pass", -1, null, "switch_1"));
+    }
+
+    @Test
+    public void reuseRequest() {
+        final ConnectPlanner.Credentials requested = new ConnectPlanner.Credentials("switch_1", "pass", -1);
+        assertTrue(ConnectPlanner.canReuseRequest(requested, "switch_1", "pass"));
+        assertFalse(ConnectPlanner.canReuseRequest(requested, "switch_1", "other"));
+        assertFalse(ConnectPlanner.canReuseRequest(requested, "switch_2", "pass"));
+        assertFalse(ConnectPlanner.canReuseRequest(null, "switch_1", "pass"));
+    }
+
+    @Test
+    public void timings() {
+        final long[] now = {1000};
+        final ConnectPlanner.Timings timings = new ConnectPlanner.Timings(() -> now[0]);
+        now[0] += 5;
+        timings.mark("plan");
+        now[0] += 120;
+        timings.mark("enable");
+        now[0] += 800;
+        timings.mark("available");
+
+        assertEquals(3, timings.getStepCount());
+        assertEquals("enable", timings.getStep(1));
+        assertEquals(120, timings.getDurationMs(1));
+        assertEquals(925, timings.getTotalMs());
+        assertEquals("plan 5ms, enable 120ms, available 800ms, total 925ms", timings.toString());
+    }
+}
@@ -0,0 +1,272 @@
+package com.farproc.switchfiletransfer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.net.SocketFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The download path against {@link ConsoleEmulator}: manifest, items, resume and segments.
+ */
+public class TestConsoleEmulator {
+    private final TransferEngine engine = new TransferEngine(new TransferEngine.HeapStrategy(), new BufferPool(1024 * 1024));
+    private ConsoleEmulator emulator;
+    private ConsoleHttpClient client;
+
+    private void start(final ConsoleEmulator.Config config) throws IOException {
+        emulator = new ConsoleEmulator(config);
+        client = new ConsoleHttpClient(emulator.getHost(), emulator.getPort(), SocketFactory.getDefault(), 4);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (client != null) {
+            client.close();
+        }
+        if (emulator != null) {
+            emulator.close();
+        }
+    }
+
+    private List<String> readManifest() throws IOException {
+        final List<String> fileNames = new ArrayList<>();
+        try (ConsoleHttpClient.Response response = client.execute(ConsoleHttpClient.Request.get("/data.json"))) {
+            assertEquals(200, response.code);
+            DataJsonParser.parse(response.body(), new DataJsonParser.Handler() {
+                @Override
+                public void onConsoleName(String consoleName) {
+                    assertEquals("Switch", consoleName);
+                }
+
+                @Override
+                public void onFileName(String fileName) {
+                    fileNames.add(fileName);
+                }
+            });
+        }
+        return fileNames;
+    }
+
+    // Download path to out, which already has the bytes saved before. Returns the hash.
+    private byte[] download(final String path, final ByteArrayOutputStream out) throws IOException {
+        return ItemDownloader.download(client, path, out.size(), offset -> {
+            if (offset == 0) {
+                out.reset();
+            }
+            return out;
+        }, engine, new ItemDownloader.Listener() {
+            @Override
+            public void onStart(long offset, long length) {
+            }
+
+            @Override
+            public void onBytesWritten(int n) {
+            }
+        });
+    }
+
+    @Test
+    public void album() throws IOException {
+        final ConsoleEmulator.Config config = new ConsoleEmulator.Config();
+        config.videoSize = 1024 * 1024;
+        start(config);
+        final List<String> fileNames = readManifest();
+        assertEquals(22, fileNames.size());
+        int videos = 0;
+        for (final String fileName : fileNames) {
+            final ConsoleEmulator.AlbumFile file = emulator.getFile(fileName);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] hash = download("/img/" + fileName, out);
+            assertArrayEquals(file.content(), out.toByteArray());
+            assertArrayEquals(ItemDownloader.newDigest().digest(file.content()), hash);
+            if (file.isVideo()) {
+                videos++;
+            }
+        }
+        assertEquals(2, videos);
+        // One connection kept alive for all requests.
+        assertEquals(1, emulator.getConnections());
+        assertEquals(23, emulator.getRequests());
+
+        // The same seed gives the same album.
+        final ConsoleEmulator other = new ConsoleEmulator(new ConsoleEmulator.Config());
+        try {
+            final ConsoleEmulator.AlbumFile a = emulator.getFiles().get(0);
+            final ConsoleEmulator.AlbumFile b = other.getFiles().get(0);
+            assertEquals(a.name, b.name);
+            assertArrayEquals(a.content(), b.content());
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void noKeepAlive() throws IOException {
+        final ConsoleEmulator.Config config = new ConsoleEmulator.Config();
+        config.images = 5;
+        config.videos = 0;
+        config.keepAlive = false;
+        start(config);
+        for (final String fileName : readManifest()) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            download("/img/" + fileName, out);
+            assertArrayEquals(emulator.getFile(fileName).content(), out.toByteArray());
+        }
+        assertEquals(6, emulator.getConnections());
+        assertEquals(0, client.getConnectionsReused());
+    }
+
+    @Test
+    public void resumeAfterReset() throws IOException {
+        final ConsoleEmulator.Config config = new ConsoleEmulator.Config();
+        config.images = 1;
+        config.videos = 0;
+        config.resetAfterBytes = 100000;
+        start(config);
+        emulator.setResets(1);
+        final ConsoleEmulator.AlbumFile file = emulator.getFiles().get(0);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            download("/img/" + file.name, out);
+            fail();
+        } catch (IOException e) {
+            // Reset.
+        }
+        assertTrue(out.size() > 0 && out.size() <= 100000);
+        // The rest is downloaded with a Range request, not hashed.
+        assertNull(download("/img/" + file.name, out));
+        assertArrayEquals(file.content(), out.toByteArray());
+        // Only the bytes lost with the reset are sent twice.
+        assertTrue(emulator.getBodyBytes() < file.length + 100000);
+    }
+
+    @Test
+    public void resumeWithoutRange() throws IOException {
+        final ConsoleEmulator.Config config = new ConsoleEmulator.Config();
+        config.images = 1;
+        config.videos = 0;
+        config.resetAfterBytes = 100000;
+        config.rangeSupported = false;
+        start(config);
+        emulator.setResets(1);
+        final ConsoleEmulator.AlbumFile file = emulator.getFiles().get(0);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            download("/img/" + file.name, out);
+            fail();
+        } catch (IOException e) {
+            // Reset.
+        }
+        // Downloaded again from the first byte.
+        assertNotNull(download("/img/" + file.name, out));
+        assertArrayEquals(file.content(), out.toByteArray());
+        assertTrue(emulator.getBodyBytes() > file.length);
+    }
+
+    @Test
+    public void savedMoreThanFile() throws IOException {
+        final ConsoleEmulator.Config config = new ConsoleEmulator.Config();
+        config.images = 1;
+        config.videos = 0;
+        start(config);
+        final ConsoleEmulator.AlbumFile file = emulator.getFiles().get(0);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(file.content());
+        // All saved, nothing to download.
+        assertNull(download("/img/" + file.name, out));
+        assertArrayEquals(file.content(), out.toByteArray());
+        // More bytes saved than the file has, it is downloaded again.
+        out.write(new byte[10]);
+        assertArrayEquals(ItemDownloader.newDigest().digest(file.content()), download("/img/" + file.name, out));
+        assertArrayEquals(file.content(), out.toByteArray());
+    }
+
+    @Test
+    public void segments() throws IOException {
+        final ConsoleEmulator.Config config = new ConsoleEmulator.Config();
+        config.images = 0;
+        config.videos = 1;
+        config.videoSize = 2 * 1024 * 1024;
+        start(config);
+        final ConsoleEmulator.AlbumFile file = emulator.getFiles().get(0);
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final File saved = File.createTempFile("segments", ".mp4");
+        try {
+            final SegmentedDownloader downloader = new SegmentedDownloader(executor, engine, 4, 1024 * 1024);
+            final SegmentedDownloader.Plan plan = downloader.probe(client, "/img/" + file.name);
+            assertNotNull(plan);
+            assertEquals(file.length, plan.length);
+            downloader.download(client, "/img/" + file.name, plan,
+                    () -> FileChannel.open(saved.toPath(), StandardOpenOption.WRITE), TransferEngine.NO_PROGRESS);
+            final byte[] bytes = new byte[(int) file.length];
+            try (RandomAccessFile in = new RandomAccessFile(saved, "r")) {
+                in.readFully(bytes);
+            }
+            assertArrayEquals(file.content(), bytes);
+
+            // Without Range support the file is not split.
+            emulator.config.rangeSupported = false;
+            assertNull(downloader.probe(client, "/img/" + file.name));
+        } finally {
+            executor.shutdown();
+            //noinspection ResultOfMethodCallIgnored
+            saved.delete();
+        }
+    }
+
+    @Test
+    public void bandwidthAndLatency() throws IOException {
+        final ConsoleEmulator.Config config = new ConsoleEmulator.Config();
+        config.images = 1;
+        config.videos = 0;
+        config.imageSize = 200 * 1024;
+        config.bytesPerSecond = 1024 * 1024;
+        config.latencyMs = 100;
+        start(config);
+        final ConsoleEmulator.AlbumFile file = emulator.getFiles().get(0);
+        final long start = System.nanoTime();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        download("/img/" + file.name, out);
+        final long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertEquals(file.length, out.size());
+        // At least the latency plus the time to send the file at the rate.
+        assertTrue(elapsedMs >= 100 + file.length * 1000 / config.bytesPerSecond - 20);
+    }
+
+    @Test
+    public void header() throws IOException {
+        start(new ConsoleEmulator.Config());
+        for (final ConsoleEmulator.AlbumFile file : emulator.getFiles()) {
+            final byte[] content = file.content();
+            if (file.isVideo()) {
+                assertEquals('f', content[4]);
+                assertEquals('p', content[7]);
+            } else {
+                assertEquals((byte) 0xff, content[0]);
+                assertEquals((byte) 0xd8, content[1]);
+                assertEquals((byte) 0xd9, content[content.length - 1]);
+            }
+        }
+        try (ConsoleHttpClient.Response response = client.execute(ConsoleHttpClient.Request.get("/img/missing.jpg"))) {
+            assertEquals(404, response.code);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.farproc.switchfiletransfer;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.net.SocketFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestConsoleHttpClient {
+    private HttpServer server;
+    private ConsoleHttpClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/img/", exchange -> {
+            final byte[] body = exchange.getRequestURI().getPath().getBytes(StandardCharsets.UTF_8);
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().add("Content-Length", String.valueOf(body.length));
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.createContext("/chunked", exchange -> {
+            exchange.sendResponseHeaders(200, 0); // 0 means chunked.
+            try (OutputStream out = exchange.getResponseBody()) {
+                for (int i = 0; i < 100; i++) {
+                    out.write(("chunk" + i).getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            }
+        });
+        server.start();
+        client = new ConsoleHttpClient("127.0.0.1", server.getAddress().getPort(), SocketFactory.getDefault(), 2);
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        server.stop(0);
+    }
+
+    private static String read(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[7];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void keepAlive() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            try (ConsoleHttpClient.Response response = client.execute(ConsoleHttpClient.Request.get("/img/" + i + ".jpg"))) {
+                assertEquals(200, response.code);
+                assertEquals("/img/" + i + ".jpg", read(response.body()));
+            }
+        }
+        assertEquals(1, client.getConnectionsOpened());
+        assertEquals(9, client.getConnectionsReused());
+    }
+
+    @Test
+    public void chunked() throws IOException {
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            expected.append("chunk").append(i);
+        }
+        for (int i = 0; i < 2; i++) {
+            try (ConsoleHttpClient.Response response = client.execute(ConsoleHttpClient.Request.get("/chunked"))) {
+                assertEquals(expected.toString(), read(response.body()));
+            }
+        }
+        assertEquals(1, client.getConnectionsOpened());
+    }
+
+    @Test
+    public void pipeline() throws IOException {
+        final List<ConsoleHttpClient.Request> requests = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            requests.add(ConsoleHttpClient.Request.head("/img/" + i + ".jpg"));
+        }
+        // The first request is sent alone, then the rest are pipelined.
+        // The JDK server closes the connection on pipelined requests, the client must go on one by one.
+        final List<ConsoleHttpClient.Response> responses = client.pipeline(requests);
+        assertEquals(requests.size(), responses.size());
+        for (int i = 0; i < requests.size(); i++) {
+            assertEquals(200, responses.get(i).code);
+            assertEquals(("/img/" + i + ".jpg").length(), responses.get(i).getContentLength());
+        }
+    }
+
+    @Test
+    public void socketFactory() throws IOException {
+        final List<Socket> sockets = new ArrayList<>();
+        final SocketFactory factory = new SocketFactory() {
+            @Override
+            public Socket createSocket() {
+                final Socket socket = new Socket();
+                sockets.add(socket);
+                return socket;
+            }
+
+            @Override
+            public Socket createSocket(String host, int port) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Socket createSocket(String host, int port, InetAddress localHost, int localPort) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Socket createSocket(InetAddress host, int port) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        try (ConsoleHttpClient tuned = new ConsoleHttpClient("127.0.0.1", server.getAddress().getPort(), factory, 256 * 1024, 2);
+             ConsoleHttpClient.Response response = tuned.execute(ConsoleHttpClient.Request.get("/img/a.jpg"))) {
+            assertEquals("/img/a.jpg", read(response.body()));
+            assertEquals(1, sockets.size());
+            // The kernel may round or cap it.
+            assertTrue(sockets.get(0).getReceiveBufferSize() > 0);
+        }
+    }
+
+    @Test
+    public void sizeProbe() {
+        final long[] sizes = SizeProbe.probe(client, new String[]{"/img/a.jpg", "/img/ab.jpg", "/missing"}, 5000);
+        assertEquals(10, sizes[0]);
+        assertEquals(11, sizes[1]);
+        assertEquals(-1, sizes[2]);
+    }
+}
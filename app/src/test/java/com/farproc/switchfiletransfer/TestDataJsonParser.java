@@ -0,0 +1,73 @@
+package com.farproc.switchfiletransfer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TestDataJsonParser {
+    private String consoleName;
+    private final List<String> fileNames = new ArrayList<>();
+
+    private void parse(final String json) throws IOException {
+        DataJsonParser.parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), new DataJsonParser.Handler() {
+            @Override
+            public void onConsoleName(String name) {
+                consoleName = name;
+            }
+
+            @Override
+            public void onFileName(String fileName) {
+                fileNames.add(fileName);
+            }
+        });
+    }
+
+    @Test
+    public void parse() throws IOException {
+        parse("{\"FileType\":\"photo\",\"DownloadMes\":\"false\",\"FileNames\":[\"2021010112000000-0.jpg\",\"2021010112000100-0.mp4\"],\"ConsoleName\":\"Switch\"}");
+        assertEquals("Switch", consoleName);
+        assertEquals("[2021010112000000-0.jpg, 2021010112000100-0.mp4]", fileNames.toString());
+    }
+
+    @Test
+    public void escapes() throws IOException {
+        parse(" {\n \"ConsoleName\" : \"a\\\"b\\\\c\\/\\u00e9\\u4e2d\", \"FileNames\" : [ ] , \"x\": {\"y\": [1, \"]}\", true, null]} } ");
+        assertEquals("a\"b\\c/\u00e9\u4e2d", consoleName);
+        assertEquals(0, fileNames.size());
+    }
+
+    @Test
+    public void many() throws IOException {
+        final StringBuilder sb = new StringBuilder("{\"FileNames\":[");
+        for (int i = 0; i < 5000; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append(i).append(".jpg\"");
+        }
+        sb.append("],\"ConsoleName\":\"Switch\"}");
+        parse(sb.toString());
+        assertEquals(5000, fileNames.size());
+        assertEquals("4999.jpg", fileNames.get(4999));
+        assertEquals("Switch", consoleName);
+    }
+
+    @Test
+    public void syntaxError() throws IOException {
+        for (final String json : new String[]{"", "[]", "{\"FileNames\":[\"a.jpg\"", "{\"FileNames\":[1]}", "{\"ConsoleName\":\"a\" \"b\"}", "{\"ConsoleName\":\"\\x\"}"}) {
+            try {
+                parse(json);
+                fail(json);
+            } catch (DataJsonParser.SyntaxException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.farproc.switchfiletransfer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestDedupIndex {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("dedup", "");
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    private static DedupIndex.Entry entry(final String fileName, final long size) {
+        return new DedupIndex.Entry("Switch", fileName, size, new byte[]{1, 2, 3}, "content://media/" + fileName);
+    }
+
+    @Test
+    public void find() throws IOException {
+        final DedupIndex index = new DedupIndex(file);
+        assertNull(index.find("Switch", "a.jpg", 100));
+        index.put(entry("a.jpg", 100));
+        index.put(entry("b.jpg", 200));
+        assertNotNull(index.find("Switch", "a.jpg", 100));
+        // Same name but a different size or console is another file.
+        assertNull(index.find("Switch", "a.jpg", 101));
+        assertNull(index.find("Other", "a.jpg", 100));
+
+        final DedupIndex reloaded = new DedupIndex(file);
+        final DedupIndex.Entry entry = reloaded.find("Switch", "b.jpg", 200);
+        assertNotNull(entry);
+        assertEquals("content://media/b.jpg", entry.fileUri);
+        assertArrayEquals(new byte[]{1, 2, 3}, entry.hash);
+
+        reloaded.remove(entry);
+        assertNull(new DedupIndex(file).find("Switch", "b.jpg", 200));
+        assertEquals(1, new DedupIndex(file).size());
+    }
+
+    @Test
+    public void diff() throws IOException {
+        final DedupIndex index = new DedupIndex(file);
+        index.put(entry("a.jpg", 100));
+        index.put(entry("c.mp4", 300));
+        final String[] uris = new String[4];
+        final long[] sizes = new long[4];
+        assertEquals(2, index.diff("Switch", Arrays.asList("a.jpg", "b.jpg", "c.mp4", "d.jpg"), uris, sizes));
+        assertArrayEquals(new String[]{"content://media/a.jpg", null, "content://media/c.mp4", null}, uris);
+        assertArrayEquals(new long[]{100, -1, 300, -1}, sizes);
+        assertEquals(4, index.diff("Other", Arrays.asList("a.jpg", "b.jpg", "c.mp4", "d.jpg"), uris, sizes));
+    }
+
+    @Test
+    public void many() throws IOException {
+        final DedupIndex index = new DedupIndex(file);
+        for (int i = 0; i < 20000; i++) {
+            index.put(entry(i + ".jpg", i));
+        }
+        final DedupIndex reloaded = new DedupIndex(file);
+        assertEquals(20000, reloaded.size());
+        for (int i = 0; i < 20000; i += 997) {
+            assertNotNull(reloaded.find("Switch", i + ".jpg", i));
+        }
+    }
+
+    @Test
+    public void compact() throws IOException {
+        final DedupIndex index = new DedupIndex(file);
+        for (int i = 0; i < 1000; i++) {
+            index.put(entry("a.jpg", i));
+        }
+        final long length = file.length();
+        // Stale records are dropped when the file is opened for appending again.
+        final DedupIndex reloaded = new DedupIndex(file);
+        reloaded.put(entry("b.jpg", 1));
+        assertEquals(2, reloaded.size());
+        assertTrue(file.length() < length / 10);
+        assertNotNull(new DedupIndex(file).find("Switch", "a.jpg", 999));
+    }
+
+    @Test
+    public void tornRecord() throws IOException {
+        final DedupIndex index = new DedupIndex(file);
+        index.put(entry("a.jpg", 1));
+        index.put(entry("b.jpg", 2));
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.setLength(f.length() - 3);
+        }
+        final DedupIndex reloaded = new DedupIndex(file);
+        assertEquals(1, reloaded.size());
+        reloaded.put(entry("c.jpg", 3));
+        final DedupIndex again = new DedupIndex(file);
+        assertEquals(2, again.size());
+        assertNotNull(again.find("Switch", "c.jpg", 3));
+    }
+}
@@ -0,0 +1,91 @@
+package com.farproc.switchfiletransfer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestDiskCache {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("cache").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    private static void put(final DiskCache cache, final String key, final int length) throws IOException {
+        cache.put(key, out -> out.write(new byte[length]));
+    }
+
+    @Test
+    public void getAndPut() throws IOException {
+        final DiskCache cache = new DiskCache(dir, 1000);
+        assertNull(cache.get("a"));
+        cache.put("a", out -> out.write(new byte[]{1, 2, 3}));
+        final File file = cache.get("a");
+        assertNotNull(file);
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(file.toPath()));
+
+        // Replaced.
+        put(cache, "a", 10);
+        assertEquals(10, cache.size());
+        assertEquals(1, dir.listFiles().length);
+    }
+
+    @Test
+    public void evict() throws IOException {
+        final DiskCache cache = new DiskCache(dir, 300);
+        put(cache, "a", 100);
+        put(cache, "b", 100);
+        put(cache, "c", 100);
+        // "a" becomes the most recently used, so "b" goes first.
+        assertNotNull(cache.get("a"));
+        put(cache, "d", 100);
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertNotNull(cache.get("d"));
+        assertEquals(300, cache.size());
+    }
+
+    @Test
+    public void reload() throws IOException {
+        final DiskCache cache = new DiskCache(dir, 1000);
+        put(cache, "a", 100);
+        put(cache, "b", 200);
+        // A file left by a crash while writing.
+        assertTrue(new File(dir, "x.tmp").createNewFile());
+
+        final DiskCache reloaded = new DiskCache(dir, 1000);
+        assertEquals(300, reloaded.size());
+        assertNotNull(reloaded.get("a"));
+        assertNotNull(reloaded.get("b"));
+        assertEquals(2, dir.listFiles().length);
+
+        // A smaller limit is applied on loading.
+        assertTrue(new DiskCache(dir, 250).size() <= 250);
+        assertEquals(1, dir.listFiles().length);
+    }
+}
@@ -0,0 +1,95 @@
+package com.farproc.switchfiletransfer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestDownloadScheduler {
+    @Test
+    public void aimd() {
+        final DownloadScheduler scheduler = new DownloadScheduler(1, 4, 2);
+        try {
+            scheduler.adjust(100, true);
+            assertEquals(3, scheduler.getLimit()); // More throughput, one more job.
+            scheduler.adjust(150, true);
+            assertEquals(4, scheduler.getLimit());
+            scheduler.adjust(200, true);
+            assertEquals(4, scheduler.getLimit()); // Max.
+            scheduler.adjust(100, true);
+            assertEquals(2, scheduler.getLimit()); // Dropped, halved.
+            scheduler.adjust(1000, false);
+            assertEquals(2, scheduler.getLimit()); // Not saturated, no change.
+            for (int i = 0; i < DownloadScheduler.PROBE_SAMPLES; i++) {
+                scheduler.adjust(1000, true);
+            }
+            assertEquals(3, scheduler.getLimit()); // Probed after stable samples.
+            scheduler.onTransferError();
+            assertEquals(1, scheduler.getLimit());
+            scheduler.onTransferError();
+            assertEquals(1, scheduler.getLimit()); // Min.
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void limit() throws InterruptedException {
+        final DownloadScheduler scheduler = new DownloadScheduler(1, 4, 2);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(20);
+        try {
+            for (int i = 0; i < 20; i++) {
+                scheduler.execute(() -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                });
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertTrue(maxRunning.get() <= 4);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void async() {
+        final DownloadScheduler scheduler = new DownloadScheduler(1, 4, 2);
+        final List<Runnable> started = new ArrayList<>();
+        try {
+            for (int i = 0; i < 3; i++) {
+                scheduler.executeAsync(started::add);
+            }
+            // Running until finished, though start returned.
+            assertEquals(2, started.size());
+            assertEquals(2, scheduler.getRunning());
+            started.get(0).run();
+            assertEquals(3, started.size());
+            assertEquals(2, scheduler.getRunning());
+            started.get(1).run();
+            started.get(2).run();
+            assertEquals(0, scheduler.getRunning());
+
+            // Jobs finished in start.
+            for (int i = 0; i < 10000; i++) {
+                scheduler.executeAsync(Runnable::run);
+            }
+            assertEquals(0, scheduler.getRunning());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.farproc.switchfiletransfer;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.net.SocketFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class TestItemDownloader {
+    private final byte[] data = new byte[100 * 1024];
+    private HttpServer server;
+    private boolean rangeSupported;
+    // Number of bytes of data not sent at the end.
+    private int truncated;
+
+    @Before
+    public void startServer() throws IOException {
+        new Random(1).nextBytes(data);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/img/a.jpg", exchange -> {
+            final String range = exchange.getRequestHeaders().getFirst("Range");
+            int start = 0;
+            if (rangeSupported && range != null) {
+                start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+                exchange.getResponseHeaders().add("Content-Range",
+                        String.format("bytes %d-%d/%d", start, data.length - 1, data.length));
+                exchange.sendResponseHeaders(206, data.length - start);
+            } else {
+                exchange.sendResponseHeaders(200, data.length);
+            }
+            final OutputStream out = exchange.getResponseBody();
+            out.write(data, start, data.length - start - truncated);
+            out.flush();
+            if (truncated > 0) {
+                // The server closes the connection when the handler throws, after the short body.
+                throw new IOException("truncated");
+            }
+            out.close();
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private byte[] download(final int saved) throws IOException {
+        return download(saved, 0);
+    }
+
+    // Download to a target which already has the first `saved` bytes of data, and `extra` bytes after them
+    // which were written but not counted.
+    private byte[] download(final int saved, final int extra) throws IOException {
+        // The hash is known only if the whole file is downloaded.
+        final byte[] expectedHash = saved == 0 || !rangeSupported ? ItemDownloader.newDigest().digest(data) : null;
+        final ByteArrayOutputStream file = new ByteArrayOutputStream();
+        file.write(data, 0, saved);
+        file.write(new byte[extra]);
+        final long[] committed = new long[1];
+        final byte[] hash;
+        try (ConsoleHttpClient client = new ConsoleHttpClient("127.0.0.1", server.getAddress().getPort(),
+                SocketFactory.getDefault(), 1)) {
+            hash = ItemDownloader.download(client, "/img/a.jpg", saved,
+                    offset -> {
+                        // Truncated to offset.
+                        final byte[] kept = Arrays.copyOf(file.toByteArray(), (int) offset);
+                        file.reset();
+                        file.write(kept);
+                        return file;
+                    },
+                    new TransferEngine(new TransferEngine.HeapStrategy(), new BufferPool(0)),
+                    new ItemDownloader.Listener() {
+                        @Override
+                        public void onStart(long offset, long length) {
+                            assertEquals(data.length, length);
+                            committed[0] = offset;
+                        }
+
+                        @Override
+                        public void onBytesWritten(int n) {
+                            committed[0] += n;
+                        }
+                    });
+        }
+        assertEquals(data.length, committed[0]);
+        assertArrayEquals(expectedHash, hash);
+        return file.toByteArray();
+    }
+
+    @Test
+    public void resume() throws IOException {
+        rangeSupported = true;
+        assertArrayEquals(data, download(0));
+        assertArrayEquals(data, download(12345));
+    }
+
+    @Test
+    public void resumeLongerFile() throws IOException {
+        rangeSupported = true;
+        assertArrayEquals(data, download(12345, 1000));
+    }
+
+    @Test
+    public void rangeIgnored() throws IOException {
+        rangeSupported = false;
+        assertArrayEquals(data, download(12345));
+    }
+
+    @Test
+    public void truncated() {
+        truncated = 10;
+        try {
+            download(0);
+            fail();
+        } catch (IOException e) {
+            // The connection is closed early, not timed out.
+            assertFalse(e.toString(), e instanceof SocketTimeoutException);
+        }
+    }
+
+    @Test
+    public void contentRange() {
+        assertEquals("[10, 99, 100]", Arrays.toString(ItemDownloader.parseContentRange("bytes 10-99/100")));
+        assertEquals("[10, 99, -1]", Arrays.toString(ItemDownloader.parseContentRange("bytes 10-99/*")));
+        assertNull(ItemDownloader.parseContentRange("bytes */100"));
+        assertNull(ItemDownloader.parseContentRange(null));
+        assertEquals(100, ItemDownloader.parseUnsatisfiedRange("bytes */100"));
+        assertEquals(-1, ItemDownloader.parseUnsatisfiedRange("bytes 10-99/100"));
+        assertEquals(-1, ItemDownloader.parseUnsatisfiedRange(null));
+    }
+}
@@ -0,0 +1,26 @@
+package com.farproc.switchfiletransfer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestJobOrdering {
+    private static final long[] SIZES = {1, 1, 1, 1, 1, 1, 6};
+
+    @Test
+    public void policies() {
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4, 5, 6}, JobOrdering.FIFO.order(SIZES));
+        assertArrayEquals(new int[]{6, 0, 1, 2, 3, 4, 5}, JobOrdering.LONGEST_FIRST.order(SIZES));
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4, 5, 6}, JobOrdering.SMALLEST_FIRST.order(new long[]{1, 2, 3, 4, 5, 6, 7}));
+    }
+
+    @Test
+    public void makespan() {
+        // The large job queued last runs alone at the end.
+        assertEquals(9, JobOrdering.makespan(SIZES, JobOrdering.FIFO.order(SIZES), 2));
+        // The large job runs while the other worker does all small ones.
+        assertEquals(6, JobOrdering.makespan(SIZES, JobOrdering.LONGEST_FIRST.order(SIZES), 2));
+        assertEquals(12, JobOrdering.makespan(SIZES, JobOrdering.LONGEST_FIRST.order(SIZES), 1));
+    }
+}
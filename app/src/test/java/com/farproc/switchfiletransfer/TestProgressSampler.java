@@ -0,0 +1,88 @@
+package com.farproc.switchfiletransfer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestProgressSampler {
+    private final List<Runnable> posted = new ArrayList<>();
+    private final List<String> samples = new ArrayList<>();
+    private long sampledBytes;
+
+    private final ProgressSampler sampler = new ProgressSampler((r, delayMs) -> {
+        synchronized (posted) {
+            posted.add(r);
+        }
+    }, 100, (positions, count, bytes, elapsedMs) -> {
+        final int[] sorted = Arrays.copyOf(positions, count);
+        Arrays.sort(sorted);
+        samples.add(Arrays.toString(sorted));
+        sampledBytes += bytes;
+    });
+
+    private void runPosted() {
+        final List<Runnable> runnables;
+        synchronized (posted) {
+            runnables = new ArrayList<>(posted);
+            posted.clear();
+        }
+        for (final Runnable r : runnables) {
+            r.run();
+        }
+    }
+
+    @Test
+    public void coalesce() throws InterruptedException {
+        final AtomicLong[] counters = new AtomicLong[8];
+        final Thread[] workers = new Thread[counters.length];
+        for (int i = 0; i < counters.length; i++) {
+            final AtomicLong counter = new AtomicLong();
+            counters[i] = counter;
+            sampler.onStart(i, counter);
+            workers[i] = new Thread(() -> {
+                for (int j = 0; j < 10000; j++) {
+                    counter.addAndGet(10);
+                    sampler.onProgress();
+                }
+            });
+            workers[i].start();
+        }
+        for (final Thread worker : workers) {
+            worker.join();
+        }
+        // 80000 chunks, one post.
+        assertEquals(1, posted.size());
+        runPosted();
+        assertEquals("[[0, 1, 2, 3, 4, 5, 6, 7]]", samples.toString());
+        assertEquals(800000, sampledBytes);
+
+        // Only changed counters are reported.
+        counters[3].addAndGet(5);
+        sampler.onProgress();
+        runPosted();
+        assertEquals("[[0, 1, 2, 3, 4, 5, 6, 7], [3]]", samples.toString());
+        assertEquals(800005, sampledBytes);
+    }
+
+    @Test
+    public void finish() {
+        final AtomicLong counter = new AtomicLong();
+        sampler.onStart(0, counter);
+        counter.addAndGet(100);
+        sampler.onFinish(0);
+        runPosted();
+        // The last change of a finished download is still reported.
+        assertEquals("[[0]]", samples.toString());
+        counter.addAndGet(100);
+        sampler.onProgress();
+        runPosted();
+        assertEquals(1, samples.size());
+        assertTrue(posted.isEmpty());
+    }
+}
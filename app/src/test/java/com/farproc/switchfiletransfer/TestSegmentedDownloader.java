@@ -0,0 +1,148 @@
+package com.farproc.switchfiletransfer;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.SocketFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestSegmentedDownloader {
+    private final byte[] data = new byte[1000 * 1000 + 3];
+    private HttpServer server;
+    private ExecutorService executor;
+    private File file;
+    private final AtomicInteger heads = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(1).nextBytes(data);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/img/a.mp4", exchange -> {
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                heads.incrementAndGet();
+                exchange.getResponseHeaders().add("Content-Length", String.valueOf(data.length));
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                return;
+            }
+            final String range = exchange.getRequestHeaders().getFirst("Range");
+            final String[] bounds = range.substring("bytes=".length()).split("-");
+            final int start = Integer.parseInt(bounds[0]);
+            final int end = Integer.parseInt(bounds[1]);
+            exchange.getResponseHeaders().add("Content-Range", String.format("bytes %d-%d/%d", start, end, data.length));
+            exchange.sendResponseHeaders(206, end - start + 1);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(data, start, end - start + 1);
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        executor = Executors.newCachedThreadPool();
+        file = File.createTempFile("segment", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        executor.shutdown();
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    private ConsoleHttpClient client() {
+        return new ConsoleHttpClient("127.0.0.1", server.getAddress().getPort(), SocketFactory.getDefault(), 4);
+    }
+
+    private SegmentedDownloader downloader(final int segmentCount, final long minLength) {
+        return new SegmentedDownloader(executor,
+                new TransferEngine(new TransferEngine.HeapStrategy(), new BufferPool(1024 * 1024)),
+                segmentCount, minLength);
+    }
+
+    @Test
+    public void download() throws IOException {
+        final SegmentedDownloader downloader = downloader(4, 1000);
+        final ConsoleHttpClient client = client();
+        final SegmentedDownloader.Plan plan = downloader.probe(client, "/img/a.mp4");
+        assertNotNull(plan);
+        assertEquals(4, plan.getSegmentCount());
+        final AtomicLong progress = new AtomicLong();
+        downloader.download(client, "/img/a.mp4", plan, () -> new RandomAccessFile(file, "rw").getChannel(), progress::addAndGet);
+        assertEquals(data.length, progress.get());
+        assertEquals(data.length, plan.getBytesSaved());
+        assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void resume() throws IOException {
+        final SegmentedDownloader.Plan plan = new SegmentedDownloader.Plan(data.length, 3);
+        // The first segment and half of the last are saved.
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.write(data, 0, (int) plan.ends[0] + 1);
+            plan.positions.set(0, plan.ends[0] + 1);
+            final int half = (int) (plan.starts[2] + plan.ends[2]) / 2;
+            f.seek(plan.starts[2]);
+            f.write(data, (int) plan.starts[2], half - (int) plan.starts[2]);
+            plan.positions.set(2, half);
+        }
+        downloader(3, 0).download(client(), "/img/a.mp4", plan, () -> new RandomAccessFile(file, "rw").getChannel(), n -> {
+        });
+        for (int i = 0; i < plan.getSegmentCount(); i++) {
+            assertTrue(plan.isSegmentCompleted(i));
+        }
+        assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void small() throws IOException {
+        assertNull(downloader(4, data.length + 1).probe(client(), "/img/a.mp4"));
+        assertNull(downloader(1, 0).probe(client(), "/img/a.mp4"));
+    }
+
+    @Test
+    public void knownLength() throws IOException {
+        final SegmentedDownloader downloader = downloader(4, 1000);
+        final ConsoleHttpClient client = client();
+        // Too short, no request.
+        assertNull(downloader.plan(client, "/img/a.mp4", 999));
+        assertEquals(0, heads.get());
+        // Ranges unknown until the first probe.
+        assertNotNull(downloader.plan(client, "/img/a.mp4", data.length));
+        assertEquals(1, heads.get());
+        final SegmentedDownloader.Plan plan = downloader.plan(client, "/img/a.mp4", data.length);
+        assertEquals(data.length, plan.length);
+        assertEquals(1, heads.get());
+        // Unknown length.
+        assertNotNull(downloader.plan(client, "/img/a.mp4", -1));
+        assertEquals(2, heads.get());
+    }
+
+    @Test
+    public void plan() {
+        final SegmentedDownloader.Plan plan = new SegmentedDownloader.Plan(10, 3);
+        assertArrayEquals(new long[]{0, 4, 8}, plan.starts);
+        assertArrayEquals(new long[]{3, 7, 9}, plan.ends);
+        assertEquals(0, plan.getBytesSaved());
+    }
+}
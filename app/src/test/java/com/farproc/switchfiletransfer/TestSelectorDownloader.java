@@ -0,0 +1,249 @@
+package com.farproc.switchfiletransfer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link SelectorDownloader} against {@link ConsoleEmulator}.
+ */
+public class TestSelectorDownloader {
+    private ConsoleEmulator emulator;
+    private SelectorDownloader downloader;
+
+    private void start(final ConsoleEmulator.Config config) throws IOException {
+        emulator = new ConsoleEmulator(config);
+        downloader = new SelectorDownloader(emulator.getHost(), emulator.getPort(), SelectorDownloader.DEFAULT_BINDER,
+                0, 4, 2, new BufferPool(1024 * 1024));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (downloader != null) {
+            downloader.close();
+        }
+        if (emulator != null) {
+            emulator.close();
+        }
+    }
+
+    // Start downloading path to out, which already has the bytes saved before. Completes with the hash.
+    private CompletableFuture<byte[]> download(final String path, final ByteArrayOutputStream out) {
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        downloader.download(path, out.size(), offset -> {
+            if (offset == 0) {
+                out.reset();
+            }
+            return out;
+        }, new ItemDownloader.Listener() {
+            @Override
+            public void onStart(long offset, long length) {
+            }
+
+            @Override
+            public void onBytesWritten(int n) {
+            }
+        }, new SelectorDownloader.Callback() {
+            @Override
+            public void onCompleted(byte[] hash) {
+                future.complete(hash);
+            }
+
+            @Override
+            public void onFailed(IOException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    private static byte[] await(final CompletableFuture<byte[]> future) throws IOException {
+        try {
+            return future.get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            throw (IOException) e.getCause();
+        } catch (InterruptedException | TimeoutException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void album() throws IOException {
+        final ConsoleEmulator.Config config = new ConsoleEmulator.Config();
+        config.videoSize = 1024 * 1024;
+        start(config);
+        final List<ConsoleEmulator.AlbumFile> files = emulator.getFiles();
+        final List<ByteArrayOutputStream> outs = new ArrayList<>();
+        final List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+        // All at the same time on the I/O thread.
+        for (final ConsoleEmulator.AlbumFile file : files) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            outs.add(out);
+            futures.add(download("/img/" + file.name, out));
+        }
+        for (int i = 0; i < files.size(); i++) {
+            final byte[] content = files.get(i).content();
+            assertArrayEquals(ItemDownloader.newDigest().digest(content), await(futures.get(i)));
+            assertArrayEquals(content, outs.get(i).toByteArray());
+        }
+        assertEquals(files.size(), downloader.getConnectionsOpened());
+
+        // The idle connections are reused.
+        final ConsoleEmulator.AlbumFile file = files.get(0);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        await(download("/img/" + file.name, out));
+        assertArrayEquals(file.content(), out.toByteArray());
+        assertEquals(1, downloader.getConnectionsReused());
+    }
+
+    @Test
+    public void resumeAfterReset() throws IOException {
+        final ConsoleEmulator.Config config = new ConsoleEmulator.Config();
+        config.images = 1;
+        config.videos = 0;
+        config.resetAfterBytes = 100000;
+        start(config);
+        emulator.setResets(1);
+        final ConsoleEmulator.AlbumFile file = emulator.getFiles().get(0);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            await(download("/img/" + file.name, out));
+            fail();
+        } catch (IOException e) {
+            // Reset.
+        }
+        assertTrue(out.size() > 0 && out.size() <= 100000);
+        // The rest is downloaded with a Range request, not hashed.
+        assertNull(await(download("/img/" + file.name, out)));
+        assertArrayEquals(file.content(), out.toByteArray());
+
+        // Nothing left.
+        assertNull(await(download("/img/" + file.name, out)));
+        assertArrayEquals(file.content(), out.toByteArray());
+    }
+
+    @Test
+    public void resumeWithoutRange() throws IOException {
+        final ConsoleEmulator.Config config = new ConsoleEmulator.Config();
+        config.images = 1;
+        config.videos = 0;
+        config.rangeSupported = false;
+        config.keepAlive = false;
+        start(config);
+        final ConsoleEmulator.AlbumFile file = emulator.getFiles().get(0);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(file.content(), 0, 1000);
+        // Downloaded again from the first byte.
+        assertArrayEquals(ItemDownloader.newDigest().digest(file.content()), await(download("/img/" + file.name, out)));
+        assertArrayEquals(file.content(), out.toByteArray());
+        assertEquals(0, downloader.getConnectionsReused());
+    }
+
+    @Test
+    public void savedMoreThanFile() throws IOException {
+        final ConsoleEmulator.Config config = new ConsoleEmulator.Config();
+        config.images = 1;
+        config.videos = 0;
+        start(config);
+        final ConsoleEmulator.AlbumFile file = emulator.getFiles().get(0);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(file.content());
+        out.write(new byte[10]);
+        // Downloaded again from the first byte.
+        assertArrayEquals(ItemDownloader.newDigest().digest(file.content()), await(download("/img/" + file.name, out)));
+        assertArrayEquals(file.content(), out.toByteArray());
+    }
+
+    @Test
+    public void notFound() throws IOException {
+        start(new ConsoleEmulator.Config());
+        try {
+            await(download("/img/missing.jpg", new ByteArrayOutputStream()));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("HTTP 404"));
+        }
+    }
+
+    @Test
+    public void close() throws IOException {
+        final ConsoleEmulator.Config config = new ConsoleEmulator.Config();
+        config.images = 1;
+        config.videos = 0;
+        config.imageSize = 1024 * 1024;
+        config.bytesPerSecond = 256 * 1024;
+        start(config);
+        final ConsoleEmulator.AlbumFile file = emulator.getFiles().get(0);
+        final CompletableFuture<byte[]> future = download("/img/" + file.name, new ByteArrayOutputStream());
+        downloader.close();
+        try {
+            await(future);
+            fail();
+        } catch (IOException e) {
+            assertEquals("closed", e.getMessage());
+        }
+        // Downloads after close fail at once.
+        try {
+            await(download("/img/" + file.name, new ByteArrayOutputStream()));
+            fail();
+        } catch (IOException e) {
+            assertEquals("closed", e.getMessage());
+        }
+    }
+
+    // As TransferService queues items on the selector engine: scheduler jobs which finish in the callbacks.
+    @Test
+    public void scheduled() throws IOException, InterruptedException {
+        final ConsoleEmulator.Config config = new ConsoleEmulator.Config();
+        config.videoSize = 1024 * 1024;
+        start(config);
+        final DownloadScheduler scheduler = new DownloadScheduler(1, 4, 2);
+        final List<ConsoleEmulator.AlbumFile> files = emulator.getFiles();
+        final List<ByteArrayOutputStream> outs = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(files.size());
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        try {
+            for (final ConsoleEmulator.AlbumFile file : files) {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                outs.add(out);
+                scheduler.executeAsync(finished -> {
+                    maxRunning.accumulateAndGet(scheduler.getRunning(), Math::max);
+                    download("/img/" + file.name, out).whenComplete((hash, e) -> {
+                        if (e != null) {
+                            scheduler.onTransferError();
+                            failures.incrementAndGet();
+                        }
+                        finished.run();
+                        done.countDown();
+                    });
+                });
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            scheduler.shutdown();
+        }
+        assertEquals(0, failures.get());
+        assertTrue(maxRunning.get() <= 4);
+        assertEquals(0, scheduler.getRunning());
+        for (int i = 0; i < files.size(); i++) {
+            assertArrayEquals(files.get(i).content(), outs.get(i).toByteArray());
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.farproc.switchfiletransfer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestSessionTimeline {
+    private final long[] now = {10000};
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("timelines", "");
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    private SessionTimeline session(final long timeToFirstByte, final long total) {
+        final SessionTimeline timeline = new SessionTimeline(() -> now[0], 0);
+        final long start = now[0];
+        timeline.mark(SessionTimeline.Event.CONNECT_REQUESTED);
+        now[0] = start + timeToFirstByte;
+        timeline.mark(SessionTimeline.Event.FIRST_BYTE);
+        now[0] = start + total;
+        timeline.mark(SessionTimeline.Event.DISCONNECTED);
+        return timeline;
+    }
+
+    @Test
+    public void events() {
+        final SessionTimeline timeline = new SessionTimeline(() -> now[0], 0);
+        // The QR code is parsed before the timeline is created.
+        assertTrue(timeline.markAt(SessionTimeline.Event.QR_PARSED, now[0] - 200));
+        timeline.mark(SessionTimeline.Event.CONNECT_REQUESTED);
+        now[0] += 2000;
+        timeline.mark(SessionTimeline.Event.NETWORK_AVAILABLE);
+        now[0] += 300;
+        timeline.mark(SessionTimeline.Event.FIRST_BYTE);
+        now[0] += 100;
+        // Only the first time counts.
+        assertFalse(timeline.mark(SessionTimeline.Event.FIRST_BYTE));
+        timeline.markItemCompleted(3);
+        now[0] += 100;
+        timeline.markItemCompleted(1);
+
+        assertEquals(0, timeline.getElapsedMs(SessionTimeline.Event.QR_PARSED));
+        assertEquals(200, timeline.getElapsedMs(SessionTimeline.Event.CONNECT_REQUESTED));
+        assertEquals(2500, timeline.getTimeToFirstByteMs());
+        assertEquals(-1, timeline.getElapsedMs(SessionTimeline.Event.MANIFEST_RECEIVED));
+        assertEquals(-1, timeline.getTotalMs());
+        assertEquals(2, timeline.getItemCount());
+        assertEquals(3, timeline.getItemPosition(0));
+        assertEquals(2600, timeline.getItemElapsedMs(0));
+        assertEquals(2700, timeline.getItemElapsedMs(1));
+        assertEquals("QR_PARSED 0ms, CONNECT_REQUESTED 200ms(+200ms), NETWORK_AVAILABLE 2200ms(+2000ms), "
+                + "FIRST_BYTE 2500ms(+300ms), 2 items, last 2700ms", timeline.toString());
+    }
+
+    @Test
+    public void history() throws IOException {
+        assertTrue(SessionTimeline.readHistory(file).isEmpty());
+        final List<SessionTimeline> timelines = new ArrayList<>();
+        timelines.add(session(1000, 5000));
+        final SessionTimeline second = session(2000, 9000);
+        second.markItemCompleted(7);
+        timelines.add(second);
+        SessionTimeline.writeHistory(file, timelines);
+
+        final List<SessionTimeline> read = SessionTimeline.readHistory(file);
+        assertEquals(2, read.size());
+        assertEquals(1000, read.get(0).getTimeToFirstByteMs());
+        assertEquals(9000, read.get(1).getTotalMs());
+        assertEquals(1, read.get(1).getItemCount());
+        assertEquals(7, read.get(1).getItemPosition(0));
+        assertEquals(second.toString(), read.get(1).toString());
+    }
+
+    @Test
+    public void percentile() {
+        final long[] values = new long[20];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (i + 1) * 100;
+        }
+        assertEquals(1000, SessionTimeline.percentile(values, 50));
+        assertEquals(1900, SessionTimeline.percentile(values, 95));
+        assertEquals(2000, SessionTimeline.percentile(values, 100));
+        // Unknown times are ignored.
+        assertEquals(300, SessionTimeline.percentile(new long[]{-1, 300, -1}, 95));
+        assertEquals(-1, SessionTimeline.percentile(new long[]{-1}, 50));
+    }
+}
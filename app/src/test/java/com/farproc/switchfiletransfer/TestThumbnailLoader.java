@@ -0,0 +1,284 @@
+package com.farproc.switchfiletransfer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestThumbnailLoader {
+    private File dir;
+    // Worker tasks, run by the test one by one.
+    private final List<Runnable> workerTasks = new ArrayList<>();
+    private final Map<String, String> stamps = new HashMap<>();
+    private final List<String> created = new ArrayList<>();
+    private final List<String> recycled = new ArrayList<>();
+
+    private final ThumbnailLoader.Codec<String> codec = new ThumbnailLoader.Codec<String>() {
+        @Override
+        public String stamp(String uri) throws IOException {
+            final String stamp = stamps.get(uri);
+            if (stamp == null) {
+                throw new IOException("no file " + uri);
+            }
+            return stamp;
+        }
+
+        @Override
+        public String create(String uri) {
+            created.add(uri);
+            return "thumbnail of " + uri + "@" + stamps.get(uri);
+        }
+
+        @Override
+        public String read(File file) throws IOException {
+            return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void write(String thumbnail, OutputStream out) throws IOException {
+            out.write(thumbnail.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public int sizeOf(String thumbnail) {
+            return 100;
+        }
+
+        @Override
+        public void recycle(String thumbnail) {
+            recycled.add(thumbnail);
+        }
+    };
+
+    private static class Target implements ThumbnailLoader.Target<String> {
+        final List<String> loaded = new ArrayList<>();
+
+        @Override
+        public void onThumbnailLoaded(String thumbnail) {
+            loaded.add(thumbnail);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("thumbnails").toFile();
+        stamps.put("a", "1");
+        stamps.put("b", "1");
+        stamps.put("c", "1");
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    // The main executor runs at once, as the test runs on the "main thread".
+    private ThumbnailLoader<String> newLoader(final long maxMemoryBytes) {
+        return new ThumbnailLoader<>(workerTasks::add, Runnable::run, new DiskCache(dir, 10000), codec, maxMemoryBytes);
+    }
+
+    private void runWorkerTasks() {
+        while (!workerTasks.isEmpty()) {
+            workerTasks.remove(0).run();
+        }
+    }
+
+    @Test
+    public void coalesce() {
+        final ThumbnailLoader<String> loader = newLoader(1000);
+        final Target first = new Target();
+        final Target second = new Target();
+        loader.load("a", first);
+        loader.load("a", second);
+        assertEquals(1, workerTasks.size());
+        runWorkerTasks();
+        assertEquals("[thumbnail of a@1]", first.loaded.toString());
+        assertEquals("[thumbnail of a@1]", second.loaded.toString());
+
+        // From memory, at once.
+        final Target third = new Target();
+        loader.load("a", third);
+        assertEquals(0, workerTasks.size());
+        assertEquals("[thumbnail of a@1]", third.loaded.toString());
+        assertEquals("[a]", created.toString());
+    }
+
+    @Test
+    public void cancel() {
+        final ThumbnailLoader<String> loader = newLoader(1000);
+        final Target target = new Target();
+        final Target other = new Target();
+        loader.load("a", target);
+        loader.load("b", other);
+        // Rebinding the target cancels its first request.
+        loader.load("c", target);
+        loader.cancel(other);
+        runWorkerTasks();
+        assertEquals("[thumbnail of c@1]", target.loaded.toString());
+        assertEquals(0, other.loaded.size());
+        // Nobody waits for "a" and "b", they are not loaded.
+        assertEquals("[c]", created.toString());
+    }
+
+    @Test
+    public void diskCache() {
+        final Target target = new Target();
+        ThumbnailLoader<String> loader = newLoader(1000);
+        loader.load("a", target);
+        runWorkerTasks();
+
+        // Read from disk by a new loader.
+        loader = newLoader(1000);
+        loader.load("a", target);
+        runWorkerTasks();
+        assertEquals("[thumbnail of a@1, thumbnail of a@1]", target.loaded.toString());
+        assertEquals("[a]", created.toString());
+
+        // Created again once the file changes.
+        stamps.put("a", "2");
+        loader = newLoader(1000);
+        loader.load("a", target);
+        runWorkerTasks();
+        assertEquals("thumbnail of a@2", target.loaded.get(2));
+        assertEquals("[a, a]", created.toString());
+    }
+
+    @Test
+    public void memoryLimit() {
+        final ThumbnailLoader<String> loader = newLoader(200);
+        final Target target = new Target();
+        loader.load("a", target);
+        runWorkerTasks();
+        loader.load("b", target);
+        runWorkerTasks();
+        loader.load("c", target);
+        runWorkerTasks();
+        // "a" is out of memory, it is read from disk.
+        loader.load("a", target);
+        assertEquals(1, workerTasks.size());
+        runWorkerTasks();
+        loader.load("c", target);
+        assertEquals(0, workerTasks.size());
+        assertEquals(3, created.size());
+    }
+
+    @Test
+    public void recycle() {
+        final ThumbnailLoader<String> loader = newLoader(100);
+        final Target shown = new Target();
+        final Target other = new Target();
+        loader.load("a", shown);
+        runWorkerTasks();
+        loader.load("b", other);
+        runWorkerTasks();
+        // "a" is out of memory but still shown.
+        assertEquals(100, loader.getMemoryBytes());
+        assertEquals(0, recycled.size());
+        loader.load("c", other);
+        runWorkerTasks();
+        // "b" is neither cached nor shown.
+        assertEquals("[thumbnail of b@1]", recycled.toString());
+        loader.cancel(shown);
+        assertEquals("[thumbnail of b@1, thumbnail of a@1]", recycled.toString());
+        // "c" is cached, so it is not recycled.
+        loader.cancel(other);
+        assertEquals(2, recycled.size());
+    }
+
+    @Test
+    public void prefetch() {
+        for (final String uri : new String[]{"d", "e", "f", "g", "h"}) {
+            stamps.put(uri, "1");
+        }
+        final ThumbnailLoader<String> loader = newLoader(1000);
+        final Target target = new Target();
+        loader.load("a", target);
+        loader.prefetch("b");
+        loader.prefetch("c");
+        // Prefetches wait for the load.
+        assertEquals(1, workerTasks.size());
+        workerTasks.remove(0).run();
+        // Then one at a time.
+        assertEquals(1, workerTasks.size());
+        workerTasks.remove(0).run();
+        assertEquals(1, workerTasks.size());
+        runWorkerTasks();
+        assertEquals("[a, b, c]", created.toString());
+
+        loader.load("b", target);
+        assertEquals(0, workerTasks.size());
+        ThumbnailLoader.Stats stats = loader.getStats();
+        assertEquals(1, stats.prefetchHits);
+        assertEquals(1, stats.misses);
+        assertEquals(2, stats.prefetched);
+
+        // A queued prefetch is started at once when it is loaded, the others are dropped when cancelled.
+        loader.load("a", target);
+        loader.prefetch("d");
+        loader.prefetch("e");
+        loader.prefetch("f");
+        loader.setPrefetchLimit(2);
+        assertEquals(2, workerTasks.size());
+        final Target other = new Target();
+        loader.load("f", other);
+        assertEquals(3, workerTasks.size());
+        loader.cancelPrefetches();
+        runWorkerTasks();
+        assertEquals("[a, b, c, d, e, f]", created.toString());
+        loader.load("h", other);
+        loader.prefetch("g");
+        loader.cancelPrefetches();
+        runWorkerTasks();
+        assertEquals("[a, b, c, d, e, f, h]", created.toString());
+        stats = loader.getStats();
+        assertEquals(3, stats.misses);
+        // Of "a", "b", "f" and "h", only "b" was prefetched in time.
+        assertEquals(0.25, stats.getPrefetchHitRate(), 0.001);
+    }
+
+    @Test
+    public void put() {
+        ThumbnailLoader<String> loader = newLoader(1000);
+        loader.put("a", "created while downloading");
+        final Target target = new Target();
+        loader.load("a", target);
+        assertEquals(0, workerTasks.size());
+
+        // Saved on disk too.
+        loader = newLoader(1000);
+        loader.load("a", target);
+        runWorkerTasks();
+        assertEquals("[created while downloading, created while downloading]", target.loaded.toString());
+        assertEquals(0, created.size());
+    }
+
+    @Test
+    public void failure() {
+        final ThumbnailLoader<String> loader = newLoader(1000);
+        final Target target = new Target();
+        loader.load("missing", target);
+        runWorkerTasks();
+        assertEquals(1, target.loaded.size());
+        assertNull(target.loaded.get(0));
+    }
+}
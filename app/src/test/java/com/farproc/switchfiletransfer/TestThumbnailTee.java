@@ -0,0 +1,125 @@
+package com.farproc.switchfiletransfer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestThumbnailTee {
+    private static byte[] box(final String type, final int payloadLength, final int seed) {
+        final byte[] payload = new byte[payloadLength];
+        new Random(seed).nextBytes(payload);
+        return ByteBuffer.allocate(8 + payloadLength).putInt(8 + payloadLength)
+                .put(type.getBytes(StandardCharsets.US_ASCII)).put(payload).array();
+    }
+
+    private static byte[] concat(final byte[]... parts) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (final byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    // Write in small odd chunks, so box headers are split between writes.
+    private static ThumbnailTee write(final byte[] file, final boolean isVideo, final ByteArrayOutputStream out) throws IOException {
+        final ThumbnailTee tee = new ThumbnailTee(out, isVideo);
+        for (int i = 0; i < file.length; i += 7) {
+            tee.write(file, i, Math.min(7, file.length - i));
+        }
+        tee.close();
+        return tee;
+    }
+
+    private static byte[] read(final ThumbnailTee tee, final long position, final int size) {
+        final byte[] bytes = new byte[size];
+        assertEquals(size, tee.readAt(position, bytes, 0, size));
+        return bytes;
+    }
+
+    @Test
+    public void image() throws IOException {
+        final byte[] file = new byte[100000];
+        new Random(1).nextBytes(file);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ThumbnailTee tee = write(file, false, out);
+        assertArrayEquals(file, out.toByteArray());
+        assertTrue(tee.isUsable());
+        assertEquals(file.length, tee.length());
+        assertArrayEquals(file, read(tee, 0, file.length));
+        assertEquals(-1, tee.readAt(file.length, new byte[10], 0, 10));
+    }
+
+    @Test
+    public void largeImage() throws IOException {
+        final byte[] file = new byte[ThumbnailTee.MAX_IMAGE_BYTES + 1];
+        final ThumbnailTee tee = new ThumbnailTee(new ByteArrayOutputStream(), false);
+        tee.write(file, 0, file.length);
+        assertFalse(tee.isUsable());
+    }
+
+    @Test
+    public void video() throws IOException {
+        final byte[] ftyp = box("ftyp", 24, 1);
+        final byte[] free = box("free", 100, 2);
+        final byte[] mdat = box("mdat", ThumbnailTee.MDAT_HEAD_BYTES + 5000, 3);
+        final byte[] moov = box("moov", 3000, 4);
+        final byte[] file = concat(ftyp, free, mdat, moov);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ThumbnailTee tee = write(file, true, out);
+        assertArrayEquals(file, out.toByteArray());
+        assertTrue(tee.isUsable());
+        assertEquals(file.length, tee.length());
+
+        assertArrayEquals(ftyp, read(tee, 0, ftyp.length));
+        // Skipped box reads as 0.
+        assertArrayEquals(new byte[free.length], read(tee, ftyp.length, free.length));
+        // The head of mdat is kept, the rest reads as 0.
+        final int mdatStart = ftyp.length + free.length;
+        final int kept = 8 + ThumbnailTee.MDAT_HEAD_BYTES;
+        assertArrayEquals(Arrays.copyOf(mdat, kept), read(tee, mdatStart, kept));
+        assertArrayEquals(new byte[100], read(tee, mdatStart + kept, 100));
+        assertArrayEquals(moov, read(tee, file.length - moov.length, moov.length));
+        // Across the regions.
+        final byte[] across = read(tee, ftyp.length - 10, 20);
+        assertArrayEquals(Arrays.copyOfRange(ftyp, ftyp.length - 10, ftyp.length), Arrays.copyOf(across, 10));
+    }
+
+    @Test
+    public void largeSize() throws IOException {
+        // A box with a 64 bits size.
+        final byte[] ftyp = box("ftyp", 24, 1);
+        final byte[] moov = box("moov", 100, 2);
+        final byte[] mdat = ByteBuffer.allocate(16 + 50).putInt(1).put("mdat".getBytes(StandardCharsets.US_ASCII))
+                .putLong(16 + 50).array();
+        final byte[] file = concat(ftyp, moov, mdat);
+        final ThumbnailTee tee = write(file, true, new ByteArrayOutputStream());
+        assertTrue(tee.isUsable());
+        assertArrayEquals(file, read(tee, 0, file.length));
+    }
+
+    @Test
+    public void notUsable() throws IOException {
+        // No moov.
+        assertFalse(write(concat(box("ftyp", 24, 1), box("mdat", 100, 2)), true, new ByteArrayOutputStream()).isUsable());
+        // Not an MP4.
+        final byte[] garbage = new byte[1000];
+        new Random(5).nextBytes(garbage);
+        garbage[3] = 2;
+        garbage[0] = garbage[1] = garbage[2] = 0;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ThumbnailTee tee = write(garbage, true, out);
+        assertFalse(tee.isUsable());
+        assertEquals(garbage.length, tee.length());
+        assertArrayEquals(garbage, out.toByteArray());
+    }
+}
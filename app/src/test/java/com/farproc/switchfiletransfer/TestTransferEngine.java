@@ -0,0 +1,87 @@
+package com.farproc.switchfiletransfer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestTransferEngine {
+    private static byte[] randomBytes(final int length) {
+        final byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private static void copy(final TransferEngine.Strategy strategy, final int length, final long contentLength) throws IOException {
+        final byte[] data = randomBytes(length);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final MessageDigest digest = ItemDownloader.newDigest();
+        final long n = new TransferEngine(strategy, new BufferPool(1024 * 1024))
+                .copy(new ByteArrayInputStream(data), out, contentLength, TransferEngine.NO_PROGRESS, digest);
+        assertEquals(length, n);
+        assertArrayEquals(data, out.toByteArray());
+        assertArrayEquals(ItemDownloader.newDigest().digest(data), digest.digest());
+    }
+
+    @Test
+    public void heap() throws IOException {
+        copy(new TransferEngine.HeapStrategy(), 0, 0);
+        copy(new TransferEngine.HeapStrategy(), 1, -1);
+        copy(new TransferEngine.HeapStrategy(), 300 * 1024 + 7, 300 * 1024 + 7);
+        copy(new TransferEngine.HeapStrategy(), 3 * 1024 * 1024 + 1, -1);
+    }
+
+    @Test
+    public void channel() throws IOException {
+        copy(new TransferEngine.ChannelStrategy(), 0, 0);
+        copy(new TransferEngine.ChannelStrategy(), 1, -1);
+        copy(new TransferEngine.ChannelStrategy(), 300 * 1024 + 7, 300 * 1024 + 7);
+        copy(new TransferEngine.ChannelStrategy(), 3 * 1024 * 1024 + 1, -1);
+    }
+
+    @Test
+    public void bufferSize() {
+        assertEquals(TransferEngine.DEFAULT_BUFFER_SIZE, TransferEngine.bufferSizeFor(-1));
+        assertEquals(TransferEngine.MIN_BUFFER_SIZE, TransferEngine.bufferSizeFor(0));
+        assertEquals(16 * 1024, TransferEngine.bufferSizeFor(300 * 1024));
+        assertEquals(TransferEngine.MAX_BUFFER_SIZE, TransferEngine.bufferSizeFor(30 * 1024 * 1024));
+    }
+
+    @Test
+    public void verify() throws IOException {
+        final TransferEngine engine = new TransferEngine(new TransferEngine.HeapStrategy(), new BufferPool(0));
+        final byte[] data = randomBytes(100 * 1024);
+        final byte[] hash = ItemDownloader.newDigest().digest(data);
+        assertTrue(FileVerifier.verify(engine, new ByteArrayInputStream(data), data.length, hash));
+        assertTrue(FileVerifier.verify(engine, new ByteArrayInputStream(data), data.length, null));
+        assertFalse(FileVerifier.verify(engine, new ByteArrayInputStream(data, 0, data.length - 1), data.length, null));
+        data[12345]++;
+        assertFalse(FileVerifier.verify(engine, new ByteArrayInputStream(data), data.length, hash));
+    }
+
+    @Test
+    public void pool() {
+        final BufferPool pool = new BufferPool(16 * 1024);
+        final ByteBuffer a = pool.acquire(8 * 1024, false);
+        final ByteBuffer b = pool.acquire(8 * 1024, false);
+        final ByteBuffer c = pool.acquire(8 * 1024, false);
+        pool.release(a);
+        pool.release(b);
+        pool.release(c); // Dropped, pool is full.
+        assertEquals(16 * 1024, pool.getPooledBytes());
+        assertSame(b, pool.acquire(8 * 1024, false));
+        assertNotSame(a, pool.acquire(8 * 1024, true));
+        assertEquals(8 * 1024, pool.getPooledBytes());
+    }
+}
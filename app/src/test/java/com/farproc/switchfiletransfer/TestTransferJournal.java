@@ -0,0 +1,130 @@
+package com.farproc.switchfiletransfer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestTransferJournal {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("journal", "");
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    private static TransferJournal.ItemRecord item(final String fileName) {
+        return new TransferJournal.ItemRecord(fileName, fileName.endsWith(".mp4"), "content://media/" + fileName);
+    }
+
+    @Test
+    public void replay() throws IOException {
+        assertNull(TransferJournal.replay(file));
+        try (TransferJournal journal = new TransferJournal(file)) {
+            journal.startSession("Switch");
+            journal.addItem(item("a.jpg"));
+            journal.addItem(item("b.mp4"));
+            journal.addItem(item("c.jpg"));
+            journal.setState(0, 1, 1000, new byte[]{9, 8, 7});
+            final SegmentedDownloader.Plan plan = new SegmentedDownloader.Plan(100, 4);
+            plan.positions.set(0, 10);
+            journal.setProgress(1, 100, 10, plan);
+        }
+        final TransferJournal.Snapshot snapshot = TransferJournal.replay(file);
+        assertNotNull(snapshot);
+        assertEquals("Switch", snapshot.consoleName);
+        assertEquals(3, snapshot.items.size());
+        assertEquals(1, snapshot.items.get(0).state);
+        assertEquals(1000, snapshot.items.get(0).bytesCommitted);
+        assertArrayEquals(new byte[]{9, 8, 7}, snapshot.items.get(0).contentHash);
+        final TransferJournal.ItemRecord video = snapshot.items.get(1);
+        assertEquals("content://media/b.mp4", video.fileUri);
+        assertTrue(video.isVideo);
+        assertEquals(0, video.state);
+        assertEquals(100, video.totalBytes);
+        assertEquals(4, video.segmentPlan.getSegmentCount());
+        assertEquals(10, video.segmentPlan.getBytesSaved());
+        assertEquals(-1, snapshot.items.get(2).totalBytes);
+    }
+
+    @Test
+    public void tornRecord() throws IOException {
+        try (TransferJournal journal = new TransferJournal(file)) {
+            journal.startSession("Switch");
+            journal.addItem(item("a.jpg"));
+            journal.setState(0, 1, 1000, null);
+        }
+        // Lose the last bytes, as if the process was killed while writing.
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.setLength(f.length() - 3);
+        }
+        final TransferJournal.Snapshot snapshot = TransferJournal.replay(file);
+        assertNotNull(snapshot);
+        assertEquals(1, snapshot.items.size());
+        assertEquals(0, snapshot.items.get(0).state);
+    }
+
+    @Test
+    public void compact() throws IOException {
+        final long compactLength;
+        try (TransferJournal journal = new TransferJournal(file)) {
+            journal.startSession("Switch");
+            journal.addItem(item("a.jpg"));
+            for (int i = 0; i < 100; i++) {
+                journal.setProgress(0, 1000, i * 10, null);
+            }
+            final long length = file.length();
+            final TransferJournal.Snapshot snapshot = TransferJournal.replay(file);
+            journal.compact(snapshot);
+            compactLength = file.length();
+            assertTrue(compactLength < length);
+            // The journal is still writable after compaction.
+            journal.setState(0, -1, 990, null);
+        }
+        final TransferJournal.Snapshot snapshot = TransferJournal.replay(file);
+        assertNotNull(snapshot);
+        assertEquals(-1, snapshot.items.get(0).state);
+        assertEquals(990, snapshot.items.get(0).bytesCommitted);
+
+        // A new session drops the old records.
+        try (TransferJournal journal = new TransferJournal(file)) {
+            journal.startSession("Other");
+        }
+        assertEquals(0, TransferJournal.replay(file).items.size());
+    }
+
+    @Test
+    public void timeline() throws IOException {
+        final long[] now = {0};
+        final SessionTimeline timeline = new SessionTimeline(() -> now[0], 0);
+        timeline.mark(SessionTimeline.Event.CONNECT_REQUESTED);
+        now[0] = 500;
+        timeline.mark(SessionTimeline.Event.FIRST_BYTE);
+        try (TransferJournal journal = new TransferJournal(file)) {
+            journal.startSession("Switch");
+            journal.addItem(item("a.jpg"));
+            journal.setTimeline(timeline);
+            journal.compact(TransferJournal.replay(file));
+        }
+        final TransferJournal.Snapshot snapshot = TransferJournal.replay(file);
+        assertEquals(1, snapshot.items.size());
+        assertEquals(500, snapshot.timeline.getTimeToFirstByteMs());
+    }
+}
@@ -3,7 +3,10 @@ package com.farproc.switchfiletransfer;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class TestWifiConfig {
     @Test
@@ -23,4 +26,54 @@ public class TestWifiConfig {
         assertEquals(config.AuthType, "WPA");
         assertEquals(config.Password, "1;2");
     }
+
+    @Test
+    public void fields() {
+        final WifiConfig config = WifiConfig.parse("WIFI:T:WPA;P:pass;E:PEAP;S:switch;H:true;S:other;;");
+        assertNotNull(config);
+        assertEquals(config.SSID, "switch");
+        assertEquals(config.AuthType, "WPA");
+        assertEquals(config.Password, "pass");
+        assertTrue(config.Hidden);
+        assertFalse(WifiConfig.parse("WIFI:S:switch;T:WPA;P:pass;;").Hidden);
+    }
+
+    @Test
+    public void quoted() {
+        final WifiConfig config = WifiConfig.parse("WIFI:S:\"414243\";T:WPA;P:\"p\\\"w\";;");
+        assertNotNull(config);
+        assertEquals(config.SSID, "414243");
+        assertEquals(config.Password, "p\"w");
+    }
+
+    @Test
+    public void hex() {
+        assertEquals(WifiConfig.parse("WIFI:S:414243;T:WPA;P:pass;;").SSID, "ABC");
+        assertEquals(WifiConfig.parse("WIFI:S:e4bda0e5a5bd;T:WPA;P:pass;;").SSID, "\u4f60\u597d");
+        // Not UTF-8, or not hex.
+        assertEquals(WifiConfig.parse("WIFI:S:c0ff;T:WPA;P:pass;;").SSID, "c0ff");
+        assertEquals(WifiConfig.parse("WIFI:S:switch;T:WPA;P:pass;;").SSID, "switch");
+        // Not printable.
+        assertEquals(WifiConfig.parse("WIFI:S:12345678;T:WPA;P:pass;;").SSID, "12345678");
+    }
+
+    @Test
+    public void fieldWithoutKey() {
+        final WifiConfig config = WifiConfig.parse("WIFI:X;S:net;T:WPA;P:p;;");
+        assertNotNull(config);
+        assertEquals(config.SSID, "net");
+        assertEquals(config.AuthType, "WPA");
+        assertEquals(config.Password, "p");
+    }
+
+    @Test
+    public void invalid() {
+        assertNull(WifiConfig.parse(null));
+        assertNull(WifiConfig.parse("https://example.com/"));
+        assertNull(WifiConfig.parse("WIFI:S:switch;T:WPA;;"));
+        assertNull(WifiConfig.parse("WIFI:S:switch;T:WPA;P:;;"));
+        assertNull(WifiConfig.parse("WIFI:S:switch;T:WPA;P:pass"));
+        assertNull(WifiConfig.parse("WIFI:S:switch;T:WPA;P:pass\\;"));
+        assertNull(WifiConfig.parse("WIFI:S:switch;T:WPA;garbage"));
+    }
 }
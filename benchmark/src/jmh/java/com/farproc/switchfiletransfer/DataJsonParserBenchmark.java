@@ -0,0 +1,59 @@
+package com.farproc.switchfiletransfer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing data.json with {@code entries} file names, in the format the console sends.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DataJsonParserBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int entries;
+
+    private byte[] json;
+
+    @Setup
+    public void setUp() {
+        final StringBuilder sb = new StringBuilder("{\"FileType\":\"photo\",\"DownloadMes\":\"false\",\"FileNames\":[");
+        for (int i = 0; i < entries; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            // Date and time of the capture, every tenth is a video.
+            sb.append(String.format(Locale.US, "\"20210101%08d-%s\"", i, i % 10 == 0 ? "0.mp4" : "0.jpg"));
+        }
+        sb.append("],\"ConsoleName\":\"Switch\"}");
+        json = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void parse(final Blackhole blackhole) throws IOException {
+        DataJsonParser.parse(new ByteArrayInputStream(json), new DataJsonParser.Handler() {
+            @Override
+            public void onConsoleName(String consoleName) {
+                blackhole.consume(consoleName);
+            }
+
+            @Override
+            public void onFileName(String fileName) {
+                blackhole.consume(fileName);
+            }
+        });
+    }
+}
@@ -0,0 +1,73 @@
+package com.farproc.switchfiletransfer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The copy loop of a download, from a response body in memory to a sink, with every strategy.
+ * Scores are files per second, multiply by {@code size} for bytes per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TransferEngineBenchmark {
+    // A screenshot, a short video and a long video.
+    @Param({"300000", "8000000", "64000000"})
+    public int size;
+
+    @Param({"heap", "channel"})
+    public String strategy;
+
+    // Whether the file is hashed while it is copied, as downloads are.
+    @Param({"false", "true"})
+    public boolean digest;
+
+    private byte[] body;
+    private TransferEngine engine;
+    private MessageDigest messageDigest;
+    private final TransferEngine.Progress progress = n -> {
+    };
+
+    // Discards the bytes, so only the copy loop is measured.
+    private static final OutputStream SINK = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Setup
+    public void setUp() throws NoSuchAlgorithmException {
+        body = new byte[size];
+        new Random(1).nextBytes(body);
+        engine = new TransferEngine("heap".equals(strategy) ? new TransferEngine.HeapStrategy() : new TransferEngine.ChannelStrategy(),
+                new BufferPool(1024 * 1024));
+        messageDigest = MessageDigest.getInstance("SHA-256");
+    }
+
+    @Benchmark
+    public long copy() throws IOException {
+        final MessageDigest d = digest ? messageDigest : null;
+        if (d != null) {
+            d.reset();
+        }
+        return engine.copy(new ByteArrayInputStream(body), SINK, size, progress, d);
+    }
+}
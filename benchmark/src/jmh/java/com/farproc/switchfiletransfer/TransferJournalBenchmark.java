@@ -0,0 +1,80 @@
+package com.farproc.switchfiletransfer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persisting the state of a session of {@code items} items to the journal and reading it back,
+ * which is how the download state is saved and restored.
+ * The journal is written to the temporary directory, put it on tmpfs to leave the disk out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TransferJournalBenchmark {
+    @Param({"100", "1000"})
+    public int items;
+
+    private File file;
+    private TransferJournal.Snapshot snapshot;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = File.createTempFile("journal", "");
+        snapshot = new TransferJournal.Snapshot("Switch");
+        for (int i = 0; i < items; i++) {
+            final String fileName = String.format(Locale.US, "20210101%08d-0.jpg", i);
+            final TransferJournal.ItemRecord item = new TransferJournal.ItemRecord(fileName, false,
+                    "content://media/external/images/media/" + i);
+            item.totalBytes = 300000;
+            item.bytesCommitted = 300000;
+            item.state = 1;
+            item.contentHash = new byte[32];
+            snapshot.items.add(item);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    // A session as it runs: every item is added, then its final state is appended.
+    @Benchmark
+    public TransferJournal.Snapshot appendAndReplay() throws IOException {
+        try (TransferJournal journal = new TransferJournal(file)) {
+            journal.startSession(snapshot.consoleName);
+            for (final TransferJournal.ItemRecord item : snapshot.items) {
+                journal.addItem(new TransferJournal.ItemRecord(item.fileName, item.isVideo, item.fileUri));
+            }
+            for (int i = 0; i < snapshot.items.size(); i++) {
+                final TransferJournal.ItemRecord item = snapshot.items.get(i);
+                journal.setState(i, item.state, item.bytesCommitted, item.contentHash);
+            }
+        }
+        return TransferJournal.replay(file);
+    }
+
+    // The end of a session: the journal is rewritten with one record per item.
+    @Benchmark
+    public TransferJournal.Snapshot compactAndReplay() throws IOException {
+        try (TransferJournal journal = new TransferJournal(file)) {
+            journal.compact(snapshot);
+        }
+        return TransferJournal.replay(file);
+    }
+}
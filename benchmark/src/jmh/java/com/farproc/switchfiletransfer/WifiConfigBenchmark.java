@@ -0,0 +1,32 @@
+package com.farproc.switchfiletransfer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing the Wi-Fi configuration in the QR code shown by the console.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class WifiConfigBenchmark {
+    @Param({
+            // As shown by the console.
+            "WIFI:S:switch_E313480100f;T:WPA;P:pchg33ss;;",
+            // Fields in another order, with escaped characters.
+            "WIFI:T:WPA;P:1\\;2\\:3;S:\\:switch_E313480100f;H:false;;",
+    })
+    public String qr;
+
+    @Benchmark
+    public WifiConfig parse() {
+        return WifiConfig.parse(qr);
+    }
+}